@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import au.csiro.fhir.transforms.generators.LabcodesetResourceGenerator;
+import au.csiro.fhir.transforms.generators.OutputFormat;
+import au.csiro.fhir.transforms.generators.TransformEnvironment;
+
+/**
+ * Watches a directory for Labcodeset XML files being added or replaced, transforming each one once
+ * it has finished being written. A file is considered complete once its size and modification time
+ * have not changed for the debounce time, so that a file still being copied into the directory is
+ * not transformed partway through.
+ * <p>
+ * Complete files are queued to a fixed number of worker threads, each file at most once at a time,
+ * and transformed into an output directory named after the file within the output root directory,
+ * so that each release keeps its own output. All transformations share one
+ * {@link TransformEnvironment}, so that terminology resolved for one release is reused by the next.
+ * <p>
+ * Once a file has been transformed completely a marker recording its size and modification time is
+ * written to its output directory. Files already in the directory when watching starts are
+ * transformed unless their marker matches them, so that output left partway by a failure or by the
+ * process stopping is completed, and files replaced while the directory was not watched are
+ * transformed again.
+ */
+public class LabcodesetDirectoryWatcher implements Closeable {
+
+  /**
+   * Default time in milliseconds a file must be unchanged for before it is transformed
+   */
+  public static final long DEFAULT_DEBOUNCE_MILLIS = 2000;
+
+  private static final String XML_EXTENSION = ".xml";
+  private static final String TRANSFORMED_MARKER = ".labcodeset-transformed";
+
+  private final TransformEnvironment environment;
+  private final Path watchDir;
+  private final File outputRoot;
+  private final String loincVersion;
+  private final OutputFormat outputFormat;
+  private final String uploadEndpoint;
+  private final int uploadConcurrency;
+  private final long debounceMillis;
+  private final WatchService watchService;
+  private final Thread watchThread;
+  private final ExecutorService jobExecutor;
+  private final ExecutorService generationExecutor;
+
+  // only accessed by the watch thread
+  private final Map<Path, PendingFile> pending = new LinkedHashMap<>();
+  private final Set<Path> queued = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param environment {@link TransformEnvironment} to run all transformations in, closed by the
+   *        caller
+   * @param watchDir directory to watch for Labcodeset XML files
+   * @param outputRoot directory to create the output directory of each Labcodeset file in
+   * @param loincVersion LOINC version the Labcodeset files should be used with
+   * @param outputFormat {@link OutputFormat} to write the resources and bundles in
+   * @param uploadEndpoint FHIR endpoint to upload the generated resources to, or null to not upload
+   *        them
+   * @param uploadConcurrency maximum number of uploads to have in flight to the upload endpoint
+   * @param jobs maximum number of files to transform at once
+   * @param parallel true to generate the families of resources of each transformation concurrently
+   * @param generationThreads number of threads, shared by all the transformations, to generate the
+   *        families of resources and write the output files on when parallel is true
+   * @param debounceMillis time in milliseconds a file must be unchanged for before it is transformed
+   * @throws IOException if the directory cannot be watched
+   */
+  public LabcodesetDirectoryWatcher(TransformEnvironment environment, File watchDir, File outputRoot, String loincVersion,
+      OutputFormat outputFormat, String uploadEndpoint, int uploadConcurrency, int jobs, boolean parallel, int generationThreads,
+      long debounceMillis) throws IOException {
+    if (jobs < 1) {
+      throw new IllegalArgumentException("Jobs must be at least 1, was " + jobs);
+    }
+    this.environment = environment;
+    this.watchDir = watchDir.toPath().toAbsolutePath();
+    this.outputRoot = outputRoot;
+    this.loincVersion = loincVersion;
+    this.outputFormat = outputFormat;
+    this.uploadEndpoint = uploadEndpoint;
+    this.uploadConcurrency = uploadConcurrency;
+    this.debounceMillis = debounceMillis;
+    this.watchService = this.watchDir.getFileSystem().newWatchService();
+    this.watchDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+    AtomicInteger jobThreads = new AtomicInteger();
+    this.jobExecutor = Executors.newFixedThreadPool(jobs, runnable -> {
+      Thread thread = new Thread(runnable, "labcodeset-transform-" + jobThreads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    AtomicInteger generationThreadCount = new AtomicInteger();
+    this.generationExecutor = !parallel ? null : Executors.newFixedThreadPool(generationThreads, runnable -> {
+      Thread thread = new Thread(runnable, "resource-generation-" + generationThreadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.watchThread = new Thread(this::watch, "labcodeset-watch");
+    watchThread.setDaemon(true);
+  }
+
+  /**
+   * Starts watching the directory, queuing the files already in it that have not been transformed
+   * completely as they are now
+   *
+   * @throws IOException if the directory cannot be listed
+   */
+  public void start() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(watchDir)) {
+      for (Path file : files) {
+        if (isLabcodesetFile(file) && !isTransformed(file, getOutputDir(file))) {
+          pending.put(file, new PendingFile());
+        }
+      }
+    }
+    watchThread.start();
+  }
+
+  /**
+   * Stops watching the directory, transformations in progress are abandoned
+   */
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+    jobExecutor.shutdownNow();
+    if (generationExecutor != null) {
+      generationExecutor.shutdownNow();
+    }
+  }
+
+  private void watch() {
+    long pollMillis = Math.max(100, debounceMillis / 4);
+    try {
+      while (true) {
+        WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+        if (key != null) {
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              rescan();
+            } else {
+              Path file = watchDir.resolve((Path) event.context());
+              if (isLabcodesetFile(file)) {
+                pending.computeIfAbsent(file, f -> new PendingFile()).touch();
+              }
+            }
+          }
+          key.reset();
+        }
+        queueCompleteFiles();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException e) {
+      // closed, stop watching
+    }
+  }
+
+  /**
+   * Treats every file in the directory that has not been transformed as it is now as changed after
+   * events were lost
+   */
+  private void rescan() {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(watchDir)) {
+      for (Path file : files) {
+        if (isLabcodesetFile(file) && !isTransformed(file, getOutputDir(file))) {
+          pending.computeIfAbsent(file, f -> new PendingFile()).touch();
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("WARNING: Failed to rescan watched directory " + watchDir + " - " + e.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Queues the pending files whose size and modification time have not changed for the debounce
+   * time, files still queued or being transformed are left pending until they are done
+   */
+  private void queueCompleteFiles() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Map.Entry<Path, PendingFile>> it = pending.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<Path, PendingFile> entry = it.next();
+      Path file = entry.getKey();
+      PendingFile pendingFile = entry.getValue();
+      if (!Files.isRegularFile(file)) {
+        it.remove();
+      } else if (pendingFile.isStable(file, now) && queued.add(file)) {
+        it.remove();
+        System.out.println("Queued " + file + " for transform");
+        jobExecutor.execute(() -> transform(file));
+      }
+    }
+  }
+
+  private void transform(Path file) {
+    File outputDir = getOutputDir(file);
+    // recorded before reading, so that a file replaced during the transform is transformed again
+    long size = file.toFile().length();
+    long modified = file.toFile().lastModified();
+    long start = System.currentTimeMillis();
+    try {
+      Files.createDirectories(outputDir.toPath());
+      // removed first, so that output left partway by a failure is not taken as complete
+      Files.deleteIfExists(outputDir.toPath().resolve(TRANSFORMED_MARKER));
+      System.out.println("Transforming " + file + " to " + outputDir);
+      LabcodesetResourceGenerator generator = new LabcodesetResourceGenerator(environment, file.toFile(), outputDir, loincVersion, null,
+          null, outputFormat, uploadEndpoint, uploadConcurrency);
+      if (generationExecutor != null) {
+        generator.generateFhirResources(generationExecutor);
+      } else {
+        generator.generateFhirResources();
+      }
+      markTransformed(outputDir, size, modified);
+      System.out.println("Transformed " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Failed to transform " + file + " due to " + e.getLocalizedMessage());
+    } finally {
+      queued.remove(file);
+      try {
+        environment.saveTerminologyCache();
+      } catch (IOException e) {
+        System.err.println("WARNING: Failed to save terminology cache " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+  private File getOutputDir(Path file) {
+    String name = file.getFileName().toString();
+    return new File(outputRoot, name.substring(0, name.length() - XML_EXTENSION.length()));
+  }
+
+  /**
+   * @param file Labcodeset file
+   * @param outputDir output directory of the file
+   * @return true if the output directory holds a complete transformation of the file with its
+   *         current size and modification time
+   */
+  static boolean isTransformed(Path file, File outputDir) {
+    Path marker = outputDir.toPath().resolve(TRANSFORMED_MARKER);
+    try {
+      return Files.isRegularFile(marker) && new String(Files.readAllBytes(marker), StandardCharsets.UTF_8)
+          .equals(getMarkerContent(file.toFile().length(), file.toFile().lastModified()));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Records that the output directory holds a complete transformation of a Labcodeset file
+   *
+   * @param outputDir output directory of the file
+   * @param size size of the file when it was transformed
+   * @param modified modification time of the file when it was transformed
+   * @throws IOException if the marker cannot be written
+   */
+  static void markTransformed(File outputDir, long size, long modified) throws IOException {
+    Path temp = Files.createTempFile(outputDir.toPath(), TRANSFORMED_MARKER, ".tmp");
+    try {
+      Files.write(temp, getMarkerContent(size, modified).getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, outputDir.toPath().resolve(TRANSFORMED_MARKER), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static String getMarkerContent(long size, long modified) {
+    return size + "\t" + modified + "\n";
+  }
+
+  private static boolean isLabcodesetFile(Path file) {
+    String name = file.getFileName().toString();
+    return !name.startsWith(".") && name.toLowerCase(Locale.ROOT).endsWith(XML_EXTENSION);
+  }
+
+  /**
+   * File seen to change, with the size and modification time it had when last checked
+   */
+  private class PendingFile {
+
+    private long size = -1;
+    private long modified = -1;
+    private long lastChange = System.currentTimeMillis();
+
+    void touch() {
+      lastChange = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the size and modification time of the file are the same as when last checked
+     *         and have been for the debounce time
+     */
+    boolean isStable(Path file, long now) {
+      File f = file.toFile();
+      long currentSize = f.length();
+      long currentModified = f.lastModified();
+      if (currentSize != size || currentModified != modified) {
+        size = currentSize;
+        modified = currentModified;
+        lastChange = now;
+        return false;
+      }
+      return now - lastChange >= debounceMillis;
+    }
+  }
+}
@@ -5,9 +5,13 @@
  ******************************************************************************/
 package au.csiro.fhir.transforms;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -16,6 +20,11 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import au.csiro.fhir.transforms.generators.LabcodesetResourceGenerator;
+import au.csiro.fhir.transforms.generators.OutputFormat;
+import au.csiro.fhir.transforms.generators.TransformEnvironment;
+import au.csiro.fhir.transforms.utility.HttpTransport;
+import au.csiro.fhir.transforms.utility.ResourceUploader;
+import au.csiro.fhir.transforms.utility.TerminologyClient;
 
 /**
  * Command line interface class for the Labcodeset transformation to FHIR
@@ -29,6 +38,29 @@ public class LabcodesetFhirTransform {
   private static final String FHIR_ENDPOINT_PARAM = "fhirEndpoint";
   private static final String LOINC_VERSION_PARAM = "loincVersion";
   private static final String LABCODESET_FILE_PARAM = "labcodesetFile";
+  private static final String LOOKUP_BATCH_SIZE_PARAM = "lookupBatchSize";
+  private static final String LOOKUP_CONCURRENCY_PARAM = "lookupConcurrency";
+  private static final String CACHE_DIR_PARAM = "cacheDir";
+  private static final String LOINC_DIR_PARAM = "loincDir";
+  private static final String SNOMED_DIR_PARAM = "snomedDir";
+  private static final String CONNECT_TIMEOUT_PARAM = "connectTimeout";
+  private static final String SOCKET_TIMEOUT_PARAM = "socketTimeout";
+  private static final String KEEP_ALIVE_PARAM = "keepAlive";
+  private static final String DISABLE_COMPRESSION_PARAM = "disableCompression";
+  private static final String UCUM_VALUESET_URL_PARAM = "ucumValueSetUrl";
+  private static final String PARALLEL_PARAM = "parallel";
+  private static final String GENERATION_THREADS_PARAM = "generationThreads";
+  private static final String PREVIOUS_BUNDLE_PARAM = "previousBundle";
+  private static final String CHANGED_SINCE_PARAM = "changedSince";
+  private static final String OUTPUT_FORMAT_PARAM = "outputFormat";
+  private static final String UPLOAD_ENDPOINT_PARAM = "uploadEndpoint";
+  private static final String UPLOAD_CONCURRENCY_PARAM = "uploadConcurrency";
+  private static final String SERVER_PORT_PARAM = "serverPort";
+  private static final String SERVER_JOBS_PARAM = "serverJobs";
+  private static final String SERVER_MAX_REQUEST_SIZE_PARAM = "serverMaxRequestSize";
+  private static final String WATCH_DIR_PARAM = "watchDir";
+  private static final String WATCH_DEBOUNCE_PARAM = "watchDebounce";
+
 
   public static void main(String[] args) {
     // create the command line parser
@@ -36,12 +68,17 @@ public class LabcodesetFhirTransform {
 
     // create the Options
     Options options = new Options();
-    options.addOption(Option.builder(LABCODESET_FILE_PARAM).required(true).argName("file_path").hasArg(true)
-        .desc("File path to the Labcodeset XML file to transform").build());
-    options.addOption(Option.builder(LOINC_VERSION_PARAM).required(true).argName("loinc_version").hasArg(true)
-        .desc("Version of LOINC this Labcodeset XML file has been built with").build());
-    options.addOption(Option.builder(FHIR_ENDPOINT_PARAM).required(true).argName("fhir endpoint").hasArgs().type(File.class)
-        .desc("FHIR terminology endpoint containing the appropriate LOINC and SNOMED CT-NL versions to reference during the transformation")
+    options.addOption(Option.builder(LABCODESET_FILE_PARAM).required(false).argName("file_path").hasArg(true)
+        .desc("File path to the Labcodeset XML file to transform - required unless " + SERVER_PORT_PARAM + " or " + WATCH_DIR_PARAM
+            + " is specified")
+        .build());
+    options.addOption(Option.builder(LOINC_VERSION_PARAM).required(false).argName("loinc_version").hasArg(true)
+        .desc("Version of LOINC this Labcodeset XML file has been built with - required unless " + SERVER_PORT_PARAM
+            + " is specified, in which case it is the version used for requests that do not specify one")
+        .build());
+    options.addOption(Option.builder(FHIR_ENDPOINT_PARAM).required(false).argName("fhir endpoint").hasArgs().type(File.class)
+        .desc("FHIR terminology endpoint containing the appropriate LOINC and SNOMED CT-NL versions to reference during the transformation"
+            + " - optional if both " + LOINC_DIR_PARAM + " and " + SNOMED_DIR_PARAM + " are specified")
         .build());
     options.addOption(Option.builder(TOKEN_ENDPOINT_PARAM).required(false).argName("token _endpoint").hasArg(true).desc(
         "Token endpoint URL to get a bearer token with for the specified endpoint - optional if authorisation is required for the FHIR endpoint")
@@ -55,6 +92,90 @@ public class LabcodesetFhirTransform {
     options.addOption(Option.builder(OUTPUT_DIR_PARAM).required(false).argName("directory").hasArg(true).desc(
         "Location to output the resulting FHIR resources and Bundle - defaults to the directory the program was executed from if not specified")
         .build());
+    options.addOption(Option.builder(LOOKUP_BATCH_SIZE_PARAM).required(false).argName("size").hasArg(true)
+        .desc("Maximum number of code lookups sent to the FHIR endpoint in a single batch request - defaults to "
+            + TerminologyClient.DEFAULT_BATCH_SIZE + " if not specified")
+        .build());
+    options.addOption(Option.builder(LOOKUP_CONCURRENCY_PARAM).required(false).argName("requests").hasArg(true)
+        .desc("Maximum number of code lookup requests in flight to the FHIR endpoint at once - defaults to "
+            + TerminologyClient.DEFAULT_CONCURRENCY + " if not specified")
+        .build());
+    options.addOption(Option.builder(CACHE_DIR_PARAM).required(false).argName("directory").hasArg(true).desc(
+        "Location to persist terminology lookup results and the FHIR specification common UCUM codes in so they can be reused by later runs for up to 30 days - they are not persisted if not specified")
+        .build());
+    options.addOption(Option.builder(LOINC_DIR_PARAM).required(false).argName("directory").hasArg(true).desc(
+        "Location of an unpacked LOINC distribution of the specified LOINC version to read LOINC details from instead of the FHIR endpoint - optional")
+        .build());
+    options.addOption(Option.builder(SNOMED_DIR_PARAM).required(false).argName("directory").hasArg(true).desc(
+        "Location of an unpacked SNOMED CT Netherlands edition RF2 release to read Dutch display terms from instead of the FHIR endpoint - optional")
+        .build());
+    options.addOption(Option.builder(CONNECT_TIMEOUT_PARAM).required(false).argName("milliseconds").hasArg(true)
+        .desc("Time to wait for HTTP connections to be established - defaults to " + HttpTransport.DEFAULT_CONNECT_TIMEOUT
+            + " if not specified")
+        .build());
+    options.addOption(Option.builder(SOCKET_TIMEOUT_PARAM).required(false).argName("milliseconds").hasArg(true)
+        .desc("Time to wait for data on an established HTTP connection - defaults to " + HttpTransport.DEFAULT_SOCKET_TIMEOUT
+            + " if not specified")
+        .build());
+    options.addOption(Option.builder(KEEP_ALIVE_PARAM).required(false).argName("seconds").hasArg(true)
+        .desc("Time to keep idle HTTP connections open for reuse if the server does not specify one - defaults to "
+            + HttpTransport.DEFAULT_KEEP_ALIVE + " if not specified")
+        .build());
+    options.addOption(Option.builder(DISABLE_COMPRESSION_PARAM).required(false).hasArg(false)
+        .desc("Do not ask for compressed HTTP responses - responses are requested gzip compressed if not specified").build());
+    options.addOption(Option.builder(UCUM_VALUESET_URL_PARAM).required(false).argName("url").hasArg(true)
+        .desc("URL to fetch the FHIR specification common UCUM codes ValueSet from - defaults to "
+            + TerminologyClient.DEFAULT_UCUM_VALUESET_URL + " if not specified")
+        .build());
+    options.addOption(Option.builder(PARALLEL_PARAM).required(false).hasArg(false)
+        .desc("Generate the LOINC, UCUM, Materials and Outcome resources concurrently, and the LOINC supplement concepts across all "
+            + "cores - generated one after another if not specified")
+        .build());
+    options.addOption(Option.builder(GENERATION_THREADS_PARAM).required(false).argName("threads").hasArg(true)
+        .desc("Number of threads to generate the families of resources and write the output files on with " + PARALLEL_PARAM
+            + ", shared by all transforms of the service or directory watch - defaults to the number of available processors if not "
+            + "specified")
+        .build());
+    options.addOption(Option.builder(PREVIOUS_BUNDLE_PARAM).required(false).argName("file_path").hasArg(true)
+        .desc("Labcodeset bundle file of a previous run, with its fingerprints file alongside, to reuse the output of unchanged lab "
+            + "concepts from - all lab concepts are transformed if not specified")
+        .build());
+    options.addOption(Option.builder(CHANGED_SINCE_PARAM).required(false).argName("directory").hasArg(true)
+        .desc("Output directory of a previous run to compare the generated resources to, writing a transaction Bundle that only "
+            + "updates the new and changed resources and a report of the changes - optional")
+        .build());
+    options.addOption(Option.builder(OUTPUT_FORMAT_PARAM).required(false).argName("format").hasArg(true)
+        .desc("Format to write the resources and Bundle in, one of " + OutputFormat.getNames() + " - defaults to "
+            + OutputFormat.PRETTY.getName() + " if not specified")
+        .build());
+    options.addOption(Option.builder(UPLOAD_ENDPOINT_PARAM).required(false).argName("fhir endpoint").hasArg(true)
+        .desc("FHIR endpoint to upload each generated resource to with a PUT conditional on its url and version, only the new and "
+            + "changed resources if " + CHANGED_SINCE_PARAM + " is specified - the resources are not uploaded if not specified")
+        .build());
+    options.addOption(Option.builder(UPLOAD_CONCURRENCY_PARAM).required(false).argName("requests").hasArg(true)
+        .desc("Maximum number of uploads in flight to the upload endpoint at once - defaults to " + ResourceUploader.DEFAULT_CONCURRENCY
+            + " if not specified")
+        .build());
+    options.addOption(Option.builder(SERVER_PORT_PARAM).required(false).argName("port").hasArg(true)
+        .desc("Run as a service on the port instead of transforming a single file, transforming each Labcodeset XML file POSTed to "
+            + "/transform?loincVersion=x.yy&format=" + OutputFormat.PRETTY.getName() + " and returning its Bundle - optional")
+        .build());
+    options.addOption(Option.builder(SERVER_JOBS_PARAM).required(false).argName("jobs").hasArg(true)
+        .desc("Maximum number of transforms the service or directory watch runs at once, further requests or files wait - defaults to "
+            + LabcodesetTransformService.DEFAULT_JOBS + " if not specified")
+        .build());
+    options.addOption(Option.builder(SERVER_MAX_REQUEST_SIZE_PARAM).required(false).argName("megabytes").hasArg(true)
+        .desc("Maximum size of a Labcodeset XML file POSTed to the service, larger files are rejected - defaults to "
+            + LabcodesetTransformService.DEFAULT_MAX_REQUEST_MEGABYTES + " if not specified")
+        .build());
+    options.addOption(Option.builder(WATCH_DIR_PARAM).required(false).argName("directory").hasArg(true)
+        .desc("Watch the directory instead of transforming a single file, transforming each Labcodeset XML file added to or replaced "
+            + "in it into a directory named after the file in " + OUTPUT_DIR_PARAM + " - optional")
+        .build());
+    options.addOption(Option.builder(WATCH_DEBOUNCE_PARAM).required(false).argName("milliseconds").hasArg(true)
+        .desc("Time a file in the watched directory must be unchanged for before it is transformed - defaults to "
+            + LabcodesetDirectoryWatcher.DEFAULT_DEBOUNCE_MILLIS + " if not specified")
+        .build());
 
     boolean initFailed = false;
     File labcodesetFile = null;
@@ -64,18 +185,125 @@ public class LabcodesetFhirTransform {
     String tokenEndpoint = null;
     String clientId = null;
     String clientSecret = null;
+    int lookupBatchSize = TerminologyClient.DEFAULT_BATCH_SIZE;
+    int lookupConcurrency = TerminologyClient.DEFAULT_CONCURRENCY;
+    File cacheDir = null;
+    File loincDir = null;
+    File snomedDir = null;
+    int connectTimeout = HttpTransport.DEFAULT_CONNECT_TIMEOUT;
+    int socketTimeout = HttpTransport.DEFAULT_SOCKET_TIMEOUT;
+    int keepAlive = HttpTransport.DEFAULT_KEEP_ALIVE;
+    boolean compression = true;
+    String ucumValueSetUrl = TerminologyClient.DEFAULT_UCUM_VALUESET_URL;
+    boolean parallel = false;
+    int generationThreads = Runtime.getRuntime().availableProcessors();
+    File previousBundle = null;
+    File changedSinceDir = null;
+    OutputFormat outputFormat = OutputFormat.PRETTY;
+    String uploadEndpoint = null;
+    int uploadConcurrency = ResourceUploader.DEFAULT_CONCURRENCY;
+    int serverPort = -1;
+    int serverJobs = LabcodesetTransformService.DEFAULT_JOBS;
+    int serverMaxRequestSize = LabcodesetTransformService.DEFAULT_MAX_REQUEST_MEGABYTES;
+    File watchDir = null;
+    long watchDebounce = LabcodesetDirectoryWatcher.DEFAULT_DEBOUNCE_MILLIS;
     try {
       CommandLine line = parser.parse(options, args);
 
-      labcodesetFile = new File(line.getOptionValue(LABCODESET_FILE_PARAM));
+      if (line.hasOption(SERVER_PORT_PARAM)) {
+        serverPort = parsePositiveInt(line.getOptionValue(SERVER_PORT_PARAM));
+        if (serverPort < 1 || serverPort > 65535) {
+          System.err.println("Server port " + line.getOptionValue(SERVER_PORT_PARAM) + " is not valid, expected a port number");
+          initFailed = true;
+        }
+        for (String param : new String[] {LABCODESET_FILE_PARAM, OUTPUT_DIR_PARAM, PREVIOUS_BUNDLE_PARAM, CHANGED_SINCE_PARAM,
+            UPLOAD_ENDPOINT_PARAM}) {
+          if (line.hasOption(param)) {
+            System.err.println("Parameter " + param + " cannot be used with " + SERVER_PORT_PARAM);
+            initFailed = true;
+          }
+        }
+      }
+
+      if (line.hasOption(WATCH_DIR_PARAM)) {
+        watchDir = new File(line.getOptionValue(WATCH_DIR_PARAM));
+        if (!watchDir.isDirectory()) {
+          System.err.println("Watch directory " + watchDir + " does not exist or is not a directory");
+          initFailed = true;
+        }
+        for (String param : new String[] {LABCODESET_FILE_PARAM, PREVIOUS_BUNDLE_PARAM, CHANGED_SINCE_PARAM, SERVER_PORT_PARAM}) {
+          if (line.hasOption(param)) {
+            System.err.println("Parameter " + param + " cannot be used with " + WATCH_DIR_PARAM);
+            initFailed = true;
+          }
+        }
+      }
+
+      if (line.hasOption(WATCH_DEBOUNCE_PARAM)) {
+        watchDebounce = parsePositiveInt(line.getOptionValue(WATCH_DEBOUNCE_PARAM));
+        if (watchDebounce < 1) {
+          System.err.println("Watch debounce " + line.getOptionValue(WATCH_DEBOUNCE_PARAM) + " is not valid, expected a positive integer");
+          initFailed = true;
+        } else if (watchDir == null) {
+          System.err.println("Parameter " + WATCH_DEBOUNCE_PARAM + " can only be used with " + WATCH_DIR_PARAM);
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(SERVER_JOBS_PARAM) && serverPort == -1 && watchDir == null) {
+        System.err.println("Parameter " + SERVER_JOBS_PARAM + " can only be used with " + SERVER_PORT_PARAM + " or " + WATCH_DIR_PARAM);
+        initFailed = true;
+      }
+
+      if (line.hasOption(SERVER_JOBS_PARAM)) {
+        serverJobs = parsePositiveInt(line.getOptionValue(SERVER_JOBS_PARAM));
+        if (serverJobs < 1) {
+          System.err.println("Server jobs " + line.getOptionValue(SERVER_JOBS_PARAM) + " is not valid, expected a positive integer");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(SERVER_MAX_REQUEST_SIZE_PARAM)) {
+        serverMaxRequestSize = parsePositiveInt(line.getOptionValue(SERVER_MAX_REQUEST_SIZE_PARAM));
+        if (serverMaxRequestSize < 1) {
+          System.err.println("Server maximum request size " + line.getOptionValue(SERVER_MAX_REQUEST_SIZE_PARAM)
+              + " is not valid, expected a positive integer");
+          initFailed = true;
+        } else if (serverPort == -1) {
+          System.err.println("Parameter " + SERVER_MAX_REQUEST_SIZE_PARAM + " can only be used with " + SERVER_PORT_PARAM);
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(LABCODESET_FILE_PARAM)) {
+        labcodesetFile = new File(line.getOptionValue(LABCODESET_FILE_PARAM));
+      } else if (serverPort == -1 && watchDir == null) {
+        System.err.println("Parameter " + LABCODESET_FILE_PARAM + " is required unless " + SERVER_PORT_PARAM + " or " + WATCH_DIR_PARAM
+            + " is supplied");
+        initFailed = true;
+      }
 
       loincVersion = line.getOptionValue(LOINC_VERSION_PARAM);
-      if (!loincVersion.matches("\\d{1}\\.\\d{2,}")) {
+      if (loincVersion == null) {
+        if (serverPort == -1) {
+          System.err.println("Parameter " + LOINC_VERSION_PARAM + " is required unless " + SERVER_PORT_PARAM + " is supplied");
+          initFailed = true;
+        } else if (line.hasOption(LOINC_DIR_PARAM)) {
+          System.err.println("Parameter " + LOINC_VERSION_PARAM + " is required with " + LOINC_DIR_PARAM + " to give the version of the "
+              + "LOINC distribution");
+          initFailed = true;
+        }
+      } else if (!loincVersion.matches("\\d{1}\\.\\d{2,}")) {
         System.err.println("LOINC version specified " + loincVersion + " is not valid, expected x.yy");
         initFailed = true;
       }
 
       fhirEndpoint = line.getOptionValue(FHIR_ENDPOINT_PARAM);
+      if (fhirEndpoint == null && !(line.hasOption(LOINC_DIR_PARAM) && line.hasOption(SNOMED_DIR_PARAM))) {
+        System.err.println("Parameter " + FHIR_ENDPOINT_PARAM + " is required unless both " + LOINC_DIR_PARAM + " and " + SNOMED_DIR_PARAM
+            + " are supplied");
+        initFailed = true;
+      }
 
       if (line.hasOption(OUTPUT_DIR_PARAM)) {
         outputDir = new File(line.getOptionValue(OUTPUT_DIR_PARAM));
@@ -94,6 +322,129 @@ public class LabcodesetFhirTransform {
         outputDir = new File(System.getProperty("user.dir"));
       }
 
+      if (line.hasOption(LOOKUP_BATCH_SIZE_PARAM)) {
+        lookupBatchSize = parsePositiveInt(line.getOptionValue(LOOKUP_BATCH_SIZE_PARAM));
+        if (lookupBatchSize < 1) {
+          System.err.println("Lookup batch size " + line.getOptionValue(LOOKUP_BATCH_SIZE_PARAM) + " is not valid, expected a positive integer");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(LOOKUP_CONCURRENCY_PARAM)) {
+        lookupConcurrency = parsePositiveInt(line.getOptionValue(LOOKUP_CONCURRENCY_PARAM));
+        if (lookupConcurrency < 1) {
+          System.err.println(
+              "Lookup concurrency " + line.getOptionValue(LOOKUP_CONCURRENCY_PARAM) + " is not valid, expected a positive integer");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(CACHE_DIR_PARAM)) {
+        cacheDir = new File(line.getOptionValue(CACHE_DIR_PARAM));
+        if (cacheDir.exists() && (!cacheDir.isDirectory() || !cacheDir.canWrite())) {
+          System.err.println("Cache directory " + cacheDir + " exists but is not a directory or not writable");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(LOINC_DIR_PARAM)) {
+        loincDir = new File(line.getOptionValue(LOINC_DIR_PARAM));
+        if (!loincDir.isDirectory()) {
+          System.err.println("LOINC directory " + loincDir + " does not exist or is not a directory");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(SNOMED_DIR_PARAM)) {
+        snomedDir = new File(line.getOptionValue(SNOMED_DIR_PARAM));
+        if (!snomedDir.isDirectory()) {
+          System.err.println("SNOMED CT directory " + snomedDir + " does not exist or is not a directory");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(CONNECT_TIMEOUT_PARAM)) {
+        connectTimeout = parsePositiveInt(line.getOptionValue(CONNECT_TIMEOUT_PARAM));
+        if (connectTimeout < 1) {
+          System.err.println("Connect timeout " + line.getOptionValue(CONNECT_TIMEOUT_PARAM) + " is not valid, expected a positive integer");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(SOCKET_TIMEOUT_PARAM)) {
+        socketTimeout = parsePositiveInt(line.getOptionValue(SOCKET_TIMEOUT_PARAM));
+        if (socketTimeout < 1) {
+          System.err.println("Socket timeout " + line.getOptionValue(SOCKET_TIMEOUT_PARAM) + " is not valid, expected a positive integer");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(KEEP_ALIVE_PARAM)) {
+        keepAlive = parsePositiveInt(line.getOptionValue(KEEP_ALIVE_PARAM));
+        if (keepAlive < 1) {
+          System.err.println("Keep alive " + line.getOptionValue(KEEP_ALIVE_PARAM) + " is not valid, expected a positive integer");
+          initFailed = true;
+        }
+      }
+
+      compression = !line.hasOption(DISABLE_COMPRESSION_PARAM);
+
+      if (line.hasOption(UCUM_VALUESET_URL_PARAM)) {
+        ucumValueSetUrl = line.getOptionValue(UCUM_VALUESET_URL_PARAM);
+      }
+
+      parallel = line.hasOption(PARALLEL_PARAM);
+
+      if (line.hasOption(GENERATION_THREADS_PARAM)) {
+        generationThreads = parsePositiveInt(line.getOptionValue(GENERATION_THREADS_PARAM));
+        if (generationThreads < 1) {
+          System.err.println(
+              "Generation threads " + line.getOptionValue(GENERATION_THREADS_PARAM) + " is not valid, expected a positive integer");
+          initFailed = true;
+        }
+        if (!parallel) {
+          System.err.println("Parameter " + GENERATION_THREADS_PARAM + " can only be used with " + PARALLEL_PARAM);
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(PREVIOUS_BUNDLE_PARAM)) {
+        previousBundle = new File(line.getOptionValue(PREVIOUS_BUNDLE_PARAM));
+        if (!previousBundle.isFile()) {
+          System.err.println("Previous bundle file " + previousBundle + " does not exist or is not a file");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(CHANGED_SINCE_PARAM)) {
+        changedSinceDir = new File(line.getOptionValue(CHANGED_SINCE_PARAM));
+        if (!changedSinceDir.isDirectory()) {
+          System.err.println("Prior output directory " + changedSinceDir + " does not exist or is not a directory");
+          initFailed = true;
+        }
+      }
+
+      if (line.hasOption(OUTPUT_FORMAT_PARAM)) {
+        try {
+          outputFormat = OutputFormat.fromName(line.getOptionValue(OUTPUT_FORMAT_PARAM));
+        } catch (IllegalArgumentException e) {
+          System.err.println("Output format " + line.getOptionValue(OUTPUT_FORMAT_PARAM) + " is not valid, expected one of "
+              + OutputFormat.getNames());
+          initFailed = true;
+        }
+      }
+
+      uploadEndpoint = line.getOptionValue(UPLOAD_ENDPOINT_PARAM);
+
+      if (line.hasOption(UPLOAD_CONCURRENCY_PARAM)) {
+        uploadConcurrency = parsePositiveInt(line.getOptionValue(UPLOAD_CONCURRENCY_PARAM));
+        if (uploadConcurrency < 1) {
+          System.err.println(
+              "Upload concurrency " + line.getOptionValue(UPLOAD_CONCURRENCY_PARAM) + " is not valid, expected a positive integer");
+          initFailed = true;
+        }
+      }
+
       if (options.hasOption(CLIENT_ID_PARAM) || options.hasOption(CLIENT_SECRET_PARAM) || options.hasOption(TOKEN_ENDPOINT_PARAM)) {
         if (options.hasOption(CLIENT_ID_PARAM) && options.hasOption(CLIENT_SECRET_PARAM) && options.hasOption(TOKEN_ENDPOINT_PARAM)) {
           tokenEndpoint = line.getOptionValue(TOKEN_ENDPOINT_PARAM);
@@ -115,13 +466,115 @@ public class LabcodesetFhirTransform {
       HelpFormatter formatter = new HelpFormatter();
       formatter.printHelp(120, "java -jar labcodeset-transforms-jar-with-dependencies.jar", "", options, "", true);
     } else {
+      boolean transformFailed = false;
+      try (HttpTransport httpTransport =
+          new HttpTransport(Math.max(lookupConcurrency, uploadConcurrency), connectTimeout, socketTimeout, keepAlive, compression)) {
+        if (serverPort != -1) {
+          TransformEnvironment environment = new TransformEnvironment(fhirEndpoint, tokenEndpoint, clientId, clientSecret, false,
+              lookupBatchSize, lookupConcurrency, cacheDir, loincDir, loincVersion, snomedDir, httpTransport, ucumValueSetUrl);
+          runService(environment, serverPort, serverJobs, serverMaxRequestSize, loincVersion, outputFormat, parallel, generationThreads);
+          return;
+        }
+        if (watchDir != null) {
+          TransformEnvironment environment = new TransformEnvironment(fhirEndpoint, tokenEndpoint, clientId, clientSecret,
+              uploadEndpoint != null, lookupBatchSize, lookupConcurrency, cacheDir, loincDir, loincVersion, snomedDir, httpTransport,
+              ucumValueSetUrl);
+          runWatcher(environment, watchDir, outputDir, loincVersion, outputFormat, uploadEndpoint, uploadConcurrency, serverJobs, parallel,
+              generationThreads, watchDebounce);
+          return;
+        }
+        LabcodesetResourceGenerator generator = new LabcodesetResourceGenerator(labcodesetFile, outputDir, loincVersion, fhirEndpoint,
+            tokenEndpoint, clientId, clientSecret, lookupBatchSize, lookupConcurrency, cacheDir, loincDir, snomedDir, httpTransport,
+            ucumValueSetUrl, previousBundle, changedSinceDir, outputFormat, uploadEndpoint, uploadConcurrency);
+        try {
+          if (parallel) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(generationThreads, runnable -> {
+              Thread thread = new Thread(runnable, "resource-generation-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+            try {
+              generator.generateFhirResources(executor);
+            } finally {
+              executor.shutdown();
+            }
+          } else {
+            generator.generateFhirResources();
+          }
+        } catch (IOException | IllegalArgumentException e) {
+          System.err.println("Failed to complete transform due to " + e.getLocalizedMessage());
+          transformFailed = true;
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        System.err.println("Failed to initialise transform " + e.getLocalizedMessage());
+        transformFailed = true;
+      }
+      if (transformFailed) {
+        System.exit(1);
+      }
+    }
+  }
+
+  /**
+   * Runs a {@link LabcodesetTransformService} until the process is stopped
+   */
+  private static void runService(TransformEnvironment environment, int port, int jobs, int maxRequestMegabytes,
+      String defaultLoincVersion, OutputFormat outputFormat, boolean parallel, int generationThreads) throws IOException {
+    LabcodesetTransformService service = new LabcodesetTransformService(environment, port, jobs, maxRequestMegabytes * 1024L * 1024L,
+        defaultLoincVersion, outputFormat, parallel, generationThreads);
+    service.start();
+    System.out.println("Labcodeset transform service started, POST Labcodeset files to " + service.getTransformUrl()
+        + "?" + LOINC_VERSION_PARAM + "=x.yy");
+    waitUntilStopped(service, environment);
+  }
+
+  /**
+   * Runs a {@link LabcodesetDirectoryWatcher} until the process is stopped
+   */
+  private static void runWatcher(TransformEnvironment environment, File watchDir, File outputDir, String loincVersion,
+      OutputFormat outputFormat, String uploadEndpoint, int uploadConcurrency, int jobs, boolean parallel, int generationThreads,
+      long debounceMillis) throws IOException {
+    LabcodesetDirectoryWatcher watcher = new LabcodesetDirectoryWatcher(environment, watchDir, outputDir, loincVersion, outputFormat,
+        uploadEndpoint, uploadConcurrency, jobs, parallel, generationThreads, debounceMillis);
+    watcher.start();
+    System.out.println("Watching " + watchDir + " for Labcodeset files, transforming them into " + outputDir);
+    waitUntilStopped(watcher, environment);
+  }
+
+  /**
+   * Waits until the process is stopped, then closes the running service and saves the terminology
+   * cache
+   */
+  private static void waitUntilStopped(Closeable running, TransformEnvironment environment) {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
       try {
-        LabcodesetResourceGenerator generator =
-            new LabcodesetResourceGenerator(labcodesetFile, outputDir, loincVersion, fhirEndpoint, tokenEndpoint, clientId, clientSecret);
-        generator.generateFhirResources();
+        running.close();
       } catch (IOException e) {
-        System.err.println("Failed to initialise transform " + e.getLocalizedMessage());
+        System.err.println("WARNING: Failed to stop " + e.getLocalizedMessage());
       }
+      try {
+        environment.close();
+      } catch (IOException e) {
+        System.err.println("WARNING: Failed to save terminology cache " + e.getLocalizedMessage());
+      }
+    }));
+    try {
+      Thread.currentThread().join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the value parsed as an integer, or -1 if it is not a positive integer
+   */
+  private static int parsePositiveInt(String value) {
+    try {
+      int parsed = Integer.parseInt(value);
+      return parsed > 0 ? parsed : -1;
+    } catch (NumberFormatException e) {
+      return -1;
     }
   }
 }
@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import au.csiro.fhir.transforms.generators.LabcodesetResourceGenerator;
+import au.csiro.fhir.transforms.generators.OutputFormat;
+import au.csiro.fhir.transforms.generators.TransformEnvironment;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP service running transformations in a long running process, so that the FHIR and JAXB
+ * contexts, JIT compiled code and terminology caches stay warm between transformations. All
+ * transformations share one {@link TransformEnvironment}.
+ * <p>
+ * A Labcodeset XML file POSTed to /transform is transformed and its Bundle returned, with the LOINC
+ * version and output format as the loincVersion and format query parameters. Transformations run
+ * concurrently up to a maximum number at a time, further requests wait for one to complete before
+ * their Labcodeset file is read, so that waiting requests do not hold their files. Files larger than
+ * a maximum size are rejected with 413 Payload Too Large, and requests are answered with 502 Bad
+ * Gateway while the FHIR specification common UCUM codes cannot be fetched. Each transformation is
+ * written to its own temporary directory, which is deleted once the Bundle has been returned. GET
+ * /status returns the number of transformations run and the terminology lookup metrics of all of
+ * them.
+ */
+public class LabcodesetTransformService implements Closeable {
+
+  /**
+   * Default number of transformations run at once
+   */
+  public static final int DEFAULT_JOBS = 2;
+
+  /**
+   * Default maximum size of a Labcodeset file POSTed to the service in megabytes
+   */
+  public static final int DEFAULT_MAX_REQUEST_MEGABYTES = 256;
+
+  private static final String TRANSFORM_PATH = "/transform";
+  private static final String STATUS_PATH = "/status";
+  private static final String LOINC_VERSION_PARAM = "loincVersion";
+  private static final String FORMAT_PARAM = "format";
+  private static final String LABCODESET_FILENAME = "labcodeset.xml";
+  private static final String OUTPUT_DIRNAME = "output";
+  private static final String FHIR_JSON = "application/fhir+json;charset=UTF-8";
+  private static final String TEXT_PLAIN = "text/plain;charset=UTF-8";
+
+  private final TransformEnvironment environment;
+  private final String defaultLoincVersion;
+  private final OutputFormat defaultFormat;
+  private final ExecutorService generationExecutor;
+  private final Semaphore jobPermits;
+  private final long maxRequestBytes;
+  private final HttpServer server;
+  private final ExecutorService requestExecutor;
+
+  private final AtomicInteger jobCount = new AtomicInteger();
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  /**
+   * @param environment {@link TransformEnvironment} to run all transformations in, closed by the
+   *        caller
+   * @param port port to listen on, or 0 to use any free port
+   * @param jobs maximum number of transformations to run at once
+   * @param maxRequestBytes maximum size of a Labcodeset file POSTed to the service in bytes
+   * @param defaultLoincVersion LOINC version of requests without the loincVersion parameter, or null
+   *        to require the parameter
+   * @param defaultFormat {@link OutputFormat} of requests without the format parameter
+   * @param parallel true to generate the families of resources of each transformation concurrently
+   * @param generationThreads number of threads, shared by all the transformations, to generate the
+   *        families of resources and write the output files on when parallel is true
+   * @throws IOException if the server cannot be created
+   */
+  public LabcodesetTransformService(TransformEnvironment environment, int port, int jobs, long maxRequestBytes,
+      String defaultLoincVersion, OutputFormat defaultFormat, boolean parallel, int generationThreads) throws IOException {
+    if (jobs < 1) {
+      throw new IllegalArgumentException("Jobs must be at least 1, was " + jobs);
+    }
+    if (maxRequestBytes < 1) {
+      throw new IllegalArgumentException("Maximum request size must be at least 1 byte, was " + maxRequestBytes);
+    }
+    this.maxRequestBytes = maxRequestBytes;
+    this.environment = environment;
+    this.defaultLoincVersion = defaultLoincVersion;
+    this.defaultFormat = defaultFormat;
+    this.jobPermits = new Semaphore(jobs, true);
+
+    AtomicInteger generationThreadCount = new AtomicInteger();
+    this.generationExecutor = !parallel ? null : Executors.newFixedThreadPool(generationThreads, runnable -> {
+      Thread thread = new Thread(runnable, "resource-generation-" + generationThreadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    AtomicInteger requestThreads = new AtomicInteger();
+    this.requestExecutor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "transform-request-" + requestThreads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.setExecutor(requestExecutor);
+    server.createContext(TRANSFORM_PATH, this::handleTransform);
+    server.createContext(STATUS_PATH, this::handleStatus);
+  }
+
+  /**
+   * Starts answering requests
+   */
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * @return the URL to POST Labcodeset files to
+   */
+  public String getTransformUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + TRANSFORM_PATH;
+  }
+
+  /**
+   * Stops accepting requests, waiting briefly for the responses in progress to be sent
+   */
+  @Override
+  public void close() {
+    server.stop(1);
+    requestExecutor.shutdownNow();
+    if (generationExecutor != null) {
+      generationExecutor.shutdownNow();
+    }
+  }
+
+  private void handleTransform(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        sendError(exchange, 405, IssueType.NOTSUPPORTED,
+            "Method " + exchange.getRequestMethod() + " not supported, POST a Labcodeset file");
+        return;
+      }
+      Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+      String loincVersion = params.getOrDefault(LOINC_VERSION_PARAM, defaultLoincVersion);
+      if (loincVersion == null || !loincVersion.matches("\\d{1}\\.\\d{2,}")) {
+        sendError(exchange, 400, IssueType.INVALID, "Parameter " + LOINC_VERSION_PARAM + " "
+            + (loincVersion == null ? "is required" : loincVersion + " is not valid, expected x.yy"));
+        return;
+      }
+      OutputFormat format = defaultFormat;
+      if (params.containsKey(FORMAT_PARAM)) {
+        try {
+          format = OutputFormat.fromName(params.get(FORMAT_PARAM));
+        } catch (IllegalArgumentException e) {
+          sendError(exchange, 400, IssueType.INVALID,
+              "Parameter " + FORMAT_PARAM + " " + params.get(FORMAT_PARAM) + " is not valid, expected one of " + OutputFormat.getNames());
+          return;
+        }
+      }
+      transform(exchange, loincVersion, format);
+    } catch (RuntimeException e) {
+      sendError(exchange, 500, IssueType.EXCEPTION, e.toString());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void transform(HttpExchange exchange, String loincVersion, OutputFormat format) throws IOException {
+    long contentLength = getContentLength(exchange);
+    if (contentLength > maxRequestBytes) {
+      sendTooLarge(exchange);
+      return;
+    }
+
+    waiting.incrementAndGet();
+    try {
+      jobPermits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sendError(exchange, 503, IssueType.TRANSIENT, "Service is stopping");
+      return;
+    } finally {
+      waiting.decrementAndGet();
+    }
+    int job = jobCount.incrementAndGet();
+    Path jobDir = null;
+    try {
+      File bundleFile;
+      long start;
+      try {
+        jobDir = Files.createTempDirectory("labcodeset-transform-" + job + "-");
+        File labcodesetFile = jobDir.resolve(LABCODESET_FILENAME).toFile();
+        File outputDir = Files.createDirectory(jobDir.resolve(OUTPUT_DIRNAME)).toFile();
+        if (!copyRequestBody(exchange, labcodesetFile.toPath())) {
+          sendTooLarge(exchange);
+          return;
+        }
+
+        running.incrementAndGet();
+        start = System.currentTimeMillis();
+        try {
+          System.out.println("Job " + job + ": transforming Labcodeset for LOINC " + loincVersion + " to " + format.getName());
+          LabcodesetResourceGenerator generator;
+          try {
+            generator = new LabcodesetResourceGenerator(environment, labcodesetFile, outputDir, loincVersion, null, null, format, null, 0);
+          } catch (IOException | IllegalArgumentException e) {
+            // the Labcodeset file could not be parsed or needs a LOINC version that is not available
+            failed.increment();
+            sendError(exchange, 400, IssueType.INVALID, e.getLocalizedMessage());
+            return;
+          } catch (RuntimeException e) {
+            failed.increment();
+            sendError(exchange, 500, IssueType.EXCEPTION, "Failed to start transform due to " + e.getLocalizedMessage());
+            return;
+          }
+          try {
+            // fetched once for the service, so a transform cannot fail on it part way through
+            environment.getCommonUcumCodes();
+          } catch (IOException e) {
+            failed.increment();
+            sendError(exchange, 502, IssueType.TRANSIENT, "Unable to get common UCUM codes from the FHIR spec due to "
+                + e.getLocalizedMessage());
+            return;
+          }
+          try {
+            if (generationExecutor != null) {
+              generator.generateFhirResources(generationExecutor);
+            } else {
+              generator.generateFhirResources();
+            }
+          } catch (IllegalArgumentException e) {
+            // the content of the Labcodeset file cannot be transformed
+            failed.increment();
+            sendError(exchange, 400, IssueType.INVALID, e.getLocalizedMessage());
+            return;
+          } catch (IOException | RuntimeException e) {
+            failed.increment();
+            sendError(exchange, 500, IssueType.EXCEPTION, "Failed to complete transform due to " + e.getLocalizedMessage());
+            return;
+          }
+          bundleFile = generator.getBundleFile();
+        } finally {
+          running.decrementAndGet();
+          saveTerminologyCache();
+        }
+      } finally {
+        jobPermits.release();
+      }
+
+      completed.increment();
+      System.out.println("Job " + job + ": transformed in " + (System.currentTimeMillis() - start) + "ms");
+      // returned from the completed file rather than streamed as it is generated, so that a
+      // transformation failing part way is answered with an error rather than a truncated Bundle
+      exchange.getResponseHeaders().set("Content-Type", format.getBundleContentType());
+      exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + bundleFile.getName() + "\"");
+      exchange.sendResponseHeaders(200, bundleFile.length());
+      try (OutputStream out = exchange.getResponseBody()) {
+        Files.copy(bundleFile.toPath(), out);
+      }
+    } finally {
+      if (jobDir != null) {
+        deleteRecursively(jobDir);
+      }
+    }
+  }
+
+  /**
+   * Copies the body of a request to a file, stopping once it is larger than the maximum request
+   * size even if it did not declare its length
+   *
+   * @return false if the body is larger than the maximum request size
+   */
+  private boolean copyRequestBody(HttpExchange exchange, Path file) throws IOException {
+    try (InputStream in = exchange.getRequestBody(); OutputStream out = Files.newOutputStream(file)) {
+      byte[] buffer = new byte[8192];
+      long size = 0;
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+        size += read;
+        if (size > maxRequestBytes) {
+          return false;
+        }
+        out.write(buffer, 0, read);
+      }
+    }
+    return true;
+  }
+
+  private void sendTooLarge(HttpExchange exchange) throws IOException {
+    sendError(exchange, 413, IssueType.TOOCOSTLY,
+        "Labcodeset file is larger than the maximum of " + maxRequestBytes + " bytes the service accepts");
+  }
+
+  private void handleStatus(HttpExchange exchange) throws IOException {
+    try {
+      String status = "Transforms: " + running.get() + " running, " + waiting.get() + " waiting, " + completed.sum() + " completed, "
+          + failed.sum() + " failed\n" + environment.getLookupMetrics().getSummary() + "\n";
+      send(exchange, 200, TEXT_PLAIN, status.getBytes(StandardCharsets.UTF_8));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void saveTerminologyCache() {
+    try {
+      environment.saveTerminologyCache();
+    } catch (IOException e) {
+      System.err.println("WARNING: Failed to save terminology cache " + e.getLocalizedMessage());
+    }
+  }
+
+  private void sendError(HttpExchange exchange, int status, IssueType type, String message) throws IOException {
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setSeverity(IssueSeverity.ERROR).setCode(type).setDiagnostics(message);
+    byte[] body = environment.getFhirContext().newJsonParser().encodeResourceToString(outcome).getBytes(StandardCharsets.UTF_8);
+    send(exchange, status, FHIR_JSON, body);
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  /**
+   * @return the declared length of the body of a request, or -1 if it did not declare one
+   */
+  private static long getContentLength(HttpExchange exchange) {
+    String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+    try {
+      return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    Map<String, String> params = new HashMap<>();
+    if (rawQuery != null) {
+      for (String param : rawQuery.split("&")) {
+        int equals = param.indexOf('=');
+        if (equals > 0) {
+          params.put(URLDecoder.decode(param.substring(0, equals), StandardCharsets.UTF_8),
+              URLDecoder.decode(param.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+      }
+    }
+    return params;
+  }
+
+  private static void deleteRecursively(Path dir) {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    } catch (IOException e) {
+      System.err.println("WARNING: Failed to delete transform directory " + dir + " - " + e.getLocalizedMessage());
+    }
+  }
+}
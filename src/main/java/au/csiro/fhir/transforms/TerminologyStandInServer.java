@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import au.csiro.fhir.transforms.utility.TerminologyClient;
+import au.csiro.fhir.transforms.utility.TerminologyStandIn;
+
+/**
+ * Command line interface to run a {@link TerminologyStandIn} until the process is stopped, to run
+ * the transformation against with -fhirEndpoint and -ucumValueSetUrl
+ */
+public class TerminologyStandInServer {
+
+  private static final String FIXTURE_DIR_PARAM = "fixtureDir";
+  private static final String PORT_PARAM = "port";
+  private static final String LATENCY_PARAM = "latency";
+  private static final String JITTER_PARAM = "jitter";
+  private static final String RECORD_FHIR_ENDPOINT_PARAM = "recordFhirEndpoint";
+  private static final String RECORD_UCUM_URL_PARAM = "recordUcumUrl";
+  private static final String UPLOAD_FAILURE_RATE_PARAM = "uploadFailureRate";
+
+  private static final int DEFAULT_PORT = 8080;
+
+  public static void main(String[] args) throws InterruptedException {
+    CommandLineParser parser = new DefaultParser();
+
+    Options options = new Options();
+    options.addOption(Option.builder(FIXTURE_DIR_PARAM).required(true).argName("directory").hasArg(true)
+        .desc("Location to replay recorded responses from, or to record responses to when recording").build());
+    options.addOption(Option.builder(PORT_PARAM).required(false).argName("port").hasArg(true)
+        .desc("Port to listen on - defaults to " + DEFAULT_PORT + " if not specified").build());
+    options.addOption(Option.builder(LATENCY_PARAM).required(false).argName("milliseconds").hasArg(true)
+        .desc("Time to delay each response by - defaults to 0 if not specified").build());
+    options.addOption(Option.builder(JITTER_PARAM).required(false).argName("milliseconds").hasArg(true)
+        .desc("Maximum time to randomly add to or subtract from the latency of each response - defaults to 0 if not specified").build());
+    options.addOption(Option.builder(RECORD_FHIR_ENDPOINT_PARAM).required(false).argName("fhir endpoint").hasArg(true).desc(
+        "FHIR terminology endpoint to forward requests without a recorded response to, recording the responses - responses are only replayed if not specified")
+        .build());
+    options.addOption(Option.builder(RECORD_UCUM_URL_PARAM).required(false).argName("url").hasArg(true)
+        .desc("URL of the common UCUM codes ValueSet to record when recording - defaults to " + TerminologyClient.DEFAULT_UCUM_VALUESET_URL
+            + " if not specified")
+        .build());
+    options.addOption(Option.builder(UPLOAD_FAILURE_RATE_PARAM).required(false).argName("fraction").hasArg(true)
+        .desc("Fraction of uploaded resources between 0 and 1 to answer 503 Service Unavailable - defaults to 0 if not specified").build());
+
+    try {
+      CommandLine line = parser.parse(options, args);
+      int port = Integer.parseInt(line.getOptionValue(PORT_PARAM, Integer.toString(DEFAULT_PORT)));
+      int latency = Integer.parseInt(line.getOptionValue(LATENCY_PARAM, "0"));
+      int jitter = Integer.parseInt(line.getOptionValue(JITTER_PARAM, "0"));
+      double uploadFailureRate = Double.parseDouble(line.getOptionValue(UPLOAD_FAILURE_RATE_PARAM, "0"));
+      if (port < 0 || latency < 0 || jitter < 0) {
+        throw new NumberFormatException("Port, latency and jitter must not be negative");
+      }
+      if (!(uploadFailureRate >= 0 && uploadFailureRate <= 1)) {
+        throw new NumberFormatException("Upload failure rate must be between 0 and 1");
+      }
+
+      TerminologyStandIn standIn = new TerminologyStandIn(new File(line.getOptionValue(FIXTURE_DIR_PARAM)), port, latency, jitter,
+          line.getOptionValue(RECORD_FHIR_ENDPOINT_PARAM),
+          line.getOptionValue(RECORD_UCUM_URL_PARAM, TerminologyClient.DEFAULT_UCUM_VALUESET_URL));
+      standIn.setUploadFailureRate(uploadFailureRate);
+      standIn.start();
+      System.out.println((line.hasOption(RECORD_FHIR_ENDPOINT_PARAM) ? "Recording" : "Replaying") + " terminology stand-in started with "
+          + "-fhirEndpoint " + standIn.getFhirEndpoint() + " -ucumValueSetUrl " + standIn.getUcumValueSetUrl());
+      Thread.currentThread().join();
+    } catch (ParseException | NumberFormatException e) {
+      System.err.println("Failed to parse arguments " + e.getLocalizedMessage());
+      HelpFormatter formatter = new HelpFormatter();
+      formatter.printHelp(120, "java -cp labcodeset-transforms-jar-with-dependencies.jar " + TerminologyStandInServer.class.getName(), "",
+          options, "", true);
+    } catch (IOException e) {
+      System.err.println("Failed to start terminology stand-in " + e.getLocalizedMessage());
+    }
+  }
+}
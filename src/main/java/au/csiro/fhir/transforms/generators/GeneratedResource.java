@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import org.hl7.fhir.r4.model.MetadataResource;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Generated resource with the name of the file to write it out to. The resource is encoded once,
+ * and the encoded JSON is used for its own file as well as for the Bundles it is part of.
+ */
+class GeneratedResource {
+
+  private final MetadataResource resource;
+  private final String filename;
+  private final String version;
+  private byte[] json;
+
+  GeneratedResource(MetadataResource resource, String filename) {
+    this(resource, filename, resource.getVersion());
+  }
+
+  GeneratedResource(MetadataResource resource, String filename, String version) {
+    this.resource = resource;
+    this.filename = filename;
+    this.version = version;
+  }
+
+  /**
+   * Encodes the resource as UTF-8 JSON straight into a byte buffer, rather than through an
+   * intermediate String
+   *
+   * @param parser {@link IParser} to encode the resource with
+   */
+  void encode(IParser parser) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8)) {
+      parser.encodeResourceToWriter(resource, writer);
+    } catch (IOException e) {
+      // not thrown writing to memory
+      throw new IllegalStateException(e);
+    }
+    json = buffer.toByteArray();
+  }
+
+  MetadataResource getResource() {
+    return resource;
+  }
+
+  /**
+   * @return the name of the file to write the resource out to
+   */
+  String getFilename() {
+    return String.format(filename, version);
+  }
+
+  /**
+   * @return the encoded JSON of the resource, or null if it has not been encoded
+   */
+  byte[] getJson() {
+    return json;
+  }
+
+  /**
+   * @return resource type, canonical URL and version identifying the resource
+   */
+  String getKey() {
+    return resource.fhirType() + " " + resource.getUrl() + "|" + resource.getVersion();
+  }
+}
@@ -5,35 +5,43 @@
  ******************************************************************************/
 package au.csiro.fhir.transforms.generators;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import org.apache.commons.io.FileUtils;
-import org.hl7.fhir.r4.model.Bundle;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.ConceptMap;
 import org.hl7.fhir.r4.model.MetadataResource;
-import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ValueSet;
 
-import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept.Materials.Material;
-import au.csiro.fhir.transform.xml.nl.labcodeset.MaterialDefinition;
-import au.csiro.fhir.transform.xml.nl.labcodeset.Publication;
-import au.csiro.fhir.transform.xml.nl.labcodeset.UnitDefinition;
-import au.csiro.fhir.transforms.utility.TerminologyClient;
+import au.csiro.fhir.transforms.generators.OutputDirectory.OutputFile;
+import au.csiro.fhir.transforms.utility.HttpTransport;
+import au.csiro.fhir.transforms.utility.JsonBundleWriter;
+import au.csiro.fhir.transforms.utility.JsonBundleWriter.Layout;
+import au.csiro.fhir.transforms.utility.LoincConceptProvider;
+import au.csiro.fhir.transforms.utility.LookupMetrics;
+import au.csiro.fhir.transforms.utility.PublicationIndex;
+import au.csiro.fhir.transforms.utility.PublicationIndex.IndexedLabConcept;
+import au.csiro.fhir.transforms.utility.ResourceUploader;
+import au.csiro.fhir.transforms.utility.ResourceUploader.Upload;
+import au.csiro.fhir.transforms.utility.SnomedDisplayProvider;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
-import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 
 /**
  * Main Labcodeset resource generation class that coordinates the specific transforms for LOINC,
@@ -42,6 +50,8 @@ import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 public class LabcodesetResourceGenerator {
 
   private static final String LABCODESET_BUNDLE_FILENAME = "Labcodeset-bundle-%s.json";
+  private static final String LABCODESET_CHANGES_FILENAME = "Labcodeset-changes-%s.json";
+  private static final String LABCODESET_CHANGES_REPORT_FILENAME = "Labcodeset-changes-%s.txt";
   private static final String MATERIAL_VS_FILENAME = "MaterialValueset-%s.json";
   private static final String MATERIAL_CM_FILENAME = "MaterialConceptMap-%s.json";
   private static final String OUTCOME_CM_FILENAME = "OutcomeConceptMap-%s.json";
@@ -52,152 +62,420 @@ public class LabcodesetResourceGenerator {
   private static final String UCUM_CS_FILENAME = "UcumCodeSystemFragment-%s.json";
   private static final String UCUM_CONCEPT_MAP_FILENAME = "UcumConceptMap-%s.json";
 
-  private final FhirContext ctx = FhirContext.forR4();
-  private final IParser fhirParser = ctx.newJsonParser().setPrettyPrint(true);
+  private final TransformEnvironment environment;
+  private final boolean ownsEnvironment;
+  private final FhirContext ctx;
+  private final IParser fhirParser;
+  private final OutputFormat outputFormat;
 
   private String loincVersion;
-  private Publication pub;
+  private PublicationIndex index;
+  private PreviousRelease previousRelease;
+  private final Set<String> incompleteConcepts = ConcurrentHashMap.newKeySet();
+  private PriorOutput priorOutput;
   private File outputDir;
   private String labcodesetVersion;
-  private Map<String, Material> materialMap = new HashMap<>();
-  private Map<String, UnitDefinition> unitMap = new HashMap<>();
 
-  private TerminologyClient terminologyClient;
+  private LookupMetrics lookupMetrics;
+  private ResourceUploader resourceUploader;
+  private LoincConceptProvider loincProvider;
+  private SnomedDisplayProvider snomedProvider;
 
   /**
+   * Creates a generator with its own {@link TransformEnvironment}, which is closed once the
+   * resources have been generated
+   *
    * @param labcodesetFile {@link File} containing the Labcodeset file to transform to FHIR resources
    * @param outputDir {@link File} representing the directory location to write out the resulting
    *        resources to
    * @param loincVersion LOINC version the Labcodeset file should be used with
    * @param fhirEndpoint FHIR terminology endpoint to be consulted for SNOMED CT and LOINC content
-   *        during the transformation
-   * @throws IOException
+   *        during the transformation, may be null if both loincDir and snomedDir are specified
+   * @param lookupBatchSize maximum number of code lookups to send to the FHIR endpoint in one batch
+   * @param lookupConcurrency maximum number of lookup requests to have in flight to the FHIR endpoint
+   * @param cacheDir directory to persist terminology lookup results and the common UCUM codes in
+   *        across runs, or null to not persist them
+   * @param loincDir directory containing an unpacked LOINC distribution to read LOINC details from
+   *        rather than the FHIR endpoint, or null to use the FHIR endpoint
+   * @param snomedDir directory containing an unpacked SNOMED CT Netherlands edition RF2 release to
+   *        read SNOMED CT display terms from rather than the FHIR endpoint, or null to use the FHIR
+   *        endpoint
+   * @param httpTransport {@link HttpTransport} to make all requests to the FHIR endpoint, token
+   *        endpoint and FHIR specification with
+   * @param ucumValueSetUrl URL to fetch the FHIR specification common UCUM codes ValueSet from
+   * @param previousBundle {@link File} containing the bundle of a previous run, next to its
+   *        fingerprints file, to reuse the output of unchanged lab concepts from, or null to transform
+   *        all lab concepts
+   * @param priorOutputDir directory containing the output of a previous run to write a transaction
+   *        bundle of only the new and changed resources against, or null to not write one
+   * @param outputFormat {@link OutputFormat} to write the resources and bundles in
+   * @param uploadEndpoint FHIR endpoint to upload the generated resources to, authorised with the
+   *        same bearer token as the FHIR endpoint if there is one, or null to not upload them
+   * @param uploadConcurrency maximum number of uploads to have in flight to the upload endpoint
+   * @throws IOException if the Labcodeset file cannot be parsed or the prior output cannot be read
    */
   public LabcodesetResourceGenerator(File labcodesetFile, File outputDir, String loincVersion, String fhirEndpoint, String tokenEndpoint,
-      String clientId, String clientSecret) throws IOException {
+      String clientId, String clientSecret, int lookupBatchSize, int lookupConcurrency, File cacheDir, File loincDir,
+      File snomedDir, HttpTransport httpTransport, String ucumValueSetUrl, File previousBundle,
+      File priorOutputDir, OutputFormat outputFormat, String uploadEndpoint, int uploadConcurrency) throws IOException {
+    this(new TransformEnvironment(fhirEndpoint, tokenEndpoint, clientId, clientSecret, uploadEndpoint != null, lookupBatchSize,
+        lookupConcurrency, cacheDir, loincDir, loincVersion, snomedDir, httpTransport, ucumValueSetUrl), true, labcodesetFile, outputDir,
+        loincVersion, previousBundle, priorOutputDir, outputFormat, uploadEndpoint, uploadConcurrency);
+  }
+
+  /**
+   * Creates a generator sharing a {@link TransformEnvironment} with other generators, so that it
+   * reuses the terminology already resolved by them. The environment is left open.
+   *
+   * @param environment {@link TransformEnvironment} to run the transformation in
+   * @param labcodesetFile {@link File} containing the Labcodeset file to transform to FHIR resources
+   * @param outputDir {@link File} representing the directory location to write out the resulting
+   *        resources to
+   * @param loincVersion LOINC version the Labcodeset file should be used with
+   * @param previousBundle {@link File} containing the bundle of a previous run, next to its
+   *        fingerprints file, to reuse the output of unchanged lab concepts from, or null to transform
+   *        all lab concepts
+   * @param priorOutputDir directory containing the output of a previous run to write a transaction
+   *        bundle of only the new and changed resources against, or null to not write one
+   * @param outputFormat {@link OutputFormat} to write the resources and bundles in
+   * @param uploadEndpoint FHIR endpoint to upload the generated resources to, authorised with the
+   *        bearer token of the environment if there is one, or null to not upload them
+   * @param uploadConcurrency maximum number of uploads to have in flight to the upload endpoint
+   * @throws IOException if the Labcodeset file cannot be parsed or the prior output cannot be read
+   * @throws IllegalArgumentException if the environment cannot resolve the LOINC version
+   */
+  public LabcodesetResourceGenerator(TransformEnvironment environment, File labcodesetFile, File outputDir, String loincVersion,
+      File previousBundle, File priorOutputDir, OutputFormat outputFormat, String uploadEndpoint, int uploadConcurrency)
+      throws IOException {
+    this(environment, false, labcodesetFile, outputDir, loincVersion, previousBundle, priorOutputDir, outputFormat, uploadEndpoint,
+        uploadConcurrency);
+  }
+
+  private LabcodesetResourceGenerator(TransformEnvironment environment, boolean ownsEnvironment, File labcodesetFile, File outputDir,
+      String loincVersion, File previousBundle, File priorOutputDir, OutputFormat outputFormat, String uploadEndpoint,
+      int uploadConcurrency) throws IOException {
+    this.environment = environment;
+    this.ownsEnvironment = ownsEnvironment;
+    this.ctx = environment.getFhirContext();
+    this.lookupMetrics = environment.getLookupMetrics();
     this.outputDir = outputDir;
     this.loincVersion = loincVersion;
-    IGenericClient fhirClient = ctx.newRestfulGenericClient(fhirEndpoint);
-    if (tokenEndpoint != null && clientId != null && clientSecret != null) {
-      BearerTokenAuthInterceptor authInterceptor =
-          new BearerTokenAuthInterceptor(TerminologyClient.getToken(tokenEndpoint, clientId, clientSecret));
-      fhirClient.registerInterceptor(authInterceptor);
+    this.outputFormat = outputFormat;
+    this.fhirParser = outputFormat.newParser(ctx);
+    this.loincProvider = environment.getLoincProvider(loincVersion);
+    this.snomedProvider = environment.getSnomedProvider();
+    if (priorOutputDir != null) {
+      // read before any output is written, the prior output may be in the output directory
+      this.priorOutput = PriorOutput.read(fhirParser, priorOutputDir, outputFormat);
+    }
+    if (uploadEndpoint != null) {
+      this.resourceUploader = new ResourceUploader(environment.getHttpTransport().getHttpClient(), uploadEndpoint,
+          environment.getBearerToken(), uploadConcurrency, ResourceUploader.DEFAULT_RETRIES, lookupMetrics);
     }
-    this.terminologyClient = new TerminologyClient(fhirClient);
 
-    JAXBContext context;
     try {
-      context = JAXBContext.newInstance(Publication.class);
-      pub = (Publication) context.createUnmarshaller().unmarshal(new FileReader(labcodesetFile));
-    } catch (JAXBException | FileNotFoundException e) {
-      System.err.println("Failed parsing Labcodeset file " + e.getLocalizedMessage());
-      System.exit(1);
+      index = PublicationIndex.read(labcodesetFile);
+    } catch (IOException e) {
+      throw new IOException("Failed parsing Labcodeset file " + e.getLocalizedMessage(), e);
     }
 
-    this.labcodesetVersion = pub.getEffectiveDate().split("-")[0];
+    this.labcodesetVersion = index.getLabcodesetVersion();
 
-    for (LabConcept concept : pub.getLabConcepts().getLabConcept()) {
-      for (Material material : concept.getMaterials().getMaterial()) {
-        materialMap.put(material.getCode(), material);
+    if (previousBundle != null) {
+      try {
+        previousRelease = PreviousRelease.read(ctx, previousBundle, loincVersion, loincProvider.getSource());
+        long reusable = index.getLabConcepts().stream().filter(previousRelease::isSupplementConceptReusable).count();
+        System.out.println("Reusing " + reusable + " of " + index.getLabConcepts().size() + " lab concepts from " + previousBundle);
+      } catch (IOException e) {
+        System.err.println("WARNING: Cannot reuse previous bundle, transforming all lab concepts - " + e.getLocalizedMessage());
       }
     }
 
-    for (UnitDefinition unit : pub.getUnits().getUnit()) {
-      unitMap.put(unit.getId(), unit);
+    prefetchTerminology();
+  }
+
+  /**
+   * Resolves every distinct LOINC code and SNOMED CT material code referenced by the Labcodeset up
+   * front, concurrently and in batches, so that the resource generators are served entirely from the
+   * {@link LoincConceptProvider} and {@link SnomedDisplayProvider} caches. LOINC codes of lab
+   * concepts reused from the previous release are not looked up.
+   */
+  private void prefetchTerminology() {
+    Set<String> loincCodes = index.getTranslatedLoincCodes();
+    if (previousRelease != null) {
+      loincCodes = index.getLabConcepts().stream()
+          .filter(labConcept -> labConcept.isTranslated() && !previousRelease.isSupplementConceptReusable(labConcept))
+          .map(IndexedLabConcept::getLoincNum)
+          .collect(Collectors.toCollection(LinkedHashSet::new));
     }
+    Map<String, String> materialDisplays = index.getMaterialDisplays();
+
+    long start = System.currentTimeMillis();
+    CompletableFuture
+        .allOf(loincProvider.lookupLoincAsync(loincCodes, loincVersion), snomedProvider.lookupSnomedAsync(materialDisplays)).join();
+    System.out.println("Resolved " + loincCodes.size() + " LOINC codes and " + materialDisplays.size() + " SNOMED CT material codes in "
+        + (System.currentTimeMillis() - start) + "ms");
   }
 
   /**
    * Runs the transformation process
+   *
+   * @throws IOException if an output file cannot be written, no output file is left partially
+   *         written, or if resources failed to upload
+   */
+  public void generateFhirResources() throws IOException {
+    generateFhirResources(Runnable::run, false);
+  }
+
+  /**
+   * Runs the transformation process, generating the LOINC, UCUM, Materials and Outcome resources
+   * concurrently on the passed {@link Executor} and building the concepts of the LOINC supplement
+   * concurrently. The resources are added to the bundle and written out in the same order as when
+   * run sequentially, regardless of the order they complete in, each family as soon as it and the
+   * families before it have completed. The resource files are written in parallel on the executor
+   * as well.
+   *
+   * @param executor {@link Executor} to run the generation of each family of resources and the
+   *        writing of the resource files on
+   * @throws IOException if an output file cannot be written, no output file is left partially
+   *         written, or if resources failed to upload
+   */
+  public void generateFhirResources(Executor executor) throws IOException {
+    generateFhirResources(executor, true);
+  }
+
+  /**
+   * @return the file the collection Bundle of the Labcodeset is written to
    */
-  public void generateFhirResources() {
-    Bundle bundle = new Bundle();
-    bundle.setType(BundleType.COLLECTION);
+  public File getBundleFile() {
+    return new File(outputDir, getBundleFilename());
+  }
+
+  private String getBundleFilename() {
+    return outputFormat.getBundleFilename(String.format(LABCODESET_BUNDLE_FILENAME, labcodesetVersion));
+  }
 
-    generateLoincResources(bundle);
+  private void generateFhirResources(Executor executor, boolean parallel) throws IOException {
+    OutputDirectory output = new OutputDirectory(outputDir, executor);
+    String bundleFilename = getBundleFilename();
+    String transactionFilename = outputFormat.getFilename(String.format(LABCODESET_CHANGES_FILENAME, labcodesetVersion));
+    PriorOutput.Changes changes = null;
+    int failedUploads = 0;
+
+    try (OutputFile bundleFile = output.create(bundleFilename);
+        JsonBundleWriter bundle = openBundle(bundleFile, BundleType.COLLECTION, outputFormat.getBundleLayout());
+        OutputFile transactionFile = priorOutput == null ? null : output.create(transactionFilename);
+        JsonBundleWriter transaction =
+            transactionFile == null ? null : openBundle(transactionFile, BundleType.TRANSACTION, outputFormat.getTransactionLayout())) {
+      changes = priorOutput == null ? null : priorOutput.compareTo(transaction);
+      try {
+        List<CompletableFuture<List<GeneratedResource>>> families = Arrays.asList(
+            CompletableFuture.supplyAsync(() -> generateLoincResources(parallel), executor),
+            CompletableFuture.supplyAsync(this::generateUcumResources, executor),
+            CompletableFuture.supplyAsync(this::generateMaterialResources, executor),
+            CompletableFuture.supplyAsync(this::generateOutcomeResources, executor));
+
+        List<CompletableFuture<String>> writes = new ArrayList<>();
+        List<CompletableFuture<Upload>> uploads = new ArrayList<>();
+        for (CompletableFuture<List<GeneratedResource>> family : families) {
+          List<GeneratedResource> resources = join(family);
+          // removed from the family once written, so the future does not keep it reachable
+          while (!resources.isEmpty()) {
+            GeneratedResource generated = resources.remove(0);
+            generated.encode(fhirParser);
+            writes.add(outputResource(output, generated));
+            bundle.addEntry(generated.getJson());
+            boolean changed = changes == null || changes.add(generated);
+            if (resourceUploader != null && changed) {
+              MetadataResource resource = generated.getResource();
+              uploads.add(resourceUploader.uploadAsync(resource.fhirType(), resource.getUrl(), resource.getVersion(), generated.getJson()));
+            }
+          }
+        }
+        for (CompletableFuture<String> write : writes) {
+          System.out.println(join(write));
+        }
+        failedUploads = reportUploads(uploads);
+      } finally {
+        if (ownsEnvironment) {
+          try {
+            environment.close();
+          } catch (IOException e) {
+            System.err.println("WARNING: Failed to save terminology cache " + e.getLocalizedMessage());
+          }
+        }
+        if (resourceUploader != null) {
+          resourceUploader.close();
+        }
+        System.out.println(lookupMetrics.getSummary());
+      }
 
-    generateUcumResources(bundle);
+      bundle.finish();
+      System.out.println(getOutputMessage(bundleFilename, bundleFile.commit()));
+      if (transaction != null) {
+        transaction.finish();
+        System.out.println(getOutputMessage(transactionFilename, transactionFile.commit()));
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
 
-    generateMaterialResources(bundle);
+    String fingerprintsFilename = PreviousRelease.getFingerprintsFilename(bundleFilename);
+    try {
+      boolean written = output.write(fingerprintsFilename,
+          out -> PreviousRelease.writeFingerprints(out, index, loincVersion, loincProvider.getSource(), incompleteConcepts));
+      System.out.println(getOutputMessage(fingerprintsFilename, written));
+    } catch (IOException e) {
+      System.err.println("WARNING: Failed to write fingerprints file, the next run cannot reuse this output - " + e.getLocalizedMessage());
+    }
 
-    generateOutcomeResources(bundle);
+    if (changes != null) {
+      outputChangeReport(output, changes);
+    }
+    if (failedUploads > 0) {
+      throw new IOException(failedUploads + " resources failed to upload, the output files were written");
+    }
+  }
 
-    outputResource(bundle, LABCODESET_BUNDLE_FILENAME, labcodesetVersion);
+  /**
+   * Waits for the uploads to complete, reporting the time each resource took to upload
+   *
+   * @return the number of resources that failed to upload
+   */
+  private int reportUploads(List<CompletableFuture<Upload>> uploads) {
+    if (resourceUploader == null) {
+      return 0;
+    }
+    int failed = 0;
+    for (CompletableFuture<Upload> future : uploads) {
+      try {
+        Upload upload = future.join();
+        System.out.println("\nUploaded " + upload.getDescription() + " in " + upload.getMillis() + "ms, response code "
+            + upload.getStatus() + (upload.getAttempts() > 1 ? " after " + upload.getAttempts() + " attempts" : ""));
+      } catch (CompletionException e) {
+        Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+        System.err.println(cause.getLocalizedMessage());
+        failed++;
+      }
+    }
+    System.out.println(resourceUploader.getSummary());
+    return failed;
   }
 
-  private void generateOutcomeResources(Bundle bundle) {
-    OutcomeResourceGenerator outcomeResourceGenerator = new OutcomeResourceGenerator(labcodesetVersion, loincVersion, terminologyClient);
+  private void outputChangeReport(OutputDirectory output, PriorOutput.Changes changes) throws IOException {
+    String filename = String.format(LABCODESET_CHANGES_REPORT_FILENAME, labcodesetVersion);
+    byte[] report = changes.getReport().getBytes(StandardCharsets.UTF_8);
+    System.out.println(getOutputMessage(filename, output.write(filename, out -> out.write(report))));
+    System.out.println("Changes since prior output: " + changes.getSummary());
+  }
 
-    ConceptMap outcomeConceptMap = outcomeResourceGenerator.createOutcomesConceptMap(pub);
+  private List<GeneratedResource> generateOutcomeResources() {
+    OutcomeResourceGenerator outcomeResourceGenerator = new OutcomeResourceGenerator(labcodesetVersion, loincVersion);
+    List<GeneratedResource> resources = new ArrayList<>();
 
-    bundle.addEntry().setResource(outcomeConceptMap);
-    outputResource(outcomeConceptMap, OUTCOME_CM_FILENAME);
+    ConceptMap outcomeConceptMap = outcomeResourceGenerator.createOutcomesConceptMap(index);
+    resources.add(new GeneratedResource(outcomeConceptMap, OUTCOME_CM_FILENAME));
 
-    Collection<ValueSet> outcomeValeSets = outcomeResourceGenerator.createPublicationOutcomeValueSets(pub);
+    Collection<ValueSet> outcomeValeSets = outcomeResourceGenerator.createPublicationOutcomeValueSets(index);
 
-    outcomeValeSets.forEach(vs -> {
-      bundle.addEntry().setResource(vs);
-      outputResource(vs, OUCTOME_VS_FILENAME_PREFIX + "_" + vs.getId() + "-%s.json");
-    });
+    outcomeValeSets.forEach(vs -> resources.add(new GeneratedResource(vs, OUCTOME_VS_FILENAME_PREFIX + "_" + vs.getId() + "-%s.json")));
+    return resources;
   }
 
-  private void generateMaterialResources(Bundle bundle) {
-    MaterialsResourceGenerator materialsResourceGenerator =
-        new MaterialsResourceGenerator(labcodesetVersion, loincVersion, terminologyClient, materialMap);
+  private List<GeneratedResource> generateMaterialResources() {
+    MaterialsResourceGenerator materialsResourceGenerator = new MaterialsResourceGenerator(labcodesetVersion, loincVersion, snomedProvider);
+    List<GeneratedResource> resources = new ArrayList<>();
 
-    ValueSet materialsValueSet = materialsResourceGenerator.createMaterialsValueSet(pub);
-    bundle.addEntry().setResource(materialsValueSet);
-    outputResource(materialsValueSet, MATERIAL_VS_FILENAME);
+    ValueSet materialsValueSet = materialsResourceGenerator.createMaterialsValueSet(index);
+    resources.add(new GeneratedResource(materialsValueSet, MATERIAL_VS_FILENAME));
 
-    ConceptMap materialsConceptMap = materialsResourceGenerator.createMaterialsConceptMap(pub);
-    bundle.addEntry().setResource(materialsConceptMap);
-    outputResource(materialsConceptMap, MATERIAL_CM_FILENAME);
+    ConceptMap materialsConceptMap = materialsResourceGenerator.createMaterialsConceptMap(index);
+    resources.add(new GeneratedResource(materialsConceptMap, MATERIAL_CM_FILENAME));
+    return resources;
   }
 
-  private void generateUcumResources(Bundle bundle) {
-    UcumResourceGenerator ucumResourceGenerator = new UcumResourceGenerator(labcodesetVersion, loincVersion, unitMap);
-
-    CodeSystem ucumCodeSystem = ucumResourceGenerator.createUcumCodeSystem(pub);
-    outputResource(ucumCodeSystem, UCUM_CS_FILENAME);
-    bundle.addEntry().setResource(ucumCodeSystem);
-    ValueSet ucumValueSet = ucumResourceGenerator.createUcumValueSet(pub);
-    bundle.addEntry().setResource(ucumValueSet);
-    outputResource(ucumValueSet, UCUM_VS_FILENAME, labcodesetVersion);
-    ConceptMap ucumConceptMap = ucumResourceGenerator.createUcumMap(pub);
-    bundle.addEntry().setResource(ucumConceptMap);
-    outputResource(ucumConceptMap, UCUM_CONCEPT_MAP_FILENAME);
+  private List<GeneratedResource> generateUcumResources() {
+    ValueSet commonUcumCodes;
+    try {
+      commonUcumCodes = environment.getCommonUcumCodes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          new IOException("Unable to get common UCUM codes from the FHIR spec due to " + e.getLocalizedMessage(), e));
+    }
+    UcumResourceGenerator ucumResourceGenerator = new UcumResourceGenerator(labcodesetVersion, loincVersion, commonUcumCodes);
+    List<GeneratedResource> resources = new ArrayList<>();
+
+    CodeSystem ucumCodeSystem = ucumResourceGenerator.createUcumCodeSystem(index);
+    resources.add(new GeneratedResource(ucumCodeSystem, UCUM_CS_FILENAME));
+    ValueSet ucumValueSet = ucumResourceGenerator.createUcumValueSet(index);
+    resources.add(new GeneratedResource(ucumValueSet, UCUM_VS_FILENAME, labcodesetVersion));
+    ConceptMap ucumConceptMap = ucumResourceGenerator.createUcumMap(index);
+    resources.add(new GeneratedResource(ucumConceptMap, UCUM_CONCEPT_MAP_FILENAME));
+    return resources;
   }
 
-  private void generateLoincResources(Bundle bundle) {
+  private List<GeneratedResource> generateLoincResources(boolean parallel) {
     LoincResourceGenerator loincResourceGenerator =
-        new LoincResourceGenerator(labcodesetVersion, loincVersion, terminologyClient, unitMap);
+        new LoincResourceGenerator(labcodesetVersion, loincVersion, loincProvider, snomedProvider, parallel, previousRelease);
+    List<GeneratedResource> resources = new ArrayList<>();
 
-    CodeSystem loincSupplement = loincResourceGenerator.createLoincCodeSystemSupplement(pub);
-    bundle.addEntry().setResource(loincSupplement);
-    outputResource(loincSupplement, LOINC_CS_SUPPLEMENT_FILENAME);
+    CodeSystem loincSupplement = loincResourceGenerator.createLoincCodeSystemSupplement(index);
+    incompleteConcepts.addAll(loincResourceGenerator.getIncompleteConcepts());
+    resources.add(new GeneratedResource(loincSupplement, LOINC_CS_SUPPLEMENT_FILENAME));
 
-    ValueSet loincValueSet = loincResourceGenerator.createValueSetPublication(pub);
-    bundle.addEntry().setResource(loincValueSet);
-    outputResource(loincValueSet, LOINC_VS_FILENAME);
+    ValueSet loincValueSet = loincResourceGenerator.createValueSetPublication(index);
+    resources.add(new GeneratedResource(loincValueSet, LOINC_VS_FILENAME));
+    return resources;
   }
 
-
-  private void outputResource(MetadataResource resource, String filename) {
-    outputResource(resource, filename, resource.getVersion());
+  /**
+   * @param name name of a file in an output directory
+   * @return true if the file is a collection or transaction Bundle written by a transformation
+   */
+  static boolean isBundleFile(String name) {
+    return name.startsWith(getFilenamePrefix(LABCODESET_BUNDLE_FILENAME))
+        || name.startsWith(getFilenamePrefix(LABCODESET_CHANGES_FILENAME));
   }
 
-  private void outputResource(Resource resource, String filename, String version) {
-    File file = new File(outputDir, String.format(filename, version));
-    FileUtils.deleteQuietly(file);
+  private static String getFilenamePrefix(String filenameFormat) {
+    return filenameFormat.substring(0, filenameFormat.indexOf("%s"));
+  }
 
+  private static <T> T join(CompletableFuture<T> future) {
     try {
-      FileWriter fileWriter = new FileWriter(file);
-      fileWriter.write(fhirParser.encodeResourceToString(resource));
-      fileWriter.close();
-    } catch (IOException e) {
-      System.err.println("Failed to write output file " + file + " due to " + e.getLocalizedMessage());
-      System.exit(1);
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
     }
-    System.out.println("\nOutput to release file : " + file.getName());
+  }
+
+  /**
+   * Opens a Bundle that is streamed to an {@link OutputFile} as the resources are generated, which
+   * is only moved into place once committed so that an incomplete Bundle is never left behind
+   */
+  private JsonBundleWriter openBundle(OutputFile file, BundleType type, Layout layout) throws IOException {
+    return new JsonBundleWriter(new BufferedOutputStream(outputFormat.wrap(file.getOutputStream())), type, layout);
+  }
+
+  /**
+   * Writes the resource file on the executor of the {@link OutputDirectory}
+   *
+   * @return future completing with the message to report the file with
+   */
+  private CompletableFuture<String> outputResource(OutputDirectory output, GeneratedResource generated) {
+    String filename = outputFormat.getFilename(generated.getFilename());
+    byte[] json = generated.getJson();
+    return output.writeAsync(filename, out -> {
+      try (OutputStream formatted = outputFormat.wrap(out)) {
+        formatted.write(json);
+      }
+    }).thenApply(written -> getOutputMessage(filename, written));
+  }
+
+  private static String getOutputMessage(String filename, boolean written) {
+    return "\nOutput to release file : " + filename + (written ? "" : " (unchanged)");
   }
 }
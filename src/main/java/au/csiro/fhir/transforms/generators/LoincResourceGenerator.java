@@ -10,6 +10,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
@@ -21,23 +24,19 @@ import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
 import org.hl7.fhir.r4.model.Extension;
-import org.hl7.fhir.r4.model.Parameters;
-import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ValueSet.ConceptReferenceComponent;
 import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
 import org.hl7.fhir.r4.model.ValueSet.ValueSetComposeComponent;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept.Materials;
 import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept.Materials.Material;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept.Units;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LoincAxis;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LoincConcept;
-import au.csiro.fhir.transform.xml.nl.labcodeset.Publication;
 import au.csiro.fhir.transform.xml.nl.labcodeset.UnitDefinition;
 import au.csiro.fhir.transforms.utility.Constants;
-import au.csiro.fhir.transforms.utility.TerminologyClient;
+import au.csiro.fhir.transforms.utility.LoincConceptParts;
+import au.csiro.fhir.transforms.utility.LoincConceptProvider;
+import au.csiro.fhir.transforms.utility.PublicationIndex;
+import au.csiro.fhir.transforms.utility.PublicationIndex.IndexedLabConcept;
+import au.csiro.fhir.transforms.utility.SnomedDisplayProvider;
 
 /**
  * Class that encapsulates the logic used to generate LOINC related FHIR resources for Labcodeset
@@ -52,7 +51,7 @@ public class LoincResourceGenerator {
   private static final String LABCODESET_SUPPLEMENT_CS_TITLE = "Nederlandse Labcodeset LOINC Supplement";
   private static final String LABCODESET_SUPPLEMENT_CS_DESCRIPTION =
       "Supplement to LOINC incorporating Dutch translations and Nederlandse Labcodeset additional properties";
-  private static final String LABCODESET_SUPPLEMENT_CS_URI = Constants.LABCODESET_URI_PREFIX + "/cs/labconcepts";
+  static final String LABCODESET_SUPPLEMENT_CS_URI = Constants.LABCODESET_URI_PREFIX + "/cs/labconcepts";
 
   private static final String LOINC_COMPONENT = "COMPONENT";
   private static final String LOINC_PROPERTY = "PROPERTY";
@@ -67,32 +66,52 @@ public class LoincResourceGenerator {
   private static final String LABCODESET_MATERIAL_PROPERTY = "MATERIAL";
   private static final String LABCODESET_UNITS_PROPERTY = "EXAMPLE_UCUM_UNITS";
 
+  private static final String SYNONYM_CODE = "900000000000013009";
+
   private String labcodesetVersion;
   private String loincVersion;
-  private TerminologyClient terminologyClient;
-  private Map<String, UnitDefinition> unitMap;
+  private LoincConceptProvider loincProvider;
+  private SnomedDisplayProvider snomedProvider;
+  private boolean parallel;
+  private PreviousRelease previousRelease;
+
+  // property codes, values and Codings repeated across the concepts of the supplement are created
+  // once for the run and shared by the concepts, so none of them may be modified once created
+  private final Map<String, CodeType> propertyCodes = new ConcurrentHashMap<>();
+  private final Map<String, StringType> stringValues = new ConcurrentHashMap<>();
+  private final Map<String, Coding> codings = new ConcurrentHashMap<>();
+  private final Coding synonymUse = new Coding(Constants.SCT_CS_URI, SYNONYM_CODE, "Synonym");
+
+  private final Set<String> incompleteConcepts = ConcurrentHashMap.newKeySet();
 
   /**
    * @param labcodesetVersion version of the Labcodeset being transformed
    * @param loincVersion LOINC version the Labcodeset file should be used with
-   * @param terminologyClient {@link TerminologyClient} that can be used to lookup details of LOINC
+   * @param loincProvider {@link LoincConceptProvider} that can be used to lookup details of LOINC
    *        codes
-   * @param unitMap Map of the unit references and their details in the Labcodeset file
+   * @param snomedProvider {@link SnomedDisplayProvider} that can be used to lookup display terms of
+   *        SNOMED CT codes
+   * @param parallel true to build the concepts of the supplement concurrently on the common
+   *        {@link java.util.concurrent.ForkJoinPool}
+   * @param previousRelease {@link PreviousRelease} to reuse the concepts of unchanged lab concepts
+   *        from, or null to build all concepts
    */
-  public LoincResourceGenerator(String labcodesetVersion, String loincVersion, TerminologyClient terminologyClient,
-      Map<String, UnitDefinition> unitMap) {
+  public LoincResourceGenerator(String labcodesetVersion, String loincVersion, LoincConceptProvider loincProvider,
+      SnomedDisplayProvider snomedProvider, boolean parallel, PreviousRelease previousRelease) {
     this.labcodesetVersion = labcodesetVersion;
     this.loincVersion = loincVersion;
-    this.terminologyClient = terminologyClient;
-    this.unitMap = unitMap;
+    this.loincProvider = loincProvider;
+    this.snomedProvider = snomedProvider;
+    this.parallel = parallel;
+    this.previousRelease = previousRelease;
   }
 
   /**
-   * @param pub Parsed Labcodeset XML object
+   * @param index {@link PublicationIndex} of the Labcodeset
    * @return a {@link CodeSystem} object containing the generated supplement to LOINC for the passed
    *         Labcodeset version
    */
-  public CodeSystem createLoincCodeSystemSupplement(Publication pub) {
+  public CodeSystem createLoincCodeSystemSupplement(PublicationIndex index) {
     CodeSystem codeSystem = new CodeSystem();
     codeSystem.setId("labconcepts");
     codeSystem.setUrl(LABCODESET_SUPPLEMENT_CS_URI).setDescription(LABCODESET_SUPPLEMENT_CS_DESCRIPTION).setName("Labconcepts")
@@ -115,26 +134,98 @@ public class LoincResourceGenerator {
     codeSystem.addProperty(createProperty(LOINC_PROPERTY, "Labcodeset translation of LOINC PROPERTY", PropertyType.CODING));
     codeSystem.addProperty(createProperty(LOINC_COMPONENT, "Labcodeset translation of LOINC COMPONENT", PropertyType.CODING));
 
-    List<ConceptDefinitionComponent> concepts = new ArrayList<CodeSystem.ConceptDefinitionComponent>();
+    Stream<IndexedLabConcept> labConcepts = parallel ? index.getLabConcepts().parallelStream() : index.getLabConcepts().stream();
+    List<SupplementConcept> supplementConcepts = labConcepts.map(this::createSupplementConcept).collect(Collectors.toList());
 
+    // each LOINC part translation is added once, ahead of the first lab concept referencing it
+    List<ConceptDefinitionComponent> concepts = new ArrayList<CodeSystem.ConceptDefinitionComponent>();
     Set<String> processedLoincParts = new HashSet<>();
-    for (LabConcept labConcept : pub.getLabConcepts().getLabConcept()) {
-      ConceptDefinitionComponent concept = new ConceptDefinitionComponent();
-      concept.addProperty(
-          new ConceptPropertyComponent(new CodeType(LABCODESET_STATUS_PROPERTY), new StringType(labConcept.getStatus().value())));
+    for (SupplementConcept supplementConcept : supplementConcepts) {
+      for (int i = 0; i < supplementConcept.partCodes.length; i++) {
+        String partCode = supplementConcept.partCodes[i];
+        if (partCode != null && processedLoincParts.add(partCode)) {
+          ConceptDefinitionComponent loincPartTranslation = new ConceptDefinitionComponent();
+          loincPartTranslation.setCode(partCode);
+          loincPartTranslation.setDisplay(supplementConcept.labConcept.getAxisTranslation(i));
+          concepts.add(loincPartTranslation);
+        }
+      }
+      concepts.add(supplementConcept.concept);
+    }
+    codeSystem.setConcept(concepts);
+
+    return codeSystem;
+  }
 
-      setLoincConceptProperties(labConcept.getLoincConcept(), concept, concepts, processedLoincParts);
+  /**
+   * Creates the supplement concept for a lab concept, independently of all other lab concepts so
+   * that lab concepts can be processed concurrently. The property codes, values and Codings of the
+   * concept are shared with the other concepts, so are replaced rather than modified.
+   */
+  private SupplementConcept createSupplementConcept(IndexedLabConcept labConcept) {
+    ConceptDefinitionComponent previous = previousRelease == null ? null : previousRelease.getSupplementConcept(labConcept);
+    if (previous != null) {
+      refreshMaterialDisplays(labConcept.getMaterials(), previous);
+      return new SupplementConcept(labConcept, previous, getPartCodes(previous));
+    }
 
-      setMaterialProperties(labConcept.getMaterials(), concept);
+    ConceptDefinitionComponent concept = new ConceptDefinitionComponent();
+    concept.addProperty(new ConceptPropertyComponent(getPropertyCode(LABCODESET_STATUS_PROPERTY), getStringValue(labConcept.getStatus())));
 
-      setUnitProperties(labConcept.getUnits(), concept);
+    String[] partCodes = new String[LoincConceptParts.AXES.size()];
+    setLoincConceptProperties(labConcept, concept, partCodes);
 
-      concepts.add(concept);
+    setMaterialProperties(labConcept.getMaterials(), concept);
+
+    setUnitProperties(labConcept, concept);
+
+    return new SupplementConcept(labConcept, concept, partCodes);
+  }
 
+  /**
+   * @return the LOINC part codes of the axis properties of a previously generated concept, in the
+   *         order of {@link LoincConceptParts#AXES}
+   */
+  private String[] getPartCodes(ConceptDefinitionComponent concept) {
+    String[] partCodes = new String[LoincConceptParts.AXES.size()];
+    for (ConceptPropertyComponent property : concept.getProperty()) {
+      int axis = LoincConceptParts.AXES.indexOf(property.getCode());
+      if (axis >= 0 && property.getValue() instanceof Coding) {
+        partCodes[axis] = ((Coding) property.getValue()).getCode().intern();
+      }
     }
-    codeSystem.setConcept(concepts);
+    return partCodes;
+  }
 
-    return codeSystem;
+  /**
+   * Replaces the material properties of a previously generated concept with the shared material
+   * Codings, as their SNOMED CT display terms may have changed in SNOMED CT while the lab concept
+   * has not
+   */
+  private void refreshMaterialDisplays(List<Material> materials, ConceptDefinitionComponent concept) {
+    int i = 0;
+    for (ConceptPropertyComponent property : concept.getProperty()) {
+      if (LABCODESET_MATERIAL_PROPERTY.equals(property.getCode()) && property.getValue() instanceof Coding && i < materials.size()) {
+        property.setValue(getMaterialCoding(materials.get(i++)));
+      }
+    }
+  }
+
+  private CodeType getPropertyCode(String name) {
+    return propertyCodes.computeIfAbsent(name, CodeType::new);
+  }
+
+  private StringType getStringValue(String value) {
+    return stringValues.computeIfAbsent(value, StringType::new);
+  }
+
+  private Coding getCoding(String system, String code, String display) {
+    return codings.computeIfAbsent(system + '|' + code + '|' + display, key -> new Coding(system, code, display));
+  }
+
+  private Coding getMaterialCoding(Material material) {
+    String code = material.getCode().toString();
+    return getCoding(Constants.SCT_CS_URI, code, snomedProvider.getSnomedDisplay(code, material.getDisplayName()));
   }
 
   private PropertyComponent createProperty(String name, String desc, PropertyType type) {
@@ -143,112 +234,85 @@ public class LoincResourceGenerator {
     return propertyComponent;
   }
 
-  private void setUnitProperties(Units units, ConceptDefinitionComponent concept) {
-    if (units != null && units.getUnit() != null) {
-      UnitDefinition unit = unitMap.get(units.getUnit().getRef());
+  private void setUnitProperties(IndexedLabConcept labConcept, ConceptDefinitionComponent concept) {
+    if (labConcept.getUnitRef() != null) {
+      UnitDefinition unit = labConcept.getUnit();
       if (unit != null) {
-        concept.addProperty(new ConceptPropertyComponent(new CodeType(LABCODESET_UNITS_PROPERTY),
-            new Coding(Constants.UCUM_CS_URI, unit.getRm().toString(), unit.getNlname().toString())));
+        concept.addProperty(new ConceptPropertyComponent(getPropertyCode(LABCODESET_UNITS_PROPERTY),
+            getCoding(Constants.UCUM_CS_URI, unit.getRm().toString(), unit.getNlname().toString())));
       } else {
-        System.err.println("Could not find unit for reference " + units.getUnit().getRef() + " - omitting this property!");
+        System.err.println("Could not find unit for reference " + labConcept.getUnitRef() + " - omitting this property!");
       }
     }
   }
 
-  private void setMaterialProperties(Materials materials, ConceptDefinitionComponent concept) {
-    if (materials != null && materials.getMaterial() != null) {
-      for (Material material : materials.getMaterial()) {
-        concept.addProperty(new ConceptPropertyComponent(new CodeType(LABCODESET_MATERIAL_PROPERTY),
-            new Coding(Constants.SCT_CS_URI, material.getCode().toString(),
-                terminologyClient.getSnomedDisplay(material.getCode().toString(), material.getDisplayName()))));
-      }
+  private void setMaterialProperties(List<Material> materials, ConceptDefinitionComponent concept) {
+    for (Material material : materials) {
+      concept.addProperty(new ConceptPropertyComponent(getPropertyCode(LABCODESET_MATERIAL_PROPERTY), getMaterialCoding(material)));
     }
   }
 
-  private void setLoincConceptProperties(LoincConcept loincConcept, ConceptDefinitionComponent concept,
-      List<ConceptDefinitionComponent> concepts, Set<String> processedLoincParts) {
-    concept.setCode(loincConcept.getLoincNum());
-    LoincConcept translation = loincConcept.getTranslation();
+  private void setLoincConceptProperties(IndexedLabConcept labConcept, ConceptDefinitionComponent concept, String[] partCodes) {
+    concept.setCode(labConcept.getLoincNum());
 
-    if (translation == null) {
-      System.err.println("No translation for " + loincConcept.getLoincNum());
+    if (!labConcept.isTranslated()) {
+      System.err.println("No translation for " + labConcept.getLoincNum());
     } else {
-      if (translation.getLongName() != null) {
-        concept.setDisplay(translation.getLongName().getValue());
-        concept.addDesignation().setLanguage("en").setValue(loincConcept.getLongName().getValue())
-            .setUse(new Coding(Constants.SCT_CS_URI, "900000000000013009", "Synonym"));
+      if (labConcept.getTranslatedLongName() != null) {
+        concept.setDisplay(labConcept.getTranslatedLongName());
+        concept.addDesignation().setLanguage("en").setValue(labConcept.getLongName())
+            .setUse(synonymUse);
       } else {
-        concept.setDisplay(loincConcept.getLongName().getValue());
-        System.err.println("No translated long name for " + loincConcept.getLoincNum());
+        concept.setDisplay(labConcept.getLongName());
+        System.err.println("No translated long name for " + labConcept.getLoincNum());
       }
 
-      setOptionalAxisStringProperty(concept, translation.getOrderObs(), LOINC_ORDER_OBS);
-      setOptionalAxisStringProperty(concept, translation.getClazz(), LOINC_CLASS);
-
-      Parameters param = terminologyClient.getLoincConcept(concept.getCode(), loincVersion);
-
-      for (ParametersParameterComponent parameter : param.getParameter()) {
-        if (parameter.getName().equals("property") && parameter.getPart().size() == 2) {
-          ParametersParameterComponent propertyName = parameter.getPart().get(0);
-          ParametersParameterComponent propertyValue = parameter.getPart().get(1);
-
-          LoincAxis axis = null;
-          switch (propertyName.getValue().toString()) {
-            case LOINC_METHOD_TYP:
-              axis = translation.getMethod();
-              break;
-            case LOINC_TIME_ASPCT:
-              axis = translation.getTiming();
-              break;
-            case LOINC_SYSTEM:
-              axis = translation.getSystem();
-              break;
-            case LOINC_SCALE_TYP:
-              axis = translation.getScale();
-              break;
-            case LOINC_PROPERTY:
-              axis = translation.getProperty();
-              break;
-            case LOINC_COMPONENT:
-              axis = translation.getComponent();
-              break;
-            default:
-              break;
-          }
-          if (propertyValue.getValue() != null && axis != null) {
-            concept.addProperty(new ConceptPropertyComponent(new CodeType(propertyName.getValue().toString()),
-                new Coding(Constants.LOINC_CS_URI, propertyValue.getValue().toString(), axis.getValue())));
-
-            if (!processedLoincParts.contains(propertyValue.getValue().toString())) {
-              ConceptDefinitionComponent loincPartTranslation = new ConceptDefinitionComponent();
-              loincPartTranslation.setCode(propertyValue.getValue().toString());
-              loincPartTranslation.setDisplay(axis.getValue());
-              concepts.add(loincPartTranslation);
-              processedLoincParts.add(propertyValue.getValue().toString());
-            }
-          } else if (propertyValue.getValue() == null && axis != null) {
-            System.err.println("Not setting translation " + axis.getValue() + " for property " + propertyName.getValue().toString() + " of "
-                + loincConcept.getLoincNum()
-                + " - LOINC part code cannot be retrieved for LOINC code, does this property exist on the base LOINC code?");
-          }
+      setOptionalAxisStringProperty(concept, labConcept.getOrderObs(), LOINC_ORDER_OBS);
+      setOptionalAxisStringProperty(concept, labConcept.getClazz(), LOINC_CLASS);
+
+      LoincConceptParts parts = loincProvider.getLoincConcept(concept.getCode(), loincVersion);
+
+      for (int i = 0; i < LoincConceptParts.AXES.size(); i++) {
+        String propertyName = LoincConceptParts.AXES.get(i);
+        String partCode = parts.get(i);
+        String axisTranslation = labConcept.getAxisTranslation(i);
+
+        if (partCode != null && axisTranslation != null) {
+          concept.addProperty(
+              new ConceptPropertyComponent(getPropertyCode(propertyName), getCoding(Constants.LOINC_CS_URI, partCode, axisTranslation)));
+          partCodes[i] = partCode;
+        } else if (partCode == null && axisTranslation != null) {
+          incompleteConcepts.add(labConcept.getLoincNum());
+          System.err.println("Not setting translation " + axisTranslation + " for property " + propertyName + " of "
+              + labConcept.getLoincNum()
+              + " - LOINC part code cannot be retrieved for LOINC code, does this property exist on the base LOINC code?");
         }
       }
     }
   }
 
 
-  private void setOptionalAxisStringProperty(ConceptDefinitionComponent concept, LoincAxis axis, String propertyName) {
-    if (axis != null) {
-      concept.addProperty(new ConceptPropertyComponent(new CodeType(propertyName), new StringType(axis.getValue())));
+  /**
+   * @return the LOINC codes of the lab concepts built by
+   *         {@link #createLoincCodeSystemSupplement(PublicationIndex)} that are missing the
+   *         translation of an axis because the LOINC part code could not be retrieved
+   */
+  public Set<String> getIncompleteConcepts() {
+    return incompleteConcepts;
+  }
+
+  private void setOptionalAxisStringProperty(ConceptDefinitionComponent concept, String axisTranslation, String propertyName) {
+    if (axisTranslation != null) {
+      concept.addProperty(new ConceptPropertyComponent(getPropertyCode(propertyName), getStringValue(axisTranslation)));
     }
   }
 
   /**
-   * @param pub Parsed Labcodeset XML object
+   * @param index {@link PublicationIndex} of the Labcodeset
    * @return a {@link ValueSet} object containing the unique set of LOINC codes referenced by
    *         Labcodeset
    */
-  public ValueSet createValueSetPublication(Publication pub) {
+  public ValueSet createValueSetPublication(PublicationIndex index) {
 
     ValueSet valueSet = new ValueSet();
     String identifier = "Labconcepts" + labcodesetVersion;
@@ -265,10 +329,10 @@ public class LoincResourceGenerator {
     ConceptSetComponent conceptSet = component.addInclude();
     conceptSet.setSystem(Constants.LOINC_CS_URI);
     conceptSet.setVersion(loincVersion);
-    for (LabConcept labConcept : pub.getLabConcepts().getLabConcept()) {
+    for (IndexedLabConcept labConcept : index.getLabConcepts()) {
       ConceptReferenceComponent con = new ConceptReferenceComponent();
 
-      con.setCode(labConcept.getLoincConcept().getLoincNum());
+      con.setCode(labConcept.getLoincNum());
 
       conceptSet.addConcept(con);
     }
@@ -287,4 +351,21 @@ public class LoincResourceGenerator {
 
     return valueSet;
   }
+
+  /**
+   * Supplement concept of a lab concept with the LOINC part codes it has translations for, in the
+   * order of {@link LoincConceptParts#AXES}
+   */
+  private static class SupplementConcept {
+
+    private final IndexedLabConcept labConcept;
+    private final ConceptDefinitionComponent concept;
+    private final String[] partCodes;
+
+    SupplementConcept(IndexedLabConcept labConcept, ConceptDefinitionComponent concept, String[] partCodes) {
+      this.labConcept = labConcept;
+      this.concept = concept;
+      this.partCodes = partCodes;
+    }
+  }
 }
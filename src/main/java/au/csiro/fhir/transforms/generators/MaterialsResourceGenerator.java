@@ -18,11 +18,11 @@ import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ValueSet.ConceptReferenceComponent;
 import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
 import org.hl7.fhir.r4.model.ValueSet.ValueSetComposeComponent;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept;
 import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept.Materials.Material;
-import au.csiro.fhir.transform.xml.nl.labcodeset.Publication;
 import au.csiro.fhir.transforms.utility.Constants;
-import au.csiro.fhir.transforms.utility.TerminologyClient;
+import au.csiro.fhir.transforms.utility.PublicationIndex;
+import au.csiro.fhir.transforms.utility.PublicationIndex.IndexedLabConcept;
+import au.csiro.fhir.transforms.utility.SnomedDisplayProvider;
 
 /**
  * Class that encapsulates the logic used to generate Materials SNOMED CT code link related FHIR
@@ -40,30 +40,26 @@ public class MaterialsResourceGenerator {
 
   private String labcodesetVersion;
   private String loincVersion;
-  private TerminologyClient terminologyClient;
-  private Map<String, Material> materialsMap;
+  private SnomedDisplayProvider snomedProvider;
 
   /**
    * @param labcodesetVersion version of the Labcodeset being transformed
    * @param loincVersion LOINC version the Labcodeset file should be used with
-   * @param terminologyClient {@link TerminologyClient} that can be used to lookup details of LOINC
-   *        codes
-   * @param materialsMap Map of the materials references and their details in the Labcodeset file
+   * @param snomedProvider {@link SnomedDisplayProvider} that can be used to lookup display terms of
+   *        SNOMED CT codes
    */
-  public MaterialsResourceGenerator(String labcodesetVersion, String loincVersion, TerminologyClient terminologyClient,
-      Map<String, Material> materialsMap) {
+  public MaterialsResourceGenerator(String labcodesetVersion, String loincVersion, SnomedDisplayProvider snomedProvider) {
     this.labcodesetVersion = labcodesetVersion;
     this.loincVersion = loincVersion;
-    this.terminologyClient = terminologyClient;
-    this.materialsMap = materialsMap;
+    this.snomedProvider = snomedProvider;
   }
 
   /**
-   * @param pub Parsed Labcodeset XML object
+   * @param index {@link PublicationIndex} of the Labcodeset
    * @return {@link ValueSet} containing the unique set of SNOMED CT codes referenced as Materials in
    *         Labcodeset
    */
-  public ValueSet createMaterialsValueSet(Publication pub) {
+  public ValueSet createMaterialsValueSet(PublicationIndex index) {
 
     ValueSet valueSet = new ValueSet();
     String identifier = "Labconcepts-materials-" + labcodesetVersion;
@@ -80,12 +76,12 @@ public class MaterialsResourceGenerator {
     conceptSet.setSystem(Constants.SCT_CS_URI);
     conceptSet.setVersion(Constants.NL_SCT_EDITION);
 
-    for (Map.Entry<String, Material> entry : materialsMap.entrySet()) {
+    for (Map.Entry<String, Material> entry : index.getMaterials().entrySet()) {
       Material material = entry.getValue();
       ConceptReferenceComponent con = new ConceptReferenceComponent();
 
       con.setCode(material.getCode().toString());
-      con.setDisplay(terminologyClient.getSnomedDisplay(material.getCode().toString(), material.getDisplayName()));
+      con.setDisplay(snomedProvider.getSnomedDisplay(material.getCode().toString(), material.getDisplayName()));
       conceptSet.addConcept(con);
     }
 
@@ -98,11 +94,11 @@ public class MaterialsResourceGenerator {
   }
 
   /**
-   * @param pub Parsed Labcodeset XML object
+   * @param index {@link PublicationIndex} of the Labcodeset
    * @return {@link ConceptMap} containing all references from LOINC codes in Labcodeset to SNOMED CT
    *         Materials codes
    */
-  public ConceptMap createMaterialsConceptMap(Publication pub) {
+  public ConceptMap createMaterialsConceptMap(PublicationIndex index) {
 
     ConceptMap map = new ConceptMap();
 
@@ -119,27 +115,19 @@ public class MaterialsResourceGenerator {
     group.setTarget(Constants.SCT_CS_URI);
     group.setTargetVersion(Constants.NL_SCT_EDITION);
 
-    for (LabConcept labConcept : pub.getLabConcepts().getLabConcept()) {
-
-      if (labConcept.getMaterials() != null) {
-        for (Material material : labConcept.getMaterials().getMaterial()) {
-          SourceElementComponent element = new SourceElementComponent();
-          element.setCode(labConcept.getLoincConcept().getLoincNum());
-          if (labConcept.getLoincConcept().getTranslation() != null
-              && labConcept.getLoincConcept().getTranslation().getLongName() != null) {
-            element.setDisplay(labConcept.getLoincConcept().getTranslation().getLongName().getValue());
-          } else {
-            element.setDisplay(labConcept.getLoincConcept().getLongName().getValue());
-          }
-
-          TargetElementComponent targetElement = new TargetElementComponent();
-          Material cachedMaterial = materialsMap.get(material.getCode());
-          targetElement.setCode(cachedMaterial.getCode().toString());
-          targetElement.setDisplay(terminologyClient.getSnomedDisplay(targetElement.getCode(), cachedMaterial.getDisplayName()));
-          targetElement.setEquivalence(ConceptMapEquivalence.RELATEDTO);
-          element.addTarget(targetElement);
-          group.addElement(element);
-        }
+    for (IndexedLabConcept labConcept : index.getLabConcepts()) {
+      for (Material material : labConcept.getMaterials()) {
+        SourceElementComponent element = new SourceElementComponent();
+        element.setCode(labConcept.getLoincNum());
+        element.setDisplay(labConcept.getDisplay());
+
+        TargetElementComponent targetElement = new TargetElementComponent();
+        Material cachedMaterial = index.getMaterials().get(material.getCode());
+        targetElement.setCode(cachedMaterial.getCode().toString());
+        targetElement.setDisplay(snomedProvider.getSnomedDisplay(targetElement.getCode(), cachedMaterial.getDisplayName()));
+        targetElement.setEquivalence(ConceptMapEquivalence.RELATEDTO);
+        element.addTarget(targetElement);
+        group.addElement(element);
       }
     }
 
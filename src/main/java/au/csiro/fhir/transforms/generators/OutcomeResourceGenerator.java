@@ -19,12 +19,11 @@ import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ValueSet.ConceptReferenceComponent;
 import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
 import org.hl7.fhir.r4.model.ValueSet.ValueSetComposeComponent;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept;
-import au.csiro.fhir.transform.xml.nl.labcodeset.Publication;
 import au.csiro.fhir.transform.xml.nl.labcodeset.ValueSetDefinition;
 import au.csiro.fhir.transform.xml.nl.labcodeset.ValueSetDefinition.ConceptList.Concept;
 import au.csiro.fhir.transforms.utility.Constants;
-import au.csiro.fhir.transforms.utility.TerminologyClient;
+import au.csiro.fhir.transforms.utility.PublicationIndex;
+import au.csiro.fhir.transforms.utility.PublicationIndex.IndexedLabConcept;
 
 /**
  * Class that encapsulates the logic used to generate FHIR resources for Outcome links in Labcodeset
@@ -42,20 +41,18 @@ public class OutcomeResourceGenerator {
   /**
    * @param labcodesetVersion version of the Labcodeset being transformed
    * @param loincVersion LOINC version the Labcodeset file should be used with
-   * @param terminologyClient {@link TerminologyClient} that can be used to lookup display terms of
-   *        SNOMED CT codes
    */
-  public OutcomeResourceGenerator(String labcodesetVersion, String loincVersion, TerminologyClient terminologyClient) {
+  public OutcomeResourceGenerator(String labcodesetVersion, String loincVersion) {
     this.labcodesetVersion = labcodesetVersion;
     this.loincVersion = loincVersion;
   }
 
   /**
-   * @param pub Parsed Labcodeset XML object
+   * @param index {@link PublicationIndex} of the Labcodeset
    * @return {@link ConceptMap} containing all references from LOINC codes in Labcodeset to SNOMED CT
    *         Reference Set codes or ValueSet OIDs as specified in Labcodeset
    */
-  public ConceptMap createOutcomesConceptMap(Publication pub) {
+  public ConceptMap createOutcomesConceptMap(PublicationIndex index) {
     ConceptMap map = new ConceptMap();
 
     String identifier = "Labconcepts-outcomes-" + labcodesetVersion;
@@ -76,29 +73,25 @@ public class OutcomeResourceGenerator {
     oidGroup.setSourceVersion(loincVersion);
     oidGroup.setTarget(Constants.OID_CS_URI);
 
-    for (LabConcept labConcept : pub.getLabConcepts().getLabConcept()) {
+    for (IndexedLabConcept labConcept : index.getLabConcepts()) {
 
-      if (labConcept.getOutcomes() != null) {
+      if (labConcept.hasOutcomes()) {
         SourceElementComponent element = new SourceElementComponent();
-        element.setCode(labConcept.getLoincConcept().getLoincNum());
-        if (labConcept.getLoincConcept().getTranslation() != null && labConcept.getLoincConcept().getTranslation().getLongName() != null) {
-          element.setDisplay(labConcept.getLoincConcept().getTranslation().getLongName().getValue());
-        } else {
-          element.setDisplay(labConcept.getLoincConcept().getLongName().getValue());
-        }
+        element.setCode(labConcept.getLoincNum());
+        element.setDisplay(labConcept.getDisplay());
         TargetElementComponent targetElement = new TargetElementComponent();
         element.addTarget(targetElement);
         targetElement.setEquivalence(ConceptMapEquivalence.RELATEDTO);
 
-        if (labConcept.getOutcomes().getRefset() != null) {
-          targetElement.setCode(labConcept.getOutcomes().getRefset().getConceptId().toString());
-          targetElement.setDisplay(labConcept.getOutcomes().getRefset().getPreferredTerm());
+        if (labConcept.getOutcomeRefsetId() != null) {
+          targetElement.setCode(labConcept.getOutcomeRefsetId());
+          targetElement.setDisplay(labConcept.getOutcomeRefsetTerm());
           sctGroup.addElement(element);
-        } else if (labConcept.getOutcomes().getValueSet() != null) {
-          targetElement.setCode(labConcept.getOutcomes().getValueSet().getRef());
+        } else if (labConcept.getOutcomeValueSetRef() != null) {
+          targetElement.setCode(labConcept.getOutcomeValueSetRef());
           oidGroup.addElement(element);
         } else {
-          System.err.println("Unable to map outcome of LabConcept " + labConcept.getLoincConcept().getLoincNum());
+          System.err.println("Unable to map outcome of LabConcept " + labConcept.getLoincNum());
         }
       }
     }
@@ -114,13 +107,13 @@ public class OutcomeResourceGenerator {
    * Creates an explicit FHIR ValueSet for each of the sets of codes described in the Ordinals section
    * of the Labcodeset XML
    * 
-   * @param pub Parsed Labcodeset XML object
+   * @param index {@link PublicationIndex} of the Labcodeset
    * @return {@link Collection} of {@link ValueSet} obejcts for each of the "ordinal" lists in the
    *         Labcodeset
    */
-  public Collection<ValueSet> createPublicationOutcomeValueSets(Publication pub) {
+  public Collection<ValueSet> createPublicationOutcomeValueSets(PublicationIndex index) {
     Collection<ValueSet> outcomeValueSets = new ArrayList<>();
-    for (ValueSetDefinition ordinal : pub.getOrdinals().getValueSet()) {
+    for (ValueSetDefinition ordinal : index.getOrdinals()) {
       ValueSet valueSet = new ValueSet();
       String identifier = "Labconcepts-" + ordinal.getId() + "-" + labcodesetVersion;
       valueSet.setId(identifier);
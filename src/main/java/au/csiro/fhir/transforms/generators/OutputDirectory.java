@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Directory the output files of a transformation are written to. Each file is written to a
+ * temporary file alongside it and atomically moved into place once complete, so that a failed
+ * transformation never leaves a partially written file behind. A file whose content hashes the same
+ * as the existing file is not replaced, leaving the existing file and its modification time as they
+ * were.
+ */
+class OutputDirectory {
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Content of a file, written to the stream of the file
+   */
+  interface Content {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private final File directory;
+  private final Executor executor;
+
+  /**
+   * @param directory directory to write the files to
+   * @param executor {@link Executor} to write the files passed to
+   *        {@link #writeAsync(String, Content)} on
+   */
+  OutputDirectory(File directory, Executor executor) {
+    this.directory = directory;
+    this.executor = executor;
+  }
+
+  /**
+   * @param filename name of the file in the directory
+   * @param content {@link Content} of the file
+   * @return true if the file was written, false if the existing file already had the content
+   * @throws IOException if the file cannot be written, in which case the existing file is left as it
+   *         was
+   */
+  boolean write(String filename, Content content) throws IOException {
+    try (OutputFile file = create(filename)) {
+      content.writeTo(file.getOutputStream());
+      return file.commit();
+    }
+  }
+
+  /**
+   * Writes a file on the executor, independent files are written in parallel when the executor
+   * runs tasks concurrently
+   *
+   * @param filename name of the file in the directory
+   * @param content {@link Content} of the file
+   * @return future completing with true if the file was written, false if the existing file already
+   *         had the content, or completing exceptionally with an {@link UncheckedIOException} if the
+   *         file cannot be written
+   */
+  CompletableFuture<Boolean> writeAsync(String filename, Content content) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return write(filename, content);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }, executor);
+  }
+
+  /**
+   * Creates a file to stream content to, which is only moved into place when committed
+   *
+   * @param filename name of the file in the directory
+   * @return the {@link OutputFile}, discarded when closed unless it has been committed
+   * @throws IOException if the temporary file cannot be created
+   */
+  OutputFile create(String filename) throws IOException {
+    return new OutputFile(new File(directory, filename));
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] hash(Path path) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream in = Files.newInputStream(path)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * File being written to a temporary file in the directory, hashing its content as it is written
+   */
+  class OutputFile implements Closeable {
+
+    private final File file;
+    private final Path temp;
+    private final MessageDigest digest = newDigest();
+    private final OutputStream out;
+    private boolean committed;
+
+    private OutputFile(File file) throws IOException {
+      this.file = file;
+      // created with the default permissions the file would have, unlike Files.createTempFile
+      temp = new File(directory, "." + file.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX).toPath();
+      out = new BufferedOutputStream(
+          new DigestOutputStream(Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), digest), BUFFER_SIZE);
+    }
+
+    /**
+     * @return the stream to write the content of the file to, which may be closed before the file
+     *         is committed
+     */
+    OutputStream getOutputStream() {
+      return out;
+    }
+
+    /**
+     * Completes the file, moving it into place unless the existing file has the same content
+     *
+     * @return true if the file was written, false if the existing file already had the content
+     * @throws IOException if the file cannot be completed or moved into place
+     */
+    boolean commit() throws IOException {
+      out.close();
+      byte[] hash = digest.digest();
+      Path target = file.toPath();
+      if (Files.isRegularFile(target) && Files.size(target) == Files.size(temp) && Arrays.equals(hash, hash(target))) {
+        Files.delete(temp);
+        committed = true;
+        return false;
+      }
+
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      committed = true;
+      return true;
+    }
+
+    /**
+     * Discards the temporary file if the file has not been committed
+     */
+    @Override
+    public void close() throws IOException {
+      if (!committed) {
+        try {
+          out.close();
+        } finally {
+          Files.deleteIfExists(temp);
+        }
+      }
+    }
+  }
+}
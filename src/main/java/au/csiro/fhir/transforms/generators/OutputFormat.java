@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import au.csiro.fhir.transforms.utility.JsonBundleWriter.Layout;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Format the resource files and Bundles are written out in
+ */
+public enum OutputFormat {
+
+  /**
+   * Pretty printed JSON
+   */
+  PRETTY(true, false, Layout.PRETTY),
+
+  /**
+   * JSON without any whitespace
+   */
+  COMPACT(false, false, Layout.COMPACT),
+
+  /**
+   * JSON without any whitespace, gzip compressed as it is written
+   */
+  GZIP(false, true, Layout.COMPACT),
+
+  /**
+   * JSON without any whitespace, with the resources of the Bundle written one per line instead of
+   * as a Bundle, as read by bulk loaders
+   */
+  NDJSON(false, false, Layout.NDJSON);
+
+  private static final String JSON_EXTENSION = ".json";
+  private static final String GZIP_EXTENSION = ".gz";
+  private static final String NDJSON_EXTENSION = ".ndjson";
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+  private static final String FHIR_JSON_CONTENT_TYPE = "application/fhir+json";
+  private static final String FHIR_NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+  private static final String GZIP_CONTENT_TYPE = "application/gzip";
+
+  private final boolean prettyPrint;
+  private final boolean gzip;
+  private final Layout bundleLayout;
+
+  private OutputFormat(boolean prettyPrint, boolean gzip, Layout bundleLayout) {
+    this.prettyPrint = prettyPrint;
+    this.gzip = gzip;
+    this.bundleLayout = bundleLayout;
+  }
+
+  /**
+   * @param name name of the format, case insensitive
+   * @return the {@link OutputFormat} with the name
+   * @throws IllegalArgumentException if there is no format with the name
+   */
+  public static OutputFormat fromName(String name) {
+    return valueOf(name.toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * @return the names of all formats, for usage messages
+   */
+  public static String getNames() {
+    return Arrays.stream(values()).map(OutputFormat::getName).collect(Collectors.joining(", "));
+  }
+
+  /**
+   * @return the name of the format as specified on the command line
+   */
+  public String getName() {
+    return name().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * @param ctx {@link FhirContext} to create the parser from
+   * @return a new {@link IParser} encoding resources in this format
+   */
+  IParser newParser(FhirContext ctx) {
+    return ctx.newJsonParser().setPrettyPrint(prettyPrint);
+  }
+
+  /**
+   * @param jsonFilename name of a resource file ending in .json
+   * @return the name of the file in this format
+   */
+  String getFilename(String jsonFilename) {
+    return gzip ? jsonFilename + GZIP_EXTENSION : jsonFilename;
+  }
+
+  /**
+   * @param jsonFilename name of a Bundle file ending in .json
+   * @return the name of the file the collection Bundle is written to in this format
+   */
+  String getBundleFilename(String jsonFilename) {
+    if (bundleLayout == Layout.NDJSON) {
+      return jsonFilename.substring(0, jsonFilename.length() - JSON_EXTENSION.length()) + NDJSON_EXTENSION;
+    }
+    return getFilename(jsonFilename);
+  }
+
+  /**
+   * @return the media type of the collection Bundle file in this format
+   */
+  public String getBundleContentType() {
+    if (gzip) {
+      return GZIP_CONTENT_TYPE;
+    }
+    return bundleLayout == Layout.NDJSON ? FHIR_NDJSON_CONTENT_TYPE : FHIR_JSON_CONTENT_TYPE;
+  }
+
+  /**
+   * @return the {@link Layout} the collection Bundle is written in
+   */
+  Layout getBundleLayout() {
+    return bundleLayout;
+  }
+
+  /**
+   * @return the {@link Layout} a transaction Bundle is written in, which remains a Bundle when the
+   *         collection Bundle is written as NDJSON
+   */
+  Layout getTransactionLayout() {
+    return prettyPrint ? Layout.PRETTY : Layout.COMPACT;
+  }
+
+  /**
+   * @param out {@link OutputStream} of a file
+   * @return the stream to write the content of the file in this format to
+   * @throws IOException if the stream cannot be wrapped
+   */
+  OutputStream wrap(OutputStream out) throws IOException {
+    return gzip ? new GZIPOutputStream(out, GZIP_BUFFER_SIZE) : out;
+  }
+
+  /**
+   * @param name name of a file
+   * @return true if the file is a resource file, or a Bundle file other than an NDJSON one, written
+   *         in this format, the gzip format only writing .json.gz files and the others .json files
+   */
+  boolean isJsonFile(String name) {
+    return name.endsWith(getFilename(JSON_EXTENSION));
+  }
+
+  /**
+   * @param file a Bundle file
+   * @return true if the file contains the resources of a Bundle one per line rather than a Bundle
+   */
+  static boolean isNdjsonFile(File file) {
+    return file.getName().endsWith(NDJSON_EXTENSION);
+  }
+
+  /**
+   * @param file file written in any of the formats
+   * @return a reader of the content of the file, decompressed if the file is gzip compressed
+   * @throws IOException if the file cannot be opened
+   */
+  static BufferedReader newReader(File file) throws IOException {
+    InputStream in = Files.newInputStream(file.toPath());
+    if (file.getName().endsWith(GZIP_EXTENSION)) {
+      try {
+        in = new GZIPInputStream(in, GZIP_BUFFER_SIZE);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+    }
+    return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import au.csiro.fhir.transforms.utility.LoincConceptProvider;
+import au.csiro.fhir.transforms.utility.PublicationIndex;
+import au.csiro.fhir.transforms.utility.PublicationIndex.IndexedLabConcept;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Output of a previous transformation, used to reuse the LOINC supplement concepts generated for lab
+ * concepts that have not changed since. Whether a lab concept has changed is determined from the
+ * fingerprints written alongside the previous bundle, which also record the LOINC source the
+ * previous transformation used and whether all the LOINC parts of each lab concept were found.
+ */
+public class PreviousRelease {
+
+  private static final String FINGERPRINTS_SUFFIX = ".fingerprints";
+
+  private static final String FINGERPRINTS_HEADER = "labcodeset-fingerprints";
+  private static final String FORMAT_VERSION = "2";
+  private static final String COMPLETE = "complete";
+  private static final String INCOMPLETE = "incomplete";
+  private static final char SEPARATOR = '\t';
+
+  private Map<String, String> fingerprints = new HashMap<>();
+  private Map<String, ConceptDefinitionComponent> supplementConcepts = new HashMap<>();
+
+  private PreviousRelease() {}
+
+  /**
+   * Reads the bundle of a previous transformation and the fingerprints written alongside it
+   *
+   * @param ctx {@link FhirContext} to parse the bundle with
+   * @param bundleFile bundle file written by a previous transformation, in any {@link OutputFormat}
+   * @param loincVersion LOINC version of the current transformation, the previous transformation
+   *        must have used the same version
+   * @param loincSource source of the LOINC properties of the current transformation, see
+   *        {@link LoincConceptProvider#getSource()}, the previous transformation must have used the
+   *        same source
+   * @return the previous release
+   * @throws IOException if the bundle or its fingerprints cannot be read, or the previous
+   *         transformation used a different LOINC version or source
+   */
+  public static PreviousRelease read(FhirContext ctx, File bundleFile, String loincVersion, String loincSource) throws IOException {
+    PreviousRelease previous = new PreviousRelease();
+    previous.readFingerprints(getFingerprintsFile(bundleFile), loincVersion, loincSource);
+
+    List<IBaseResource> resources = new ArrayList<>();
+    IParser parser = ctx.newJsonParser();
+    try (BufferedReader reader = OutputFormat.newReader(bundleFile)) {
+      if (OutputFormat.isNdjsonFile(bundleFile)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (!line.isEmpty()) {
+            resources.add(parser.parseResource(line));
+          }
+        }
+      } else {
+        for (BundleEntryComponent entry : parser.parseResource(Bundle.class, reader).getEntry()) {
+          resources.add(entry.getResource());
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Failed parsing previous bundle " + bundleFile + " - " + e.getLocalizedMessage(), e);
+    }
+
+    for (IBaseResource resource : resources) {
+      if (resource instanceof CodeSystem && LoincResourceGenerator.LABCODESET_SUPPLEMENT_CS_URI.equals(((CodeSystem) resource).getUrl())) {
+        for (ConceptDefinitionComponent concept : ((CodeSystem) resource).getConcept()) {
+          if (previous.fingerprints.containsKey(concept.getCode())) {
+            previous.supplementConcepts.put(concept.getCode(), concept);
+          }
+        }
+      }
+    }
+    return previous;
+  }
+
+  private void readFingerprints(File fingerprintsFile, String loincVersion, String loincSource) throws IOException {
+    if (!fingerprintsFile.isFile()) {
+      throw new IOException("No lab concept fingerprints " + fingerprintsFile + " found alongside the previous bundle");
+    }
+
+    try (BufferedReader reader = Files.newBufferedReader(fingerprintsFile.toPath(), StandardCharsets.UTF_8)) {
+      String[] header = split(reader.readLine(), 4);
+      if (header == null || !FINGERPRINTS_HEADER.equals(header[0]) || !FORMAT_VERSION.equals(header[1])) {
+        throw new IOException("Unsupported lab concept fingerprints file " + fingerprintsFile);
+      }
+      if (!loincVersion.equals(header[2])) {
+        throw new IOException("Previous release was transformed with LOINC version " + header[2] + " not " + loincVersion);
+      }
+      if (!loincSource.equals(header[3])) {
+        throw new IOException("Previous release was transformed with LOINC from " + header[3] + " not " + loincSource);
+      }
+
+      // a LOINC code used by more than one lab concept cannot be matched to its previous content
+      Set<String> duplicates = new HashSet<>();
+      // neither can a lab concept not all of whose LOINC parts were found, they are looked up again
+      Set<String> incomplete = new HashSet<>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = split(line, 3);
+        if (fields == null || !(COMPLETE.equals(fields[2]) || INCOMPLETE.equals(fields[2]))) {
+          throw new IOException("Invalid line in lab concept fingerprints file " + fingerprintsFile + ": " + line);
+        }
+        if (fingerprints.put(fields[0], fields[1]) != null) {
+          duplicates.add(fields[0]);
+        }
+        if (INCOMPLETE.equals(fields[2])) {
+          incomplete.add(fields[0]);
+        }
+      }
+      fingerprints.keySet().removeAll(duplicates);
+      fingerprints.keySet().removeAll(incomplete);
+    }
+  }
+
+  private static String[] split(String line, int fields) {
+    if (line == null) {
+      return null;
+    }
+    String[] split = line.split(String.valueOf(SEPARATOR), -1);
+    return split.length == fields ? split : null;
+  }
+
+  /**
+   * @param labConcept lab concept of the current transformation
+   * @return true if the lab concept is unchanged since the previous release and its LOINC supplement
+   *         concept, generated with all its LOINC parts found, can be reused
+   */
+  public boolean isSupplementConceptReusable(IndexedLabConcept labConcept) {
+    return isUnchanged(labConcept) && supplementConcepts.containsKey(labConcept.getLoincNum());
+  }
+
+  /**
+   * @param labConcept lab concept of the current transformation
+   * @return a copy of the LOINC supplement concept generated for the lab concept by the previous
+   *         release, or null if the lab concept has changed
+   */
+  public ConceptDefinitionComponent getSupplementConcept(IndexedLabConcept labConcept) {
+    return isSupplementConceptReusable(labConcept) ? supplementConcepts.get(labConcept.getLoincNum()).copy() : null;
+  }
+
+  private boolean isUnchanged(IndexedLabConcept labConcept) {
+    return labConcept.getFingerprint().equals(fingerprints.get(labConcept.getLoincNum()));
+  }
+
+  /**
+   * Writes the fingerprints of the lab concepts, to be written alongside a bundle so that a later
+   * transformation can reuse the bundle as its previous release
+   *
+   * @param out {@link OutputStream} of the fingerprints file, closed once written
+   * @param index {@link PublicationIndex} of the transformed Labcodeset
+   * @param loincVersion LOINC version of the transformation
+   * @param loincSource source of the LOINC properties of the transformation, see
+   *        {@link LoincConceptProvider#getSource()}
+   * @param incompleteConcepts LOINC codes of the lab concepts not all of whose LOINC parts were found,
+   *        see {@link LoincResourceGenerator#getIncompleteConcepts()}
+   * @throws IOException if the fingerprints cannot be written
+   */
+  public static void writeFingerprints(OutputStream out, PublicationIndex index, String loincVersion, String loincSource,
+      Set<String> incompleteConcepts) throws IOException {
+    try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+      writer.write(FINGERPRINTS_HEADER + SEPARATOR + FORMAT_VERSION + SEPARATOR + loincVersion + SEPARATOR + loincSource);
+      writer.newLine();
+      for (IndexedLabConcept labConcept : index.getLabConcepts()) {
+        writer.write(labConcept.getLoincNum() + SEPARATOR + labConcept.getFingerprint() + SEPARATOR
+            + (incompleteConcepts.contains(labConcept.getLoincNum()) ? INCOMPLETE : COMPLETE));
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * @param bundleFilename name of a bundle file
+   * @return the name of the fingerprints file written alongside the bundle
+   */
+  public static String getFingerprintsFilename(String bundleFilename) {
+    return bundleFilename + FINGERPRINTS_SUFFIX;
+  }
+
+  private static File getFingerprintsFile(File bundleFile) {
+    return new File(bundleFile.getParentFile(), getFingerprintsFilename(bundleFile.getName()));
+  }
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.MetadataResource;
+import au.csiro.fhir.transforms.utility.JsonBundleWriter;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.UrlUtil;
+
+/**
+ * Resources written to an output directory by a previous transformation, used to determine which
+ * of the generated resources are new or have changed since, so that only those need to be loaded
+ * into a terminology server. Resources are matched on their resource type, canonical URL and
+ * version, and compared on their encoded JSON.
+ */
+public class PriorOutput {
+
+  private Map<String, byte[]> priorContent = new LinkedHashMap<>();
+  private Map<String, String> priorUrls = new LinkedHashMap<>();
+
+  private PriorOutput() {}
+
+  /**
+   * Reads the FHIR resources of a previous transformation from a directory. Only the resource files
+   * written in the current {@link OutputFormat} are read, so that a resource written in more than
+   * one format is read once, and Bundles are skipped without being parsed as they only repeat the
+   * individual resources.
+   *
+   * @param parser {@link IParser} the resources of the current transformation are encoded with, to
+   *        parse and encode the prior resources with
+   * @param directory output directory of a previous transformation
+   * @param outputFormat {@link OutputFormat} of the current transformation
+   * @return the prior output
+   * @throws IOException if the directory cannot be read
+   */
+  public static PriorOutput read(IParser parser, File directory, OutputFormat outputFormat) throws IOException {
+    PriorOutput prior = new PriorOutput();
+    File[] files =
+        directory.listFiles((dir, name) -> outputFormat.isJsonFile(name) && !LabcodesetResourceGenerator.isBundleFile(name));
+    if (files == null) {
+      throw new IOException("Cannot list prior output directory " + directory);
+    }
+    Arrays.sort(files);
+
+    for (File file : files) {
+      IBaseResource resource;
+      try (Reader reader = OutputFormat.newReader(file)) {
+        resource = parser.parseResource(reader);
+      } catch (DataFormatException e) {
+        System.err.println("WARNING: Ignoring prior output file " + file + " that is not a FHIR resource - " + e.getLocalizedMessage());
+        continue;
+      }
+      if (resource instanceof MetadataResource) {
+        GeneratedResource generated = new GeneratedResource((MetadataResource) resource, file.getName());
+        generated.encode(parser);
+        prior.priorContent.put(generated.getKey(), generated.getJson());
+        prior.priorUrls.put(generated.getKey(), getUrl(generated.getResource()));
+      }
+    }
+    return prior;
+  }
+
+  /**
+   * Starts comparing the resources of the current transformation to the prior output, writing the
+   * new and changed resources to a transaction Bundle as they are compared
+   *
+   * @param transaction {@link JsonBundleWriter} writing a transaction Bundle
+   * @return the {@link Changes} to add the generated resources to
+   */
+  Changes compareTo(JsonBundleWriter transaction) {
+    return new Changes(transaction);
+  }
+
+  private static String getUrl(MetadataResource resource) {
+    return resource.fhirType() + " " + resource.getUrl();
+  }
+
+  /**
+   * New, changed, unchanged and removed resources of a transformation compared to a prior output.
+   * Only the identifying keys of the compared resources are kept, so that each resource can be
+   * released once it has been added.
+   */
+  public class Changes {
+
+    private final JsonBundleWriter transaction;
+    private List<String> added = new ArrayList<>();
+    private List<String> changed = new ArrayList<>();
+    private List<String> unchanged = new ArrayList<>();
+    private Set<String> generatedUrls = new HashSet<>();
+
+    private Changes(JsonBundleWriter transaction) {
+      this.transaction = transaction;
+    }
+
+    /**
+     * Compares an encoded generated resource to the prior output, adding an entry that creates or
+     * updates it with a PUT conditional on its canonical URL and version to the transaction Bundle
+     * if it is new or has changed
+     *
+     * @param generated {@link GeneratedResource} of the current transformation, already encoded
+     * @return true if the resource is new or has changed
+     * @throws IOException if the transaction entry cannot be written
+     */
+    boolean add(GeneratedResource generated) throws IOException {
+      MetadataResource resource = generated.getResource();
+      String key = generated.getKey();
+      generatedUrls.add(getUrl(resource));
+      byte[] prior = priorContent.get(key);
+      if (prior != null && Arrays.equals(prior, generated.getJson())) {
+        unchanged.add(key);
+        return false;
+      }
+
+      (prior == null ? added : changed).add(key);
+      transaction.addEntry(generated.getJson(), HTTPVerb.PUT, resource.fhirType() + "?url=" + UrlUtil.escapeUrlParam(resource.getUrl())
+          + "&version=" + UrlUtil.escapeUrlParam(resource.getVersion()));
+      return true;
+    }
+
+    /**
+     * @return the prior resources with a canonical URL none of the added resources have
+     */
+    private List<String> getRemoved() {
+      List<String> removed = new ArrayList<>();
+      for (Map.Entry<String, String> prior : priorUrls.entrySet()) {
+        if (!generatedUrls.contains(prior.getValue())) {
+          removed.add(prior.getKey());
+        }
+      }
+      return removed;
+    }
+
+    /**
+     * @return one line summary of the number of new, changed, unchanged and removed resources
+     */
+    public String getSummary() {
+      return added.size() + " new, " + changed.size() + " changed, " + unchanged.size() + " unchanged and " + getRemoved().size()
+          + " removed resources";
+    }
+
+    /**
+     * @return report listing each resource and how it changed, resources no longer generated are
+     *         listed as removed but are not deleted by the transaction
+     */
+    public String getReport() {
+      StringBuilder report = new StringBuilder();
+      added.forEach(key -> report.append("New       ").append(key).append('\n'));
+      changed.forEach(key -> report.append("Changed   ").append(key).append('\n'));
+      unchanged.forEach(key -> report.append("Unchanged ").append(key).append('\n'));
+      getRemoved().forEach(key -> report.append("Removed   ").append(key).append('\n'));
+      return report.append(getSummary()).append('\n').toString();
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import org.hl7.fhir.r4.model.ValueSet;
+import au.csiro.fhir.transforms.utility.BearerToken;
+import au.csiro.fhir.transforms.utility.HttpTransport;
+import au.csiro.fhir.transforms.utility.LoincConceptProvider;
+import au.csiro.fhir.transforms.utility.LoincDistributionProvider;
+import au.csiro.fhir.transforms.utility.LookupMetrics;
+import au.csiro.fhir.transforms.utility.PersistentTerminologyCache;
+import au.csiro.fhir.transforms.utility.SnomedDisplayProvider;
+import au.csiro.fhir.transforms.utility.SnomedRf2DisplayProvider;
+import au.csiro.fhir.transforms.utility.TerminologyClient;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+/**
+ * Everything a transformation needs that does not depend on the Labcodeset being transformed - the
+ * {@link FhirContext}, the terminology sources and their caches, the bearer token and the FHIR
+ * specification common UCUM codes. An environment can be shared by any number of transformations,
+ * run one after another or concurrently, so that only the first pays for initialising the
+ * {@link FhirContext}, reading the terminology distributions and looking up terminology that later
+ * transformations reuse.
+ */
+public class TransformEnvironment implements Closeable {
+
+  /**
+   * Version and key the common UCUM codes ValueSet is persisted under, with its URL as the system
+   */
+  private static final String UCUM_CACHE_VERSION = "R4";
+  private static final String UCUM_CACHE_KEY = "ValueSet";
+
+  private final FhirContext ctx = FhirContext.forR4();
+  private final HttpTransport httpTransport;
+  private final LookupMetrics lookupMetrics = new LookupMetrics();
+  private final String ucumValueSetUrl;
+  private final BearerToken bearerToken;
+  private final PersistentTerminologyCache persistentCache;
+  private final TerminologyClient terminologyClient;
+  private final LoincConceptProvider loincProvider;
+  private final String loincDistributionVersion;
+  private final SnomedDisplayProvider snomedProvider;
+  private ValueSet commonUcumCodes;
+
+  /**
+   * @param fhirEndpoint FHIR terminology endpoint to be consulted for SNOMED CT and LOINC content
+   *        during the transformations, may be null if both loincDir and snomedDir are specified
+   * @param tokenEndpoint token endpoint to get a bearer token for the FHIR endpoint and upload
+   *        endpoint from, or null if they do not require authorisation
+   * @param clientId client id to get the bearer token with
+   * @param clientSecret client secret to get the bearer token with
+   * @param needsToken true if a transformation will upload its resources, so that a bearer token is
+   *        used even without a FHIR endpoint
+   * @param lookupBatchSize maximum number of code lookups to send to the FHIR endpoint in one batch
+   * @param lookupConcurrency maximum number of lookup requests to have in flight to the FHIR endpoint
+   * @param cacheDir directory to persist terminology lookup results and the common UCUM codes in
+   *        across runs, or null to not persist them
+   * @param loincDir directory containing an unpacked LOINC distribution to read LOINC details from
+   *        rather than the FHIR endpoint, or null to use the FHIR endpoint
+   * @param loincVersion version of the LOINC distribution in loincDir, transformations for any other
+   *        LOINC version are rejected when loincDir is specified
+   * @param snomedDir directory containing an unpacked SNOMED CT Netherlands edition RF2 release to
+   *        read SNOMED CT display terms from rather than the FHIR endpoint, or null to use the FHIR
+   *        endpoint
+   * @param httpTransport {@link HttpTransport} to make all requests to the FHIR endpoint, token
+   *        endpoint, upload endpoint and FHIR specification with, closed by the caller
+   * @param ucumValueSetUrl URL to fetch the FHIR specification common UCUM codes ValueSet from
+   * @throws IOException if the cache directory cannot be created
+   */
+  public TransformEnvironment(String fhirEndpoint, String tokenEndpoint, String clientId, String clientSecret, boolean needsToken,
+      int lookupBatchSize, int lookupConcurrency, File cacheDir, File loincDir, String loincVersion, File snomedDir,
+      HttpTransport httpTransport, String ucumValueSetUrl) throws IOException {
+    if (fhirEndpoint == null && (loincDir == null || snomedDir == null)) {
+      throw new IllegalArgumentException("A FHIR endpoint is required unless both a LOINC and a SNOMED CT directory are specified");
+    }
+    this.httpTransport = httpTransport;
+    this.ucumValueSetUrl = ucumValueSetUrl;
+    httpTransport.configure(ctx);
+    if ((fhirEndpoint != null || needsToken) && tokenEndpoint != null && clientId != null && clientSecret != null) {
+      this.bearerToken = new BearerToken(httpTransport.getHttpClient(), lookupMetrics, tokenEndpoint, clientId, clientSecret);
+    } else {
+      this.bearerToken = null;
+    }
+    this.persistentCache = cacheDir == null ? null : new PersistentTerminologyCache(cacheDir);
+    if (fhirEndpoint != null) {
+      IGenericClient fhirClient = ctx.newRestfulGenericClient(fhirEndpoint);
+      if (bearerToken != null) {
+        fhirClient.registerInterceptor(bearerToken.newInterceptor());
+      }
+      this.terminologyClient = new TerminologyClient(fhirClient, lookupBatchSize, lookupConcurrency, persistentCache, lookupMetrics);
+    } else {
+      this.terminologyClient = null;
+    }
+    this.loincProvider = loincDir == null ? terminologyClient : new LoincDistributionProvider(loincDir, loincVersion, lookupMetrics);
+    this.loincDistributionVersion = loincDir == null ? null : loincVersion;
+    this.snomedProvider = snomedDir == null ? terminologyClient : new SnomedRf2DisplayProvider(snomedDir, lookupMetrics);
+  }
+
+  /**
+   * Creates an environment resolving all terminology from the passed providers and common UCUM
+   * codes, so that transformations run in it make no requests at all
+   *
+   * @param loincProvider {@link LoincConceptProvider} to resolve the LOINC codes of any version with
+   * @param snomedProvider {@link SnomedDisplayProvider} to resolve SNOMED CT display terms with
+   * @param commonUcumCodes FHIR specification common UCUM codes ValueSet
+   */
+  TransformEnvironment(LoincConceptProvider loincProvider, SnomedDisplayProvider snomedProvider, ValueSet commonUcumCodes) {
+    this.httpTransport = null;
+    this.ucumValueSetUrl = null;
+    this.bearerToken = null;
+    this.persistentCache = null;
+    this.terminologyClient = null;
+    this.loincProvider = loincProvider;
+    this.loincDistributionVersion = null;
+    this.snomedProvider = snomedProvider;
+    this.commonUcumCodes = commonUcumCodes;
+  }
+
+  /**
+   * @return the {@link FhirContext} shared by the transformations, which is thread safe
+   */
+  public FhirContext getFhirContext() {
+    return ctx;
+  }
+
+  /**
+   * @return the {@link HttpTransport} requests are made with
+   */
+  public HttpTransport getHttpTransport() {
+    return httpTransport;
+  }
+
+  /**
+   * @return the {@link LookupMetrics} of all the transformations run in this environment
+   */
+  public LookupMetrics getLookupMetrics() {
+    return lookupMetrics;
+  }
+
+  /**
+   * @return the {@link BearerToken} for the FHIR endpoint and upload endpoint, fetched when first
+   *         used and refreshed as it expires, or null if they do not require authorisation
+   */
+  public BearerToken getBearerToken() {
+    return bearerToken;
+  }
+
+  /**
+   * @param loincVersion LOINC version of a transformation
+   * @return the {@link LoincConceptProvider} to resolve LOINC codes of the version with
+   * @throws IllegalArgumentException if LOINC details are read from a distribution of another
+   *         version
+   */
+  public LoincConceptProvider getLoincProvider(String loincVersion) {
+    if (loincDistributionVersion != null && !loincDistributionVersion.equals(loincVersion)) {
+      throw new IllegalArgumentException(
+          "LOINC version " + loincVersion + " requested but the LOINC distribution is version " + loincDistributionVersion);
+    }
+    return loincProvider;
+  }
+
+  /**
+   * @return the {@link SnomedDisplayProvider} to resolve SNOMED CT display terms with
+   */
+  public SnomedDisplayProvider getSnomedProvider() {
+    return snomedProvider;
+  }
+
+  /**
+   * Fetches the FHIR specification common UCUM codes the first time they are needed, later
+   * transformations reuse them. They are persisted with the terminology lookup results, if there is
+   * a persistent terminology cache, so later runs reuse them until the cache expires them. The
+   * returned ValueSet is shared and must not be modified.
+   *
+   * @return the FHIR specification common UCUM codes ValueSet
+   * @throws IOException if the ValueSet cannot be fetched
+   */
+  public synchronized ValueSet getCommonUcumCodes() throws IOException {
+    if (commonUcumCodes == null && persistentCache != null) {
+      String persisted = persistentCache.get(ucumValueSetUrl, UCUM_CACHE_VERSION, UCUM_CACHE_KEY);
+      if (persisted != null) {
+        try {
+          commonUcumCodes = ctx.newJsonParser().parseResource(ValueSet.class, persisted);
+        } catch (DataFormatException e) {
+          System.err.println("WARNING: Ignoring unreadable persisted common UCUM codes - " + e.getLocalizedMessage());
+        }
+      }
+    }
+    if (commonUcumCodes == null) {
+      commonUcumCodes = TerminologyClient.getCommonUcumCodes(httpTransport.getHttpClient(), ctx, lookupMetrics, ucumValueSetUrl);
+      if (persistentCache != null) {
+        String json = ctx.newJsonParser().encodeResourceToString(commonUcumCodes);
+        persistentCache.put(ucumValueSetUrl, UCUM_CACHE_VERSION, UCUM_CACHE_KEY, json);
+      }
+    }
+    return commonUcumCodes;
+  }
+
+  /**
+   * Saves any new lookup results to the persistent terminology cache, if there is one, so they are
+   * not lost if a long running process is stopped abruptly
+   *
+   * @throws IOException if the cache cannot be saved
+   */
+  public synchronized void saveTerminologyCache() throws IOException {
+    if (persistentCache != null) {
+      persistentCache.save();
+    }
+  }
+
+  /**
+   * Stops the threads used for lookups and saves any new lookup results to the persistent terminology
+   * cache, transformations can no longer be run once closed
+   *
+   * @throws IOException if the persistent terminology cache cannot be saved
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (terminologyClient != null) {
+      terminologyClient.close();
+    } else if (persistentCache != null) {
+      persistentCache.save();
+    }
+  }
+}
@@ -5,10 +5,7 @@
  ******************************************************************************/
 package au.csiro.fhir.transforms.generators;
 
-import java.io.IOException;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
@@ -23,12 +20,10 @@ import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ValueSet.ConceptReferenceComponent;
 import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
 import org.hl7.fhir.r4.model.ValueSet.ValueSetComposeComponent;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept;
-import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept.Units;
-import au.csiro.fhir.transform.xml.nl.labcodeset.Publication;
 import au.csiro.fhir.transform.xml.nl.labcodeset.UnitDefinition;
 import au.csiro.fhir.transforms.utility.Constants;
-import au.csiro.fhir.transforms.utility.TerminologyClient;
+import au.csiro.fhir.transforms.utility.PublicationIndex;
+import au.csiro.fhir.transforms.utility.PublicationIndex.IndexedLabConcept;
 
 public class UcumResourceGenerator {
 
@@ -47,28 +42,28 @@ public class UcumResourceGenerator {
 
   private String labcodesetVersion;
   private String loincVersion;
-  private Map<String, UnitDefinition> unitMap;
+  private ValueSet commonUcum;
 
   /**
    * @param labcodesetVersion version of the Labcodeset being transformed
    * @param loincVersion LOINC version the Labcodeset file should be used with
-   * @param terminologyClient {@link TerminologyClient} that can be used to lookup details of LOINC
-   *        codes
-   * @param unitMap Map of the unit references and their details in the Labcodeset file
+   * @param commonUcum FHIR specification common UCUM codes ValueSet, which is only read
    */
-  public UcumResourceGenerator(String labcodesetVersion, String loincVersion, Map<String, UnitDefinition> unitMap) {
+  public UcumResourceGenerator(String labcodesetVersion, String loincVersion, ValueSet commonUcum) {
     this.labcodesetVersion = labcodesetVersion;
     this.loincVersion = loincVersion;
-    this.unitMap = unitMap;
+    this.commonUcum = commonUcum;
   }
 
   /**
-   * @param pub Parsed Labcodeset XML object
+   * @param index {@link PublicationIndex} of the Labcodeset
    * @return {@link CodeSystem} resource containing the unique union of the Labcodeset UCUM
    *         expressions and expressions in the FHIR specification common UCUM codes with Dutch
    *         display names where available and English designations.
+   * @throws IllegalArgumentException if a unit of the Labcodeset has no UCUM expression or no Dutch
+   *         name
    */
-  public CodeSystem createUcumCodeSystem(Publication pub) {
+  public CodeSystem createUcumCodeSystem(PublicationIndex index) {
     CodeSystem codeSystem = new CodeSystem();
     String csIdentifier = "Ucum-" + Constants.UCUM_VERSION;
     codeSystem.setId(csIdentifier);
@@ -79,40 +74,27 @@ public class UcumResourceGenerator {
 
     Set<String> nlUcumCodeset = new HashSet<>();
 
-    for (Entry<String, UnitDefinition> entry : unitMap.entrySet()) {
-      UnitDefinition code = entry.getValue();
-      if (!nlUcumCodeset.contains(code.getRm())) {
-        ConceptDefinitionComponent ucumCode = codeSystem.addConcept();
+    for (UnitDefinition code : index.getDistinctUnits()) {
+      ConceptDefinitionComponent ucumCode = codeSystem.addConcept();
 
-        if (code.getRm() == null) {
-          System.err.println("UCUM unit reference " + entry.getKey() + " has no defined UCUM expression - cannot continue");
-          System.exit(1);
-        }
-
-        if (code.getNlname() == null) {
-          System.err.println("UCUM unit reference " + entry.getKey() + " has no defined Dutch name - cannot continue");
-          System.exit(1);
-        }
+      if (code.getRm() == null) {
+        throw new IllegalArgumentException("UCUM unit reference " + code.getId() + " has no defined UCUM expression - cannot continue");
+      }
 
-        ucumCode.setCode(code.getRm());
-        ucumCode.setDisplay(code.getNlname());
+      if (code.getNlname() == null) {
+        throw new IllegalArgumentException("UCUM unit reference " + code.getId() + " has no defined Dutch name - cannot continue");
+      }
 
-        if (code.getName() != null) {
-          ucumCode.addDesignation().setLanguage("en").setValue(code.getName());
-        } else {
-          System.err.println("UCUM expression " + code.getRm() + " has no defined English name in Labcodeset");
-        }
+      ucumCode.setCode(code.getRm());
+      ucumCode.setDisplay(code.getNlname());
 
-        nlUcumCodeset.add(code.getRm());
+      if (code.getName() != null) {
+        ucumCode.addDesignation().setLanguage("en").setValue(code.getName());
+      } else {
+        System.err.println("UCUM expression " + code.getRm() + " has no defined English name in Labcodeset");
       }
-    }
 
-    ValueSet commonUcum = null;
-    try {
-      commonUcum = TerminologyClient.getCommonUcumCodes();
-    } catch (IOException e) {
-      System.err.println("Unable to get common UCUM codes from the FHIR spec due to " + e.getLocalizedMessage());
-      System.exit(1);
+      nlUcumCodeset.add(code.getRm());
     }
 
     for (ConceptSetComponent commonInclude : commonUcum.getCompose().getInclude()) {
@@ -131,10 +113,10 @@ public class UcumResourceGenerator {
   }
 
   /**
-   * @param pub Parsed Labcodeset XML object
+   * @param index {@link PublicationIndex} of the Labcodeset
    * @return {@link ValueSet} containing the unique set of UCUM expressions referenced by Labcodeset
    */
-  public ValueSet createUcumValueSet(Publication pub) {
+  public ValueSet createUcumValueSet(PublicationIndex index) {
     ValueSet valueSet = new ValueSet();
     String vsIdentifier = "Labconcepts-ucum-" + labcodesetVersion;
     valueSet.setId(vsIdentifier);
@@ -149,26 +131,20 @@ public class UcumResourceGenerator {
     ConceptSetComponent include = component.addInclude();
     include.setSystem(Constants.UCUM_CS_URI);
 
-    Set<String> nlUcumCodeset = new HashSet<>();
-
-    for (UnitDefinition entry : unitMap.values()) {
-      if (!nlUcumCodeset.contains(entry.getRm())) {
-        ConceptReferenceComponent reference = include.addConcept();
-        reference.setCode(entry.getRm());
-        reference.setDisplay(entry.getNlname());
-
-        nlUcumCodeset.add(entry.getRm());
-      }
+    for (UnitDefinition entry : index.getDistinctUnits()) {
+      ConceptReferenceComponent reference = include.addConcept();
+      reference.setCode(entry.getRm());
+      reference.setDisplay(entry.getNlname());
     }
     return valueSet;
   }
 
   /**
-   * @param pub Parsed Labcodeset XML object
+   * @param index {@link PublicationIndex} of the Labcodeset
    * @return {@link ConceptMap} containing maps from LOINC codes to UCUM units as expressed in the
    *         references in Labcodeset
    */
-  public ConceptMap createUcumMap(Publication pub) {
+  public ConceptMap createUcumMap(PublicationIndex index) {
     ConceptMap map = new ConceptMap();
 
     String identifier = "Labconcepts-ucum-" + labcodesetVersion;
@@ -184,20 +160,14 @@ public class UcumResourceGenerator {
     group.setTarget(Constants.UCUM_CS_URI);
     group.setTargetVersion(Constants.UCUM_VERSION);
 
-    for (LabConcept labConcept : pub.getLabConcepts().getLabConcept()) {
-      Units units = labConcept.getUnits();
-      if (units != null) {
-        UnitDefinition unit = unitMap.get(units.getUnit().getRef());
+    for (IndexedLabConcept labConcept : index.getLabConcepts()) {
+      if (labConcept.getUnitRef() != null) {
+        UnitDefinition unit = labConcept.getUnit();
 
         if (unit != null) {
           SourceElementComponent element = new SourceElementComponent();
-          element.setCode(labConcept.getLoincConcept().getLoincNum());
-          if (labConcept.getLoincConcept().getTranslation() != null
-              && labConcept.getLoincConcept().getTranslation().getLongName() != null) {
-            element.setDisplay(labConcept.getLoincConcept().getTranslation().getLongName().getValue());
-          } else {
-            element.setDisplay(labConcept.getLoincConcept().getLongName().getValue());
-          }
+          element.setCode(labConcept.getLoincNum());
+          element.setDisplay(labConcept.getDisplay());
           TargetElementComponent targetElement = new TargetElementComponent();
           element.addTarget(targetElement);
           targetElement.setEquivalence(ConceptMapEquivalence.RELATEDTO);
@@ -206,8 +176,7 @@ public class UcumResourceGenerator {
           targetElement.setDisplay(unit.getNlname());
           group.addElement(element);
         } else {
-          System.err.println(
-              "Unable to find unit for reference " + units.getUnit().getRef() + " on " + labConcept.getLoincConcept().getLoincNum());
+          System.err.println("Unable to find unit for reference " + labConcept.getUnitRef() + " on " + labConcept.getLoincNum());
         }
       }
     }
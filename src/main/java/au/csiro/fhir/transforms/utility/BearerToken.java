@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpHeaders;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import au.csiro.fhir.transforms.utility.LookupMetrics.Terminology;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+/**
+ * Bearer token fetched from a token endpoint with the client credentials grant. The token is only
+ * fetched once it is first needed, and fetched again shortly before it expires, according to the
+ * expires_in of the token response, or once a server has rejected it, so that a long running
+ * service or directory watch keeps working after its first token has expired.
+ */
+public class BearerToken {
+
+  private static final long MAX_REFRESH_MARGIN_MILLIS = 60000;
+
+  private final CloseableHttpClient httpClient;
+  private final LookupMetrics metrics;
+  private final String tokenEndpoint;
+  private final String clientId;
+  private final String clientSecret;
+  private String token;
+  private long refreshAt;
+
+  /**
+   * @param httpClient HTTP client to request the token with
+   * @param metrics {@link LookupMetrics} to record the time taken to fetch the token in
+   * @param tokenEndpoint token endpoint to get the bearer token from
+   * @param clientId client id to get the bearer token with
+   * @param clientSecret client secret to get the bearer token with
+   */
+  public BearerToken(CloseableHttpClient httpClient, LookupMetrics metrics, String tokenEndpoint, String clientId, String clientSecret) {
+    this.httpClient = httpClient;
+    this.metrics = metrics;
+    this.tokenEndpoint = tokenEndpoint;
+    this.clientId = clientId;
+    this.clientSecret = clientSecret;
+  }
+
+  /**
+   * @return the current token, fetching a new one if there is none yet, it is about to expire or it
+   *         has been rejected
+   * @throws IOException if a new token cannot be fetched
+   */
+  public synchronized String get() throws IOException {
+    if (token == null || System.currentTimeMillis() >= refreshAt) {
+      fetch();
+    }
+    return token;
+  }
+
+  /**
+   * Discards a token a server rejected, so that the next call to {@link #get()} fetches a new one.
+   * Concurrent requests rejected with the same token only cause one new token to be fetched.
+   *
+   * @param rejected the token the server rejected
+   */
+  public synchronized void reject(String rejected) {
+    if (rejected != null && rejected.equals(token)) {
+      token = null;
+    }
+  }
+
+  /**
+   * @return an {@link IClientInterceptor} sending the current token with each request of a HAPI
+   *         client, and discarding it if the server responds with 401 Unauthorized
+   */
+  public IClientInterceptor newInterceptor() {
+    return new IClientInterceptor() {
+      // HAPI intercepts the request and the response of a request on the same thread
+      private final ThreadLocal<String> sent = new ThreadLocal<>();
+
+      @Override
+      public void interceptRequest(IHttpRequest request) {
+        try {
+          sent.set(get());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + sent.get());
+      }
+
+      @Override
+      public void interceptResponse(IHttpResponse response) {
+        if (response.getStatus() == 401) {
+          reject(sent.get());
+        }
+        sent.remove();
+      }
+    };
+  }
+
+  private void fetch() throws IOException {
+    HttpPost post = new HttpPost(tokenEndpoint);
+
+    List<NameValuePair> urlParameters = new ArrayList<>();
+    urlParameters.add(new BasicNameValuePair("grant_type", "client_credentials"));
+    urlParameters.add(new BasicNameValuePair("client_id", clientId));
+    urlParameters.add(new BasicNameValuePair("client_secret", clientSecret));
+
+    post.setEntity(new UrlEncodedFormEntity(urlParameters));
+
+    long fetched = System.currentTimeMillis();
+    JsonObject response = metrics.time(Terminology.TOKEN, "token", () -> {
+      try (CloseableHttpResponse httpResponse = httpClient.execute(post)) {
+        String body = httpResponse.getEntity() == null ? "" : EntityUtils.toString(httpResponse.getEntity());
+        if (httpResponse.getStatusLine().getStatusCode() != 200) {
+          throw new IOException("Unable to get a bearer token from " + tokenEndpoint + ", response code was "
+              + httpResponse.getStatusLine().getStatusCode() + " response was " + body);
+        }
+        return JsonParser.parseString(body).getAsJsonObject();
+      }
+    });
+
+    JsonElement accessToken = response.get("access_token");
+    if (accessToken == null) {
+      throw new IOException("No access_token in the response of " + tokenEndpoint);
+    }
+    token = accessToken.getAsString();
+
+    // refreshed a minute before it expires, or half way through its lifetime if that is shorter
+    JsonElement expiresIn = response.get("expires_in");
+    if (expiresIn == null) {
+      refreshAt = Long.MAX_VALUE;
+    } else {
+      long lifetime = TimeUnit.SECONDS.toMillis(expiresIn.getAsLong());
+      refreshAt = fetched + lifetime - Math.min(MAX_REFRESH_MARGIN_MILLIS, lifetime / 2);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import au.csiro.fhir.transforms.utility.LookupMetrics.Terminology;
+
+/**
+ * Thread safe cache of looked up values which coalesces concurrent requests for the same key, so
+ * that a value is never fetched more than once while a fetch for it is already in flight. Keys
+ * served from the cache or joining a fetch already in flight are counted as hits.
+ *
+ * @param <V> type of the cached values
+ */
+class ConcurrentLookupCache<V> {
+
+  private final ConcurrentMap<String, V> values = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+  private final LookupMetrics metrics;
+  private final Terminology terminology;
+
+  /**
+   * @param metrics {@link LookupMetrics} to count hits in
+   * @param terminology terminology to count the hits against
+   */
+  ConcurrentLookupCache(LookupMetrics metrics, Terminology terminology) {
+    this.metrics = metrics;
+    this.terminology = terminology;
+  }
+
+  /**
+   * @param key key to get the value for
+   * @return the cached value, or null if the value is not cached
+   */
+  V getIfPresent(String key) {
+    return values.get(key);
+  }
+
+  /**
+   * Gets the value for a key, fetching it on the executor if it is neither cached nor already being
+   * fetched
+   *
+   * @param key key to get the value for
+   * @param loader function fetching the value for a key, returning null if there is no value
+   * @param executor {@link Executor} to run the loader on
+   * @return future completed with the value, or null if the loader found no value
+   */
+  CompletableFuture<V> get(String key, Function<String, V> loader, Executor executor) {
+    V cached = values.get(key);
+    if (cached != null) {
+      metrics.recordHit(terminology);
+      return CompletableFuture.completedFuture(cached);
+    }
+
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      metrics.recordHit(terminology);
+      return existing;
+    }
+
+    // the value may have been cached between the first check and claiming the key
+    cached = values.get(key);
+    if (cached != null) {
+      metrics.recordHit(terminology);
+      complete(key, future, cached);
+      return future;
+    }
+
+    executor.execute(() -> {
+      try {
+        complete(key, future, loader.apply(key));
+      } catch (Throwable e) {
+        fail(key, future, e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Gets the values for a set of keys, fetching those neither cached nor already being fetched in
+   * batches on the executor
+   *
+   * @param keys keys to get the values for
+   * @param batchLoader function fetching the values for a batch of keys, keys with no value may be
+   *        absent from the returned {@link Map}
+   * @param batchSize maximum number of keys passed to a single call of the batchLoader
+   * @param executor {@link Executor} to run the batchLoader on
+   * @return future completed when all the keys have been fetched
+   */
+  CompletableFuture<Void> getAll(Collection<String> keys, Function<List<String>, Map<String, V>> batchLoader, int batchSize,
+      Executor executor) {
+    List<CompletableFuture<V>> pending = new ArrayList<>();
+    Map<String, CompletableFuture<V>> claimed = new LinkedHashMap<>();
+
+    for (String key : new LinkedHashSet<>(keys)) {
+      if (values.containsKey(key)) {
+        metrics.recordHit(terminology);
+        continue;
+      }
+      CompletableFuture<V> future = new CompletableFuture<>();
+      CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+      if (existing != null) {
+        metrics.recordHit(terminology);
+        pending.add(existing);
+      } else if (values.containsKey(key)) {
+        metrics.recordHit(terminology);
+        complete(key, future, values.get(key));
+      } else {
+        claimed.put(key, future);
+        pending.add(future);
+      }
+    }
+
+    List<String> claimedKeys = new ArrayList<>(claimed.keySet());
+    for (int start = 0; start < claimedKeys.size(); start += batchSize) {
+      List<String> batch = claimedKeys.subList(start, Math.min(start + batchSize, claimedKeys.size()));
+      executor.execute(() -> {
+        try {
+          Map<String, V> result = batchLoader.apply(batch);
+          for (String key : batch) {
+            complete(key, claimed.get(key), result.get(key));
+          }
+        } catch (Throwable e) {
+          for (String key : batch) {
+            fail(key, claimed.get(key), e);
+          }
+        }
+      });
+    }
+
+    return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]));
+  }
+
+  private void complete(String key, CompletableFuture<V> future, V value) {
+    if (value != null) {
+      values.put(key, value);
+    }
+    inFlight.remove(key, future);
+    future.complete(value);
+  }
+
+  private void fail(String key, CompletableFuture<V> future, Throwable e) {
+    inFlight.remove(key, future);
+    future.completeExceptionally(e);
+  }
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal streaming reader for comma separated files as published in the LOINC distribution, with
+ * double quoted fields which may contain commas, escaped quotes and line breaks
+ */
+class CsvReader implements Closeable {
+
+  private final Reader reader;
+  private final StringBuilder field = new StringBuilder();
+  private int next;
+
+  /**
+   * @param reader {@link Reader} to read the records from, should be buffered
+   * @throws IOException if the reader cannot be read
+   */
+  CsvReader(Reader reader) throws IOException {
+    this.reader = reader;
+    this.next = reader.read();
+  }
+
+  /**
+   * @return the fields of the next record, or null if there are no more records
+   * @throws IOException if the reader cannot be read
+   */
+  String[] readRecord() throws IOException {
+    if (next == -1) {
+      return null;
+    }
+
+    List<String> fields = new ArrayList<>();
+    boolean quoted = false;
+    field.setLength(0);
+    while (next != -1) {
+      int c = next;
+      next = reader.read();
+      if (quoted) {
+        if (c == '"' && next == '"') {
+          field.append('"');
+          next = reader.read();
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append((char) c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else if (c == '\n') {
+        break;
+      } else if (c != '\r') {
+        field.append((char) c);
+      }
+    }
+    fields.add(field.toString());
+    return fields.toArray(new String[fields.size()]);
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+
+/**
+ * Single pooled HTTP client shared by all the terminology traffic of a transformation, the FHIR
+ * lookups as well as fetching the common UCUM codes and bearer tokens, so connections are kept
+ * alive and reused rather than set up for each request
+ */
+public class HttpTransport implements Closeable {
+
+  /**
+   * Default time in milliseconds to wait for a connection to be established
+   */
+  public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+  /**
+   * Default time in milliseconds to wait for data on an established connection
+   */
+  public static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+
+  /**
+   * Default time in seconds to keep idle connections open for reuse, when the server does not say
+   */
+  public static final int DEFAULT_KEEP_ALIVE = 30;
+
+  private final CloseableHttpClient httpClient;
+  private final int maxConnections;
+  private final int connectTimeout;
+  private final int socketTimeout;
+
+  /**
+   * @param maxConnections maximum number of connections to pool, which should be at least the number
+   *        of concurrent lookups
+   * @param connectTimeout time in milliseconds to wait for a connection to be established
+   * @param socketTimeout time in milliseconds to wait for data on an established connection
+   * @param keepAlive time in seconds to keep idle connections open for reuse when the server does
+   *        not specify a keep-alive timeout
+   * @param compression true to ask for gzip or deflate compressed responses
+   */
+  public HttpTransport(int maxConnections, int connectTimeout, int socketTimeout, int keepAlive, boolean compression) {
+    this.maxConnections = maxConnections;
+    this.connectTimeout = connectTimeout;
+    this.socketTimeout = socketTimeout;
+
+    // no time to live, connections stay pooled for as long as the keep-alive strategy allows
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+    RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(connectTimeout).setSocketTimeout(socketTimeout)
+        .setConnectionRequestTimeout(socketTimeout).build();
+
+    HttpClientBuilder builder = HttpClientBuilder.create().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig)
+        .setKeepAliveStrategy(getKeepAliveStrategy(keepAlive)).evictIdleConnections(keepAlive, TimeUnit.SECONDS).useSystemProperties();
+    if (!compression) {
+      builder.disableContentCompression();
+    }
+    this.httpClient = builder.build();
+  }
+
+  /**
+   * @param keepAlive time in seconds to keep idle connections open for when the server does not
+   *        specify a keep-alive timeout
+   * @return {@link ConnectionKeepAliveStrategy} using the server keep-alive timeout if there is one
+   */
+  static ConnectionKeepAliveStrategy getKeepAliveStrategy(int keepAlive) {
+    return (response, context) -> {
+      long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return serverKeepAlive > 0 ? serverKeepAlive : TimeUnit.SECONDS.toMillis(keepAlive);
+    };
+  }
+
+  /**
+   * @return the shared HTTP client
+   */
+  public CloseableHttpClient getHttpClient() {
+    return httpClient;
+  }
+
+  /**
+   * Sets the shared HTTP client to be used by the FHIR clients created from a {@link FhirContext}
+   *
+   * @param ctx {@link FhirContext} to configure
+   */
+  public void configure(FhirContext ctx) {
+    IRestfulClientFactory clientFactory = ctx.getRestfulClientFactory();
+    clientFactory.setConnectTimeout(connectTimeout);
+    clientFactory.setSocketTimeout(socketTimeout);
+    clientFactory.setPoolMaxTotal(maxConnections);
+    clientFactory.setPoolMaxPerRoute(maxConnections);
+    clientFactory.setHttpClient(httpClient);
+  }
+
+  /**
+   * Closes the shared HTTP client and all its pooled connections
+   */
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+}
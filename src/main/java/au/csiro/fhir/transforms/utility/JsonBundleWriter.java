@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Writes a Bundle as JSON from resources that have already been encoded, so that resources written
+ * to their own files as well are not encoded a second time for the Bundle. The output is identical
+ * to encoding a {@link org.hl7.fhir.r4.model.Bundle} with the entries' resources and requests using
+ * a HAPI JSON parser with the same pretty printing setting. Entries are written to the stream as
+ * they are added, so the writer holds no resources.
+ */
+public class JsonBundleWriter implements Closeable {
+
+  /**
+   * Layout of the written JSON, which the resources added must be encoded in as well
+   */
+  public enum Layout {
+
+    /**
+     * Pretty printed Bundle, added resources must be pretty printed
+     */
+    PRETTY("{\n  \"resourceType\": \"Bundle\",\n  \"type\": ", ",\n  \"entry\": [ {\n    \"resource\": ", "\n  }, {\n    \"resource\": ",
+        ",\n    \"request\": {\n      \"method\": ", ",\n      \"url\": ", "\n    }", "\n  } ]\n}", "\n}"),
+
+    /**
+     * Bundle without any whitespace, added resources must not contain whitespace either
+     */
+    COMPACT("{\"resourceType\":\"Bundle\",\"type\":", ",\"entry\":[{\"resource\":", "},{\"resource\":", ",\"request\":{\"method\":",
+        ",\"url\":", "}", "}]}", "}"),
+
+    /**
+     * The resources of the entries one per line without a Bundle around them, as read by bulk
+     * loaders, added resources must not contain whitespace. Entries cannot have requests.
+     */
+    NDJSON(null, "", "\n", null, null, null, "\n", "");
+
+    private final String header;
+    private final String firstEntry;
+    private final String nextEntry;
+    private final String requestMethod;
+    private final String requestUrl;
+    private final String requestEnd;
+    private final String entriesEnd;
+    private final String end;
+
+    private Layout(String header, String firstEntry, String nextEntry, String requestMethod, String requestUrl, String requestEnd,
+        String entriesEnd, String end) {
+      this.header = header;
+      this.firstEntry = firstEntry;
+      this.nextEntry = nextEntry;
+      this.requestMethod = requestMethod;
+      this.requestUrl = requestUrl;
+      this.requestEnd = requestEnd;
+      this.entriesEnd = entriesEnd;
+      this.end = end;
+    }
+  }
+
+  private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+  private static final byte[] ENTRY_INDENT = "    ".getBytes(StandardCharsets.UTF_8);
+
+  private OutputStream out;
+  private Layout layout;
+  private boolean hasEntries;
+  private boolean finished;
+
+  /**
+   * @param out {@link OutputStream} to write the Bundle to, closed when the Bundle is finished or this
+   *        writer is closed
+   * @param type {@link BundleType} of the Bundle
+   * @throws IOException if the Bundle cannot be written
+   */
+  public JsonBundleWriter(OutputStream out, BundleType type) throws IOException {
+    this(out, type, Layout.PRETTY);
+  }
+
+  /**
+   * @param out {@link OutputStream} to write the Bundle to, closed when the Bundle is finished or this
+   *        writer is closed
+   * @param type {@link BundleType} of the Bundle
+   * @param layout {@link Layout} to write the Bundle in
+   * @throws IOException if the Bundle cannot be written
+   */
+  public JsonBundleWriter(OutputStream out, BundleType type, Layout layout) throws IOException {
+    this.out = out;
+    this.layout = layout;
+    if (layout.header != null) {
+      write(layout.header + GSON.toJson(type.toCode()));
+    }
+  }
+
+  /**
+   * @param resource encoded JSON of the resource to add as an entry
+   * @throws IOException if the entry cannot be written
+   */
+  public void addEntry(byte[] resource) throws IOException {
+    addEntry(resource, null, null);
+  }
+
+  /**
+   * @param resource encoded JSON of the resource to add as an entry
+   * @param method {@link HTTPVerb} of the entry's request, or null for an entry without a request
+   * @param url URL of the entry's request
+   * @throws IOException if the entry cannot be written
+   */
+  public void addEntry(byte[] resource, HTTPVerb method, String url) throws IOException {
+    if (finished) {
+      throw new IllegalStateException("Bundle has already been finished");
+    }
+    if (method != null && layout.requestMethod == null) {
+      throw new IllegalArgumentException("Entries written as " + layout + " cannot have a request");
+    }
+    write(hasEntries ? layout.nextEntry : layout.firstEntry);
+    if (layout == Layout.PRETTY) {
+      writeIndented(resource);
+    } else {
+      out.write(resource);
+    }
+    if (method != null) {
+      write(layout.requestMethod + GSON.toJson(method.toCode()) + layout.requestUrl + GSON.toJson(url) + layout.requestEnd);
+    }
+    hasEntries = true;
+  }
+
+  /**
+   * Completes the Bundle and closes the underlying stream, no entries can be added after
+   *
+   * @throws IOException if the Bundle cannot be written
+   */
+  public void finish() throws IOException {
+    if (!finished) {
+      write(hasEntries ? layout.entriesEnd : layout.end);
+      finished = true;
+      out.close();
+    }
+  }
+
+  /**
+   * Closes the underlying stream if the Bundle has not been finished, leaving the Bundle incomplete
+   * so that it cannot be mistaken for a complete Bundle
+   */
+  @Override
+  public void close() throws IOException {
+    if (!finished) {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the resource indented to the depth of an entry, line breaks only occur between JSON
+   * tokens as line breaks within strings are escaped
+   */
+  private void writeIndented(byte[] resource) throws IOException {
+    int start = 0;
+    for (int i = 0; i < resource.length; i++) {
+      if (resource[i] == '\n') {
+        out.write(resource, start, i + 1 - start);
+        out.write(ENTRY_INDENT);
+        start = i + 1;
+      }
+    }
+    out.write(resource, start, resource.length - start);
+  }
+
+  private void write(String json) throws IOException {
+    out.write(json.getBytes(StandardCharsets.UTF_8));
+  }
+}
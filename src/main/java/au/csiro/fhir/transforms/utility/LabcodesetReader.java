@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import au.csiro.fhir.transform.xml.nl.labcodeset.Desc;
+import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept;
+import au.csiro.fhir.transform.xml.nl.labcodeset.MappingTable;
+import au.csiro.fhir.transform.xml.nl.labcodeset.Nominals;
+import au.csiro.fhir.transform.xml.nl.labcodeset.Ordinals;
+import au.csiro.fhir.transform.xml.nl.labcodeset.Panels;
+import au.csiro.fhir.transform.xml.nl.labcodeset.Publication;
+import au.csiro.fhir.transform.xml.nl.labcodeset.UnitTable;
+
+/**
+ * Streaming reader for Labcodeset XML files. Each lab_concept is unmarshalled on its own and passed
+ * to the registered consumers, so only one lab concept is held in memory at a time, while the
+ * remaining (small) tables of the publication are unmarshalled into the returned
+ * {@link Publication}.
+ */
+public class LabcodesetReader {
+
+  private static final String PUBLICATION_ELEMENT = "publication";
+  private static final String LAB_CONCEPTS_ELEMENT = "lab_concepts";
+  private static final String LAB_CONCEPT_ELEMENT = "lab_concept";
+
+  private static JAXBContext context;
+
+  private File labcodesetFile;
+  private List<Consumer<LabConcept>> labConceptConsumers = new ArrayList<>();
+
+  /**
+   * @param labcodesetFile {@link File} containing the Labcodeset XML to read
+   */
+  public LabcodesetReader(File labcodesetFile) {
+    this.labcodesetFile = labcodesetFile;
+  }
+
+  /**
+   * @param consumer {@link Consumer} to pass each lab concept to, in document order
+   * @return this reader
+   */
+  public LabcodesetReader addLabConceptConsumer(Consumer<LabConcept> consumer) {
+    labConceptConsumers.add(consumer);
+    return this;
+  }
+
+  /**
+   * Reads the Labcodeset file, passing each lab concept to the registered consumers as it is read
+   *
+   * @return {@link Publication} with all content of the file except for the lab concepts
+   * @throws IOException if the file cannot be read or is not a valid Labcodeset file
+   */
+  public Publication read() throws IOException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+    try (InputStream in = new BufferedInputStream(new FileInputStream(labcodesetFile))) {
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      try {
+        Unmarshaller unmarshaller = getContext().createUnmarshaller();
+
+        reader.nextTag();
+        reader.require(XMLStreamReader.START_ELEMENT, null, PUBLICATION_ELEMENT);
+        Publication pub = new Publication();
+        pub.setEffectiveDate(reader.getAttributeValue(null, "effectiveDate"));
+        pub.setUser(reader.getAttributeValue(null, "user"));
+        pub.setType(reader.getAttributeValue(null, "type"));
+        if (pub.getEffectiveDate() == null) {
+          throw new IOException("Labcodeset file " + labcodesetFile + " has no publication effectiveDate");
+        }
+
+        reader.nextTag();
+        while (reader.isStartElement()) {
+          switch (reader.getLocalName()) {
+            case LAB_CONCEPTS_ELEMENT:
+              readLabConcepts(reader, unmarshaller);
+              break;
+            case "desc":
+              pub.setDesc(unmarshaller.unmarshal(reader, Desc.class).getValue());
+              break;
+            case "map":
+              pub.setMap(unmarshaller.unmarshal(reader, MappingTable.class).getValue());
+              break;
+            case "units":
+              pub.setUnits(unmarshaller.unmarshal(reader, UnitTable.class).getValue());
+              break;
+            case "ordinals":
+              pub.setOrdinals(unmarshaller.unmarshal(reader, Ordinals.class).getValue());
+              break;
+            case "nominals":
+              pub.setNominals(unmarshaller.unmarshal(reader, Nominals.class).getValue());
+              break;
+            case "panels":
+              pub.setPanels(unmarshaller.unmarshal(reader, Panels.class).getValue());
+              break;
+            default:
+              throw new IOException("Unexpected element " + reader.getLocalName() + " in Labcodeset publication at line "
+                  + reader.getLocation().getLineNumber());
+          }
+          skipToTag(reader);
+        }
+        return pub;
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException | JAXBException e) {
+      throw new IOException("Failed reading Labcodeset file " + labcodesetFile + " - " + e.getLocalizedMessage(), e);
+    }
+  }
+
+  /**
+   * Unmarshals the lab_concept elements of a lab_concepts element one at a time, leaving the reader
+   * after the end of the lab_concepts element
+   */
+  private void readLabConcepts(XMLStreamReader reader, Unmarshaller unmarshaller) throws XMLStreamException, JAXBException {
+    reader.nextTag();
+    while (reader.isStartElement()) {
+      reader.require(XMLStreamReader.START_ELEMENT, null, LAB_CONCEPT_ELEMENT);
+      LabConcept labConcept = unmarshaller.unmarshal(reader, LabConcept.class).getValue();
+      for (Consumer<LabConcept> consumer : labConceptConsumers) {
+        consumer.accept(labConcept);
+      }
+      skipToTag(reader);
+    }
+    reader.require(XMLStreamReader.END_ELEMENT, null, LAB_CONCEPTS_ELEMENT);
+    reader.next();
+  }
+
+  /**
+   * Moves the reader past whitespace and comments to the next start or end element, unmarshalling
+   * leaves the reader on the event following the unmarshalled element
+   */
+  private static void skipToTag(XMLStreamReader reader) throws XMLStreamException {
+    while (!reader.isStartElement() && !reader.isEndElement()) {
+      reader.next();
+    }
+  }
+
+  private static synchronized JAXBContext getContext() throws JAXBException {
+    if (context == null) {
+      context = JAXBContext.newInstance(Publication.class);
+    }
+    return context;
+  }
+}
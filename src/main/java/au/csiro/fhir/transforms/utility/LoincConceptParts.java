@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.Type;
+
+/**
+ * Part codes of the six main axes of a LOINC code, which is all the transformation needs from a
+ * LOINC lookup. Part codes are interned as the same parts are shared by many LOINC codes.
+ */
+public final class LoincConceptParts {
+
+  /**
+   * LOINC property codes of the axes, in the order they are held
+   */
+  public static final List<String> AXES =
+      Collections.unmodifiableList(Arrays.asList("COMPONENT", "PROPERTY", "TIME_ASPCT", "SYSTEM", "SCALE_TYP", "METHOD_TYP"));
+
+  private static final char SEPARATOR = '\t';
+
+  private final String component;
+  private final String property;
+  private final String timeAspect;
+  private final String system;
+  private final String scaleType;
+  private final String methodType;
+
+  /**
+   * @param parts part codes in the order of {@link #AXES}, null for any axis the LOINC code has no
+   *        part for
+   */
+  public LoincConceptParts(String... parts) {
+    if (parts.length != AXES.size()) {
+      throw new IllegalArgumentException("Expected " + AXES.size() + " LOINC parts but got " + parts.length);
+    }
+    this.component = intern(parts[0]);
+    this.property = intern(parts[1]);
+    this.timeAspect = intern(parts[2]);
+    this.system = intern(parts[3]);
+    this.scaleType = intern(parts[4]);
+    this.methodType = intern(parts[5]);
+  }
+
+  /**
+   * @param parameters {@link Parameters} returned by a FHIR $lookup of a LOINC code
+   * @return the part codes of the axis properties in the response, whether the values are returned
+   *         as valueCode, valueString or valueCoding
+   */
+  public static LoincConceptParts fromParameters(Parameters parameters) {
+    String[] parts = new String[AXES.size()];
+    for (ParametersParameterComponent parameter : parameters.getParameter()) {
+      if (parameter.getName().equals("property")) {
+        int axis = AXES.indexOf(getPartValue(parameter, "code"));
+        if (axis >= 0) {
+          parts[axis] = getPartValue(parameter, "value");
+        }
+      }
+    }
+    return new LoincConceptParts(parts);
+  }
+
+  /**
+   * @return the value of the named part of a $lookup property, the code of a Coding value, or null if
+   *         there is no such part
+   */
+  private static String getPartValue(ParametersParameterComponent property, String name) {
+    for (ParametersParameterComponent part : property.getPart()) {
+      if (name.equals(part.getName()) && part.getValue() != null) {
+        Type value = part.getValue();
+        return value instanceof Coding ? ((Coding) value).getCode() : value.primitiveValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param encoded value produced by {@link #encode()}
+   * @return the decoded parts
+   */
+  static LoincConceptParts decode(String encoded) {
+    String[] parts = new String[AXES.size()];
+    int start = 0;
+    for (int i = 0; i < parts.length; i++) {
+      int end = encoded.indexOf(SEPARATOR, start);
+      if (end < 0) {
+        end = encoded.length();
+      }
+      parts[i] = end == start ? null : encoded.substring(start, end);
+      start = end + 1;
+    }
+    return new LoincConceptParts(parts);
+  }
+
+  /**
+   * @return the part codes as a single string for persisting, decoded by {@link #decode(String)}
+   */
+  String encode() {
+    StringBuilder encoded = new StringBuilder();
+    for (int i = 0; i < AXES.size(); i++) {
+      if (i > 0) {
+        encoded.append(SEPARATOR);
+      }
+      if (get(i) != null) {
+        encoded.append(get(i));
+      }
+    }
+    return encoded.toString();
+  }
+
+  /**
+   * @param axis index of the axis in {@link #AXES}
+   * @return the part code for the axis, or null if there is none
+   */
+  public String get(int axis) {
+    switch (axis) {
+      case 0:
+        return component;
+      case 1:
+        return property;
+      case 2:
+        return timeAspect;
+      case 3:
+        return system;
+      case 4:
+        return scaleType;
+      case 5:
+        return methodType;
+      default:
+        throw new IndexOutOfBoundsException("No LOINC axis " + axis);
+    }
+  }
+
+  public String getComponent() {
+    return component;
+  }
+
+  public String getProperty() {
+    return property;
+  }
+
+  public String getTimeAspect() {
+    return timeAspect;
+  }
+
+  public String getSystem() {
+    return system;
+  }
+
+  public String getScaleType() {
+    return scaleType;
+  }
+
+  public String getMethodType() {
+    return methodType;
+  }
+
+  private static String intern(String part) {
+    return part == null ? null : part.intern();
+  }
+}
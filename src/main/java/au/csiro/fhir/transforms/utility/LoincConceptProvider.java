@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Source of the LOINC properties needed for the transformation
+ */
+public interface LoincConceptProvider {
+
+  /**
+   * Resolves a set of LOINC codes ahead of them being requested with
+   * {@link #getLoincConcept(String, String)}
+   *
+   * @param codes LOINC codes to resolve
+   * @param loincVersion LOINC version to use
+   * @return future completed when all the codes have been resolved
+   */
+  CompletableFuture<Void> lookupLoincAsync(Collection<String> codes, String loincVersion);
+
+  /**
+   * @param code LOINC code to look up
+   * @param loincVersion LOINC version to use
+   * @return the part codes of the main axes of the LOINC code
+   */
+  LoincConceptParts getLoincConcept(String code, String loincVersion);
+
+  /**
+   * @return where the LOINC properties are read from, so that output generated from another source
+   *         is not reused
+   */
+  String getSource();
+}
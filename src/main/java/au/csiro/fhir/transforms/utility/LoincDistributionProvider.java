@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import au.csiro.fhir.transforms.utility.LookupMetrics.Terminology;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * {@link LoincConceptProvider} which reads the LOINC part codes from the files of an unpacked LOINC
+ * distribution rather than a FHIR terminology server, allowing transformation without network
+ * access.
+ * <p>
+ * The Loinc.csv table and the primary LoincPartLink file are streamed when codes are looked up,
+ * indexing the part codes of the six main axes of only the requested LOINC numbers so that the
+ * index holds the codes a Labcodeset uses rather than the whole distribution. Codes already indexed,
+ * or already found to be absent, are not read again.
+ */
+public class LoincDistributionProvider implements LoincConceptProvider {
+
+  private static final String LOINC_TABLE_FILENAME = "Loinc.csv";
+  private static final List<String> PART_LINK_FILENAMES = Arrays.asList("LoincPartLink_Primary.csv", "LoincPartLink.csv");
+  private static final String PROPERTY_URI_PREFIX = Constants.LOINC_CS_URI + "/property/";
+  private static final String PRIMARY_LINK_TYPE = "Primary";
+
+  private final File loincDir;
+  private final String loincVersion;
+  private final LookupMetrics metrics;
+  private final Map<String, LoincConceptParts> index = new ConcurrentHashMap<>();
+  private final Set<String> absent = ConcurrentHashMap.newKeySet();
+  private boolean versionChecked;
+
+  /**
+   * @param loincDir directory containing an unpacked LOINC distribution
+   * @param loincVersion version of the LOINC distribution
+   */
+  public LoincDistributionProvider(File loincDir, String loincVersion) {
+    this(loincDir, loincVersion, new LookupMetrics());
+  }
+
+  /**
+   * @param loincDir directory containing an unpacked LOINC distribution
+   * @param loincVersion version of the LOINC distribution
+   * @param metrics {@link LookupMetrics} to record codes served from the index as hits, and codes
+   *        read from the distribution as misses, in
+   */
+  public LoincDistributionProvider(File loincDir, String loincVersion, LookupMetrics metrics) {
+    this.loincDir = loincDir;
+    this.loincVersion = loincVersion;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public String getSource() {
+    return loincDir.getAbsoluteFile().toURI().toString();
+  }
+
+  @Override
+  public CompletableFuture<Void> lookupLoincAsync(Collection<String> codes, String loincVersion) {
+    checkVersion(loincVersion);
+    Set<String> requested = new HashSet<>(codes);
+    return CompletableFuture.runAsync(() -> index(requested));
+  }
+
+  @Override
+  public LoincConceptParts getLoincConcept(String code, String loincVersion) {
+    checkVersion(loincVersion);
+
+    LoincConceptParts parts = index.get(code);
+    if (parts != null || absent.contains(code)) {
+      metrics.recordHit(Terminology.LOINC);
+    } else {
+      index(Collections.singleton(code));
+      parts = index.get(code);
+    }
+    if (parts == null) {
+      throw new ResourceNotFoundException("LOINC code " + code + " not found in the LOINC distribution in " + loincDir);
+    }
+    return parts;
+  }
+
+  private void checkVersion(String loincVersion) {
+    if (!this.loincVersion.equals(loincVersion)) {
+      throw new IllegalArgumentException(
+          "LOINC version " + loincVersion + " requested but the distribution in " + loincDir + " is version " + this.loincVersion);
+    }
+  }
+
+  /**
+   * Reads the part codes of the codes not already indexed or found to be absent into the index
+   */
+  private synchronized void index(Set<String> codes) {
+    Set<String> unread = codes.stream().filter(code -> !index.containsKey(code) && !absent.contains(code)).collect(Collectors.toSet());
+    metrics.recordHits(Terminology.LOINC, codes.size() - unread.size());
+    if (unread.isEmpty()) {
+      return;
+    }
+    metrics.recordMisses(Terminology.LOINC, unread.size());
+    try {
+      long start = System.currentTimeMillis();
+      Map<String, LoincConceptParts> read = metrics.time(Terminology.LOINC, "read distribution", () -> readIndex(unread));
+      index.putAll(read);
+      unread.removeAll(read.keySet());
+      absent.addAll(unread);
+      unread.forEach(code -> metrics.recordNotFound(Terminology.LOINC));
+      System.out.println("Indexed " + read.size() + " LOINC codes from " + loincDir + " in " + (System.currentTimeMillis() - start) + "ms");
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed reading LOINC distribution in " + loincDir, e);
+    }
+  }
+
+  private Map<String, LoincConceptParts> readIndex(Set<String> codes) throws IOException {
+    Map<String, String[]> loincParts = new HashMap<>();
+
+    String latestVersion = null;
+    try (CsvReader reader = openCsv(LOINC_TABLE_FILENAME)) {
+      List<String> header = readHeader(reader);
+      int loincNumColumn = getColumn(header, "LOINC_NUM", LOINC_TABLE_FILENAME);
+      int versionColumn = versionChecked ? -1 : header.indexOf("VersionLastChanged");
+      String[] record;
+      while ((record = reader.readRecord()) != null) {
+        if (record.length > loincNumColumn) {
+          if (codes.contains(record[loincNumColumn])) {
+            loincParts.put(record[loincNumColumn], new String[LoincConceptParts.AXES.size()]);
+          }
+          if (versionColumn >= 0 && record.length > versionColumn && compareVersions(record[versionColumn], latestVersion) > 0) {
+            latestVersion = record[versionColumn];
+          }
+        }
+      }
+    }
+    versionChecked = true;
+    if (latestVersion != null && !latestVersion.equals(loincVersion)) {
+      System.err.println("WARNING: LOINC distribution in " + loincDir + " appears to be version " + latestVersion
+          + " rather than the requested version " + loincVersion);
+    }
+    if (loincParts.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    String partLinkFilename = PART_LINK_FILENAMES.stream().filter(name -> findFile(name).isPresent()).findFirst()
+        .orElseThrow(() -> new IOException("No LoincPartLink file found in " + loincDir));
+    try (CsvReader reader = openCsv(partLinkFilename)) {
+      List<String> header = readHeader(reader);
+      int loincNumColumn = getColumn(header, "LoincNumber", partLinkFilename);
+      int partNumberColumn = getColumn(header, "PartNumber", partLinkFilename);
+      int linkTypeColumn = getColumn(header, "LinkTypeName", partLinkFilename);
+      int propertyColumn = getColumn(header, "Property", partLinkFilename);
+      String[] record;
+      while ((record = reader.readRecord()) != null) {
+        if (record.length <= propertyColumn || !PRIMARY_LINK_TYPE.equals(record[linkTypeColumn])
+            || !record[propertyColumn].startsWith(PROPERTY_URI_PREFIX)) {
+          continue;
+        }
+        int axis = LoincConceptParts.AXES.indexOf(record[propertyColumn].substring(PROPERTY_URI_PREFIX.length()));
+        String[] parts = loincParts.get(record[loincNumColumn]);
+        if (axis >= 0 && parts != null) {
+          parts[axis] = record[partNumberColumn];
+        }
+      }
+    }
+
+    Map<String, LoincConceptParts> index = new HashMap<>(loincParts.size() * 4 / 3 + 1);
+    loincParts.forEach((code, parts) -> index.put(code, new LoincConceptParts(parts)));
+    return index;
+  }
+
+  private CsvReader openCsv(String filename) throws IOException {
+    Path file = findFile(filename).orElseThrow(() -> new IOException("No " + filename + " file found in " + loincDir));
+    return new CsvReader(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+  }
+
+  private Optional<Path> findFile(String filename) {
+    try (Stream<Path> files = Files.walk(loincDir.toPath(), 4)) {
+      return files.filter(path -> path.getFileName().toString().equalsIgnoreCase(filename)).findFirst();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static List<String> readHeader(CsvReader reader) throws IOException {
+    String[] header = reader.readRecord();
+    if (header == null) {
+      throw new IOException("Empty file");
+    }
+    // strip any byte order mark
+    header[0] = header[0].replace("\uFEFF", "");
+    return Arrays.asList(header);
+  }
+
+  private static int getColumn(List<String> header, String name, String filename) throws IOException {
+    int column = header.indexOf(name);
+    if (column < 0) {
+      throw new IOException("Column " + name + " not found in " + filename);
+    }
+    return column;
+  }
+
+  /**
+   * Compares LOINC versions of the form x.yy numerically, a null version sorts before all others
+   */
+  private static int compareVersions(String a, String b) {
+    if (b == null) {
+      return a == null || a.isEmpty() ? 0 : 1;
+    }
+    String[] aParts = a.split("\\.");
+    String[] bParts = b.split("\\.");
+    for (int i = 0; i < Math.min(aParts.length, bParts.length); i++) {
+      try {
+        int result = Integer.compare(Integer.parseInt(aParts[i]), Integer.parseInt(bParts[i]));
+        if (result != 0) {
+          return result;
+        }
+      } catch (NumberFormatException e) {
+        return a.compareTo(b);
+      }
+    }
+    return Integer.compare(aParts.length, bParts.length);
+  }
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+/**
+ * Open addressing hash map with primitive long keys, avoiding boxing when indexing large numbers of
+ * SNOMED CT identifiers. Zero is not a valid SNOMED CT identifier and cannot be used as a key. Not
+ * thread safe.
+ *
+ * @param <V> type of the values
+ */
+class LongObjectMap<V> {
+
+  private static final float LOAD_FACTOR = 0.6f;
+
+  private long[] keys;
+  private Object[] values;
+  private int size;
+
+  /**
+   * @param expectedSize number of entries expected, used to size the table
+   */
+  LongObjectMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+    keys = new long[capacity];
+    values = new Object[capacity];
+  }
+
+  /**
+   * @param key key to get the value for
+   * @return the value for the key, or null if there is none
+   */
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    if (key == 0) {
+      return null;
+    }
+    int slot = find(key);
+    return keys[slot] == key ? (V) values[slot] : null;
+  }
+
+  /**
+   * @param key key to check
+   * @return true if the map contains the key
+   */
+  boolean containsKey(long key) {
+    return key != 0 && keys[find(key)] == key;
+  }
+
+  /**
+   * @param key key to set the value for, must not be 0
+   * @param value value to set
+   */
+  void put(long key, V value) {
+    if (key == 0) {
+      throw new IllegalArgumentException("0 cannot be used as a key");
+    }
+    int slot = find(key);
+    if (keys[slot] != key) {
+      if (size + 1 > keys.length * LOAD_FACTOR) {
+        resize();
+        slot = find(key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    values[slot] = value;
+  }
+
+  /**
+   * @return the number of entries in the map
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return the slot holding the key, or the empty slot it would be put in
+   */
+  private int find(long key) {
+    int mask = keys.length - 1;
+    int slot = (int) (mix(key) & mask);
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new Object[oldValues.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /**
+   * @return the hash of a key, of which the low bits select its home slot
+   */
+  static long mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 32);
+  }
+}
@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+/**
+ * Thread safe counters and latency histograms of the terminology requests made during a
+ * transformation, split by terminology, to tell whether time is being spent waiting on servers or
+ * in the transformation itself.
+ * <p>
+ * A hit is a code served without a request to a server, either from memory or from the
+ * {@link PersistentTerminologyCache}, and a miss is a code that had to be requested. For the LOINC
+ * and SNOMED CT distributions read offline, a hit is a code served from what has already been
+ * indexed and a miss is a code that had to be read from the distribution files.
+ */
+public class LookupMetrics {
+
+  /**
+   * Kinds of terminology traffic measured, including the upload of the generated resources
+   */
+  public enum Terminology {
+    LOINC, SNOMED, UCUM, TOKEN, UPLOAD
+  }
+
+  /**
+   * A request whose latency is measured
+   *
+   * @param <T> type of the result
+   * @param <E> type of exception the request can throw
+   */
+  @FunctionalInterface
+  public interface Request<T, E extends Exception> {
+    T execute() throws E;
+  }
+
+  private final Map<Terminology, Counters> counters = new EnumMap<>(Terminology.class);
+
+  public LookupMetrics() {
+    for (Terminology terminology : Terminology.values()) {
+      counters.put(terminology, new Counters());
+    }
+  }
+
+  public void recordHit(Terminology terminology) {
+    counters.get(terminology).hits.increment();
+  }
+
+  public void recordHits(Terminology terminology, int count) {
+    counters.get(terminology).hits.add(count);
+  }
+
+  public void recordMisses(Terminology terminology, int count) {
+    counters.get(terminology).misses.add(count);
+  }
+
+  public void recordNotFound(Terminology terminology) {
+    counters.get(terminology).notFound.increment();
+  }
+
+  public void recordRetry(Terminology terminology) {
+    counters.get(terminology).retries.increment();
+  }
+
+  public void recordError(Terminology terminology) {
+    counters.get(terminology).errors.increment();
+  }
+
+  /**
+   * @param terminology terminology the request was for
+   * @param operation name of the operation requested, such as "$lookup"
+   * @param nanos time the request took in nanoseconds
+   */
+  public void recordLatency(Terminology terminology, String operation, long nanos) {
+    counters.get(terminology).latencies.computeIfAbsent(operation, o -> new LatencyHistogram()).record(nanos);
+  }
+
+  /**
+   * Executes a request recording its latency, and counting it as not found if it throws a
+   * {@link ResourceNotFoundException} or as an error if it throws any other exception
+   *
+   * @param terminology terminology the request is for
+   * @param operation name of the operation requested, such as "$lookup"
+   * @param request request to execute
+   * @return the result of the request
+   * @throws E if the request fails
+   */
+  public <T, E extends Exception> T time(Terminology terminology, String operation, Request<T, E> request) throws E {
+    long start = System.nanoTime();
+    try {
+      return request.execute();
+    } catch (ResourceNotFoundException e) {
+      recordNotFound(terminology);
+      throw e;
+    } catch (Exception e) {
+      recordError(terminology);
+      throw e;
+    } finally {
+      recordLatency(terminology, operation, System.nanoTime() - start);
+    }
+  }
+
+  public long getHits(Terminology terminology) {
+    return counters.get(terminology).hits.sum();
+  }
+
+  public long getMisses(Terminology terminology) {
+    return counters.get(terminology).misses.sum();
+  }
+
+  public long getNotFound(Terminology terminology) {
+    return counters.get(terminology).notFound.sum();
+  }
+
+  public long getRetries(Terminology terminology) {
+    return counters.get(terminology).retries.sum();
+  }
+
+  public long getErrors(Terminology terminology) {
+    return counters.get(terminology).errors.sum();
+  }
+
+  /**
+   * @param terminology terminology the requests were for
+   * @param operation name of the operation requested
+   * @return the latencies recorded for the operation, or null if there are none
+   */
+  public LatencyHistogram getLatency(Terminology terminology, String operation) {
+    return counters.get(terminology).latencies.get(operation);
+  }
+
+  /**
+   * @return a human readable summary of all the terminologies with any activity recorded
+   */
+  public String getSummary() {
+    StringBuilder summary = new StringBuilder("Terminology lookup summary");
+    for (Entry<Terminology, Counters> entry : counters.entrySet()) {
+      Terminology terminology = entry.getKey();
+      Counters counter = entry.getValue();
+      long hits = counter.hits.sum();
+      long misses = counter.misses.sum();
+      if (hits + misses + counter.notFound.sum() + counter.errors.sum() == 0 && counter.latencies.isEmpty()) {
+        continue;
+      }
+      summary.append(String.format("%n  %-6s", terminology));
+      if (hits + misses > 0) {
+        summary.append(String.format(" hits %d, misses %d, hit ratio %.1f%%,", hits, misses, 100.0 * hits / (hits + misses)));
+      }
+      summary.append(
+          String.format(" not found %d, retries %d, errors %d", counter.notFound.sum(), counter.retries.sum(), counter.errors.sum()));
+      for (Entry<String, LatencyHistogram> latency : counter.latencies.entrySet()) {
+        LatencyHistogram histogram = latency.getValue();
+        summary.append(String.format("%n    %-22s count %d, p50 %.1fms, p95 %.1fms, p99 %.1fms, max %.1fms", latency.getKey(),
+            histogram.getCount(), millis(histogram.getPercentile(50)), millis(histogram.getPercentile(95)),
+            millis(histogram.getPercentile(99)), millis(histogram.getMax())));
+      }
+    }
+    return summary.toString();
+  }
+
+  private static double millis(long micros) {
+    return micros / 1000.0;
+  }
+
+  private static class Counters {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Lock free histogram of latencies in microseconds, with each power of two range split into 8
+   * buckets so percentiles are accurate to within 12.5%
+   */
+  public static class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+      long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+      buckets.incrementAndGet(bucket(micros));
+      count.increment();
+      max.accumulate(micros);
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+      return count.sum();
+    }
+
+    /**
+     * @return the largest latency recorded in microseconds
+     */
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return the latency in microseconds that the percentile of requests completed within
+     */
+    public long getPercentile(double percentile) {
+      long total = getCount();
+      if (total == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min(upperBound(i), getMax());
+        }
+      }
+      return getMax();
+    }
+
+    private static int bucket(long micros) {
+      if (micros < SUB_BUCKETS) {
+        return (int) micros;
+      }
+      int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+      int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      long subBucket = bucket % SUB_BUCKETS;
+      return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Terminology lookup results persisted to a directory so they can be reused across runs. Entries are
+ * keyed by code system, version and code, with one file per code system version so that results for
+ * one version are never returned for another. Versions should identify fixed content, such as a
+ * dated SNOMED CT edition, but as that is not always known the entries of a code system version are
+ * also discarded once they are older than a maximum age, so that they are eventually looked up again.
+ * <p>
+ * Each file is a compact binary layout of a header followed by length prefixed UTF-8 entries
+ *
+ * <pre>
+ * int magic, int format version, string system, string version, long created millis,
+ * int entry count, (string code, string value) * entry count
+ * </pre>
+ *
+ * where each string is an int byte length followed by its UTF-8 bytes. Files are memory mapped when
+ * read and rewritten atomically by {@link #save()}.
+ */
+public class PersistentTerminologyCache {
+
+  private static final int MAGIC = 0x4C435443;
+  private static final int FORMAT_VERSION = 3;
+  private static final String FILE_EXTENSION = ".cache";
+
+  /**
+   * Default maximum age of cached entries, 30 days
+   */
+  public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+  private final File cacheDir;
+  private final long maxAgeMillis;
+  private final ConcurrentMap<String, Segment> segments = new ConcurrentHashMap<>();
+
+  /**
+   * @param cacheDir directory to read and write the cache files in, created if it does not exist
+   * @throws IOException if the directory cannot be created
+   */
+  public PersistentTerminologyCache(File cacheDir) throws IOException {
+    this(cacheDir, DEFAULT_MAX_AGE_MILLIS);
+  }
+
+  /**
+   * @param cacheDir directory to read and write the cache files in, created if it does not exist
+   * @param maxAgeMillis age in milliseconds after which the entries of a code system version are
+   *        discarded rather than read
+   * @throws IOException if the directory cannot be created
+   */
+  public PersistentTerminologyCache(File cacheDir, long maxAgeMillis) throws IOException {
+    Files.createDirectories(cacheDir.toPath());
+    this.cacheDir = cacheDir;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * @param system code system URI
+   * @param version code system version
+   * @param code code to get the value for
+   * @return the cached value, or null if there is none
+   */
+  public String get(String system, String version, String code) {
+    return getSegment(system, version).entries.get(code);
+  }
+
+  /**
+   * @param system code system URI
+   * @param version code system version
+   * @param code code to cache the value for
+   * @param value value to cache, nothing is cached if it is null
+   */
+  public void put(String system, String version, String code, String value) {
+    if (value == null) {
+      return;
+    }
+    Segment segment = getSegment(system, version);
+    if (!value.equals(segment.entries.put(code, value))) {
+      segment.dirty = true;
+    }
+  }
+
+  /**
+   * Writes out the files for all code system versions with new entries since they were loaded
+   *
+   * @throws IOException if a file cannot be written
+   */
+  public void save() throws IOException {
+    for (Segment segment : segments.values()) {
+      if (segment.dirty) {
+        segment.dirty = false;
+        write(segment);
+      }
+    }
+  }
+
+  private Segment getSegment(String system, String version) {
+    return segments.computeIfAbsent(system + "|" + version, key -> {
+      Segment segment = new Segment(system, version);
+      try {
+        read(segment);
+      } catch (IOException | RuntimeException e) {
+        System.err.println("WARNING: Ignoring unreadable terminology cache file " + segment.file + " - " + e.getLocalizedMessage());
+        segment.entries.clear();
+      }
+      return segment;
+    });
+  }
+
+  private void read(Segment segment) throws IOException {
+    if (!segment.file.exists()) {
+      return;
+    }
+
+    try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        throw new IOException("unrecognised file format");
+      }
+      if (!segment.system.equals(readString(buffer)) || !segment.version.equals(readString(buffer))) {
+        throw new IOException("file is for a different code system version");
+      }
+      long created = buffer.getLong();
+      if (System.currentTimeMillis() - created > maxAgeMillis) {
+        // expired, the entries are looked up again and replace the file when next saved
+        return;
+      }
+      segment.created = created;
+      int count = buffer.getInt();
+      for (int i = 0; i < count; i++) {
+        segment.entries.put(readString(buffer), readString(buffer));
+      }
+    }
+  }
+
+  private void write(Segment segment) throws IOException {
+    Path temp = Files.createTempFile(cacheDir.toPath(), segment.file.getName(), ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(temp);
+          DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        writeString(data, segment.system);
+        writeString(data, segment.version);
+        data.writeLong(segment.created);
+        Map<String, String> entries = Map.copyOf(segment.entries);
+        data.writeInt(entries.size());
+        for (Entry<String, String> entry : entries.entrySet()) {
+          writeString(data, entry.getKey());
+          writeString(data, entry.getValue());
+        }
+      }
+      Files.move(temp, segment.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeString(DataOutputStream data, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  /**
+   * Cached entries for a single code system version and the file they are persisted in
+   */
+  private class Segment {
+    private final String system;
+    private final String version;
+    private final File file;
+    private final ConcurrentMap<String, String> entries = new ConcurrentHashMap<>();
+    private long created = System.currentTimeMillis();
+    private volatile boolean dirty;
+
+    private Segment(String system, String version) {
+      this.system = system;
+      this.version = version;
+      String name = (system + "_" + version).replaceAll("[a-z]+://", "");
+      this.file = new File(cacheDir, name.replaceAll("[^A-Za-z0-9._-]", "_") + FILE_EXTENSION);
+    }
+  }
+}
@@ -0,0 +1,414 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept;
+import au.csiro.fhir.transform.xml.nl.labcodeset.LabConcept.Materials.Material;
+import au.csiro.fhir.transform.xml.nl.labcodeset.LoincAxis;
+import au.csiro.fhir.transform.xml.nl.labcodeset.LoincConcept;
+import au.csiro.fhir.transform.xml.nl.labcodeset.Publication;
+import au.csiro.fhir.transform.xml.nl.labcodeset.UnitDefinition;
+import au.csiro.fhir.transform.xml.nl.labcodeset.ValueSetDefinition;
+
+/**
+ * Immutable index of a Labcodeset publication built in a single pass over the file. Each lab
+ * concept is reduced to the details the resource generators use, with displays resolved and unit
+ * references dereferenced, and the distinct sets of codes are computed up front.
+ */
+public final class PublicationIndex {
+
+  private final String labcodesetVersion;
+  private final IndexedLabConcept[] labConcepts;
+  private final Map<String, UnitDefinition> units;
+  private final Collection<UnitDefinition> distinctUnits;
+  private final Map<String, Material> materials;
+  private final Set<String> translatedLoincCodes;
+  private final Map<String, String> materialDisplays;
+  private final List<ValueSetDefinition> ordinals;
+
+  private PublicationIndex(Publication pub, List<IndexedLabConcept> labConcepts, Map<String, Material> materials,
+      Set<String> translatedLoincCodes, Map<String, String> materialDisplays) {
+    this.labcodesetVersion = pub.getEffectiveDate().split("-")[0];
+
+    Map<String, UnitDefinition> units = new HashMap<>();
+    for (UnitDefinition unit : pub.getUnits().getUnit()) {
+      units.put(unit.getId(), unit);
+    }
+    this.units = Collections.unmodifiableMap(units);
+
+    Set<String> expressions = new HashSet<>();
+    List<UnitDefinition> distinctUnits = new ArrayList<>();
+    for (UnitDefinition unit : units.values()) {
+      if (expressions.add(unit.getRm())) {
+        distinctUnits.add(unit);
+      }
+    }
+    this.distinctUnits = Collections.unmodifiableList(distinctUnits);
+
+    this.labConcepts = new IndexedLabConcept[labConcepts.size()];
+    for (int i = 0; i < this.labConcepts.length; i++) {
+      IndexedLabConcept labConcept = labConcepts.get(i);
+      this.labConcepts[i] = new IndexedLabConcept(labConcept, labConcept.unitRef == null ? null : units.get(labConcept.unitRef));
+    }
+
+    this.materials = Collections.unmodifiableMap(materials);
+    this.translatedLoincCodes = Collections.unmodifiableSet(translatedLoincCodes);
+    this.materialDisplays = Collections.unmodifiableMap(materialDisplays);
+    this.ordinals = Collections.unmodifiableList(pub.getOrdinals().getValueSet());
+  }
+
+  /**
+   * Reads a Labcodeset file, streaming its lab concepts into the index
+   *
+   * @param labcodesetFile {@link File} containing the Labcodeset XML to index
+   * @return the index of the file
+   * @throws IOException if the file cannot be read or is not a valid Labcodeset file
+   */
+  public static PublicationIndex read(File labcodesetFile) throws IOException {
+    List<IndexedLabConcept> labConcepts = new ArrayList<>();
+    Map<String, Material> materials = new HashMap<>();
+    Set<String> translatedLoincCodes = new LinkedHashSet<>();
+    Map<String, String> materialDisplays = new LinkedHashMap<>();
+
+    Publication pub = new LabcodesetReader(labcodesetFile).addLabConceptConsumer(labConcept -> {
+      IndexedLabConcept indexed = new IndexedLabConcept(labConcept);
+      labConcepts.add(indexed);
+      if (indexed.isTranslated()) {
+        translatedLoincCodes.add(indexed.getLoincNum());
+      }
+      for (Material material : indexed.getMaterials()) {
+        materials.put(material.getCode(), material);
+        materialDisplays.putIfAbsent(material.getCode(), material.getDisplayName());
+      }
+    }).read();
+
+    return new PublicationIndex(pub, labConcepts, materials, translatedLoincCodes, materialDisplays);
+  }
+
+  /**
+   * @return version of the Labcodeset, the year of the publication effective date
+   */
+  public String getLabcodesetVersion() {
+    return labcodesetVersion;
+  }
+
+  /**
+   * @return the lab concepts in document order
+   */
+  public List<IndexedLabConcept> getLabConcepts() {
+    return Collections.unmodifiableList(Arrays.asList(labConcepts));
+  }
+
+  /**
+   * @return Map of the unit references and their details in the Labcodeset
+   */
+  public Map<String, UnitDefinition> getUnits() {
+    return units;
+  }
+
+  /**
+   * @return the units of the Labcodeset with the first unit of each distinct UCUM expression, in the
+   *         iteration order of {@link #getUnits()}
+   */
+  public Collection<UnitDefinition> getDistinctUnits() {
+    return distinctUnits;
+  }
+
+  /**
+   * @return Map of the SNOMED CT material codes referenced by the lab concepts and their details
+   */
+  public Map<String, Material> getMaterials() {
+    return materials;
+  }
+
+  /**
+   * @return the distinct LOINC codes of the lab concepts that have a translation
+   */
+  public Set<String> getTranslatedLoincCodes() {
+    return translatedLoincCodes;
+  }
+
+  /**
+   * @return the distinct SNOMED CT material codes referenced by the lab concepts and the display name
+   *         they are first referenced with
+   */
+  public Map<String, String> getMaterialDisplays() {
+    return materialDisplays;
+  }
+
+  /**
+   * @return the ordinal ValueSet definitions of the Labcodeset
+   */
+  public List<ValueSetDefinition> getOrdinals() {
+    return ordinals;
+  }
+
+  /**
+   * Details of a single lab concept used by the resource generators
+   */
+  public static final class IndexedLabConcept {
+
+    private static final Material[] NO_MATERIALS = new Material[0];
+    private static final int FINGERPRINT_BYTES = 16;
+    private static final byte NULL_MARKER = 0;
+    private static final byte VALUE_MARKER = 1;
+
+    private final String loincNum;
+    private final String status;
+    private final boolean translated;
+    private final String longName;
+    private final String translatedLongName;
+    private final String orderObs;
+    private final String clazz;
+    private final String[] axisTranslations;
+    private final Material[] materials;
+    private final String unitRef;
+    private final UnitDefinition unit;
+    private final boolean hasOutcomes;
+    private final String outcomeRefsetId;
+    private final String outcomeRefsetTerm;
+    private final String outcomeValueSetRef;
+    private final String fingerprint;
+
+    private IndexedLabConcept(LabConcept labConcept) {
+      LoincConcept loincConcept = labConcept.getLoincConcept();
+      LoincConcept translation = loincConcept.getTranslation();
+
+      this.loincNum = loincConcept.getLoincNum();
+      this.status = labConcept.getStatus().value();
+      this.translated = translation != null;
+      this.longName = value(loincConcept.getLongName());
+      this.translatedLongName = translation == null ? null : value(translation.getLongName());
+      this.orderObs = translation == null ? null : value(translation.getOrderObs());
+      this.clazz = translation == null ? null : value(translation.getClazz());
+      this.axisTranslations = translation == null ? null
+          : new String[] {value(translation.getComponent()), value(translation.getProperty()), value(translation.getTiming()),
+              value(translation.getSystem()), value(translation.getScale()), value(translation.getMethod())};
+      this.materials = labConcept.getMaterials() == null ? NO_MATERIALS
+          : labConcept.getMaterials().getMaterial().toArray(new Material[labConcept.getMaterials().getMaterial().size()]);
+      this.unitRef = labConcept.getUnits() == null || labConcept.getUnits().getUnit() == null ? null
+          : labConcept.getUnits().getUnit().getRef();
+      this.unit = null;
+      this.hasOutcomes = labConcept.getOutcomes() != null;
+      this.outcomeRefsetId = hasOutcomes && labConcept.getOutcomes().getRefset() != null
+          ? labConcept.getOutcomes().getRefset().getConceptId().toString()
+          : null;
+      this.outcomeRefsetTerm = hasOutcomes && labConcept.getOutcomes().getRefset() != null
+          ? labConcept.getOutcomes().getRefset().getPreferredTerm()
+          : null;
+      this.outcomeValueSetRef = hasOutcomes && labConcept.getOutcomes().getValueSet() != null
+          ? labConcept.getOutcomes().getValueSet().getRef()
+          : null;
+      this.fingerprint = null;
+    }
+
+    private IndexedLabConcept(IndexedLabConcept labConcept, UnitDefinition unit) {
+      this.loincNum = labConcept.loincNum;
+      this.status = labConcept.status;
+      this.translated = labConcept.translated;
+      this.longName = labConcept.longName;
+      this.translatedLongName = labConcept.translatedLongName;
+      this.orderObs = labConcept.orderObs;
+      this.clazz = labConcept.clazz;
+      this.axisTranslations = labConcept.axisTranslations;
+      this.materials = labConcept.materials;
+      this.unitRef = labConcept.unitRef;
+      this.unit = unit;
+      this.hasOutcomes = labConcept.hasOutcomes;
+      this.outcomeRefsetId = labConcept.outcomeRefsetId;
+      this.outcomeRefsetTerm = labConcept.outcomeRefsetTerm;
+      this.outcomeValueSetRef = labConcept.outcomeValueSetRef;
+      this.fingerprint = computeFingerprint();
+    }
+
+    /**
+     * @return hex encoded hash of every detail of the lab concept the resource generators use,
+     *         including the details of the referenced unit
+     */
+    private String computeFingerprint() {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        update(digest, loincNum, status, translated ? "translated" : null, longName, translatedLongName, orderObs, clazz);
+        if (axisTranslations != null) {
+          update(digest, axisTranslations);
+        }
+        for (Material material : materials) {
+          update(digest, "material", material.getCode(), material.getDisplayName());
+        }
+        update(digest, "unit", unitRef);
+        if (unit != null) {
+          update(digest, unit.getRm(), unit.getNlname(), unit.getName());
+        }
+        update(digest, "outcomes", hasOutcomes ? "true" : null, outcomeRefsetId, outcomeRefsetTerm, outcomeValueSetRef);
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : Arrays.copyOf(digest.digest(), FINGERPRINT_BYTES)) {
+          hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private static void update(MessageDigest digest, String... values) {
+      for (String value : values) {
+        // length prefix the values and distinguish null from empty so different details never collide
+        if (value == null) {
+          digest.update(NULL_MARKER);
+        } else {
+          byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+          digest.update(VALUE_MARKER);
+          digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+          digest.update(bytes);
+        }
+      }
+    }
+
+    private static String value(LoincAxis axis) {
+      return axis == null ? null : axis.getValue();
+    }
+
+    /**
+     * @return the LOINC code of the lab concept
+     */
+    public String getLoincNum() {
+      return loincNum;
+    }
+
+    /**
+     * @return the Labcodeset status of the lab concept
+     */
+    public String getStatus() {
+      return status;
+    }
+
+    /**
+     * @return true if the lab concept has a Dutch translation
+     */
+    public boolean isTranslated() {
+      return translated;
+    }
+
+    /**
+     * @return the English LOINC long name
+     */
+    public String getLongName() {
+      return longName;
+    }
+
+    /**
+     * @return the Dutch long name, or null if there is none
+     */
+    public String getTranslatedLongName() {
+      return translatedLongName;
+    }
+
+    /**
+     * @return the Dutch long name if there is one, otherwise the English long name
+     */
+    public String getDisplay() {
+      return translatedLongName != null ? translatedLongName : longName;
+    }
+
+    /**
+     * @return the Dutch translation of the ORDER_OBS axis, or null if there is none
+     */
+    public String getOrderObs() {
+      return orderObs;
+    }
+
+    /**
+     * @return the Dutch translation of the CLASS axis, or null if there is none
+     */
+    public String getClazz() {
+      return clazz;
+    }
+
+    /**
+     * @param axis index of the axis in {@link LoincConceptParts#AXES}
+     * @return the Dutch translation of the axis, or null if there is none
+     */
+    public String getAxisTranslation(int axis) {
+      return axisTranslations == null ? null : axisTranslations[axis];
+    }
+
+    /**
+     * @return the SNOMED CT materials of the lab concept as referenced by it
+     */
+    public List<Material> getMaterials() {
+      return Collections.unmodifiableList(Arrays.asList(materials));
+    }
+
+    /**
+     * @return the unit reference of the lab concept, or null if it has no unit
+     */
+    public String getUnitRef() {
+      return unitRef;
+    }
+
+    /**
+     * @return the details of the referenced unit, or null if the lab concept has no unit or the
+     *         reference cannot be found
+     */
+    public UnitDefinition getUnit() {
+      return unit;
+    }
+
+    /**
+     * @return true if the lab concept has outcomes
+     */
+    public boolean hasOutcomes() {
+      return hasOutcomes;
+    }
+
+    /**
+     * @return the SNOMED CT reference set identifier of the outcomes, or null if there is none
+     */
+    public String getOutcomeRefsetId() {
+      return outcomeRefsetId;
+    }
+
+    /**
+     * @return the preferred term of the outcomes reference set, or null if there is none
+     */
+    public String getOutcomeRefsetTerm() {
+      return outcomeRefsetTerm;
+    }
+
+    /**
+     * @return the OID of the outcomes ValueSet, or null if there is none
+     */
+    public String getOutcomeValueSetRef() {
+      return outcomeValueSetRef;
+    }
+
+    /**
+     * @return fingerprint of the lab concept, which only changes if the resources generated for it
+     *         may change
+     */
+    public String getFingerprint() {
+      return fingerprint;
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import au.csiro.fhir.transforms.utility.LookupMetrics.Terminology;
+import ca.uhn.fhir.util.UrlUtil;
+
+/**
+ * Uploads generated resources to a FHIR server, each with a PUT conditional on its canonical URL
+ * and version so that uploading a release again updates its resources rather than duplicating
+ * them. Resources are uploaded concurrently up to a maximum number at a time, and requests that
+ * fail with a connection error or a status the server may recover from are retried with
+ * exponential backoff. A request rejected with 401 Unauthorized is retried once with a new bearer
+ * token.
+ */
+public class ResourceUploader implements Closeable {
+
+  /**
+   * Default number of concurrent uploads made to the FHIR server
+   */
+  public static final int DEFAULT_CONCURRENCY = 4;
+
+  /**
+   * Default number of times a failed upload is retried
+   */
+  public static final int DEFAULT_RETRIES = 3;
+
+  private static final long INITIAL_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 30000;
+  private static final String FHIR_JSON = "application/fhir+json;charset=UTF-8";
+
+  private final CloseableHttpClient httpClient;
+  private final String endpoint;
+  private final BearerToken bearerToken;
+  private final int retries;
+  private final LookupMetrics metrics;
+  private final ExecutorService uploadExecutor;
+
+  private final LongAdder uploaded = new LongAdder();
+  private final LongAdder uploadedBytes = new LongAdder();
+  private final LongAccumulator firstStart = new LongAccumulator(Math::min, Long.MAX_VALUE);
+  private final LongAccumulator lastEnd = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+  /**
+   * @param httpClient HTTP client to make the uploads with
+   * @param endpoint FHIR endpoint to upload the resources to
+   * @param bearerToken {@link BearerToken} to authorise the uploads with, or null to upload without
+   *        one
+   * @param concurrency maximum number of uploads to have in flight to the FHIR server at once
+   * @param retries number of times to retry an upload that failed with a connection error or a
+   *        status the server may recover from
+   * @param metrics {@link LookupMetrics} to record the uploads in
+   */
+  public ResourceUploader(CloseableHttpClient httpClient, String endpoint, BearerToken bearerToken, int concurrency, int retries,
+      LookupMetrics metrics) {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Concurrency must be at least 1, was " + concurrency);
+    }
+    this.httpClient = httpClient;
+    this.endpoint = endpoint.replaceAll("/+$", "");
+    this.bearerToken = bearerToken;
+    this.retries = retries;
+    this.metrics = metrics;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.uploadExecutor = Executors.newFixedThreadPool(concurrency, runnable -> {
+      Thread thread = new Thread(runnable, "resource-upload-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Uploads a resource once one of the concurrent uploads is free
+   *
+   * @param resourceType type of the resource
+   * @param url canonical URL of the resource
+   * @param version version of the resource, or null if it has none
+   * @param json encoded JSON of the resource
+   * @return future completing with the {@link Upload} once the server has accepted the resource, or
+   *         completing exceptionally with an {@link UncheckedIOException} if it still failed after
+   *         the retries
+   */
+  public CompletableFuture<Upload> uploadAsync(String resourceType, String url, String version, byte[] json) {
+    firstStart.accumulate(System.nanoTime());
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return upload(resourceType, url, version, json);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        lastEnd.accumulate(System.nanoTime());
+      }
+    }, uploadExecutor);
+  }
+
+  private Upload upload(String resourceType, String url, String version, byte[] json) throws IOException {
+    String description = resourceType + " " + url + (version == null ? "" : "|" + version);
+    String requestUrl = endpoint + "/" + resourceType + "?url=" + UrlUtil.escapeUrlParam(url)
+        + (version == null ? "" : "&version=" + UrlUtil.escapeUrlParam(version));
+    long start = System.nanoTime();
+    boolean reauthorised = false;
+    for (int attempt = 1;; attempt++) {
+      HttpPut put = new HttpPut(requestUrl);
+      put.setHeader(HttpHeaders.ACCEPT, FHIR_JSON);
+      String token = bearerToken == null ? null : bearerToken.get();
+      if (token != null) {
+        put.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+      }
+      put.setEntity(new ByteArrayEntity(json, ContentType.parse(FHIR_JSON)));
+
+      int status = -1;
+      String body = null;
+      long retryAfter = -1;
+      IOException failure = null;
+      long requestStart = System.nanoTime();
+      try (CloseableHttpResponse response = httpClient.execute(put)) {
+        status = response.getStatusLine().getStatusCode();
+        body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        retryAfter = getRetryAfterMillis(response.getFirstHeader(HttpHeaders.RETRY_AFTER));
+      } catch (IOException e) {
+        failure = e;
+      } finally {
+        metrics.recordLatency(Terminology.UPLOAD, "PUT " + resourceType, System.nanoTime() - requestStart);
+      }
+
+      if (failure == null && status / 100 == 2) {
+        uploaded.increment();
+        uploadedBytes.add(json.length);
+        return new Upload(description, status, attempt, System.nanoTime() - start);
+      }
+      if (failure == null && status == 401 && token != null && !reauthorised) {
+        // the token may have expired or been revoked early, retried at once with a new one
+        bearerToken.reject(token);
+        reauthorised = true;
+        metrics.recordRetry(Terminology.UPLOAD);
+        continue;
+      }
+      if (attempt > retries || (failure == null && !isTransient(status))) {
+        metrics.recordError(Terminology.UPLOAD);
+        if (failure != null) {
+          throw new IOException("Failed to upload " + description + " after " + attempt + " attempts - " + failure.getLocalizedMessage(),
+              failure);
+        }
+        throw new IOException(
+            "Failed to upload " + description + " after " + attempt + " attempts, response code was " + status + " response was " + body);
+      }
+
+      metrics.recordRetry(Terminology.UPLOAD);
+      backoff(attempt, retryAfter);
+    }
+  }
+
+  /**
+   * @return true for the statuses of a request timing out, being rate limited or a gateway or
+   *         server being temporarily unavailable
+   */
+  private static boolean isTransient(int status) {
+    return status == 408 || status == 429 || status == 502 || status == 503 || status == 504;
+  }
+
+  /**
+   * @return the delay in milliseconds asked for by a Retry-After header in seconds, or -1 if there
+   *         is none or it is an HTTP date
+   */
+  private static long getRetryAfterMillis(Header header) {
+    if (header == null) {
+      return -1;
+    }
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(header.getValue().trim()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Waits before the next attempt, for the time the server asked for if it did, otherwise for a
+   * random time between half and all of a delay doubling with each attempt, so that concurrent
+   * uploads failing together do not retry together
+   */
+  private static void backoff(int attempt, long retryAfter) throws InterruptedIOException {
+    long delay = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+    delay = retryAfter >= 0 ? Math.min(MAX_BACKOFF_MILLIS, retryAfter) : ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+    try {
+      TimeUnit.MILLISECONDS.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting to retry upload");
+    }
+  }
+
+  /**
+   * @return a human readable summary of the number of resources and bytes uploaded and the
+   *         throughput achieved
+   */
+  public String getSummary() {
+    long count = uploaded.sum();
+    double megabytes = uploadedBytes.sum() / (1024.0 * 1024.0);
+    double seconds = count == 0 ? 0 : Math.max(1, lastEnd.get() - firstStart.get()) / 1e9;
+    return String.format("Uploaded %d resources, %.1fMB in %.1fs to %s - %.1f resources/s, %.1fMB/s", count, megabytes, seconds, endpoint,
+        seconds == 0 ? 0 : count / seconds, seconds == 0 ? 0 : megabytes / seconds);
+  }
+
+  /**
+   * Stops the upload threads, uploads still in progress are abandoned
+   */
+  @Override
+  public void close() {
+    uploadExecutor.shutdownNow();
+  }
+
+  /**
+   * Resource accepted by the FHIR server
+   */
+  public static class Upload {
+
+    private final String description;
+    private final int status;
+    private final int attempts;
+    private final long nanos;
+
+    private Upload(String description, int status, int attempts, long nanos) {
+      this.description = description;
+      this.status = status;
+      this.attempts = attempts;
+      this.nanos = nanos;
+    }
+
+    /**
+     * @return resource type, canonical URL and version of the resource
+     */
+    public String getDescription() {
+      return description;
+    }
+
+    /**
+     * @return HTTP status the server accepted the resource with
+     */
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return number of requests made, including retries
+     */
+    public int getAttempts() {
+      return attempts;
+    }
+
+    /**
+     * @return time taken to upload the resource in milliseconds, including retries
+     */
+    public long getMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Source of the Netherlands edition SNOMED CT display terms needed for the transformation
+ */
+public interface SnomedDisplayProvider {
+
+  /**
+   * Resolves a set of SNOMED CT codes ahead of them being requested with
+   * {@link #getSnomedDisplay(String, String)}
+   *
+   * @param displaysIfNotFound map of the SNOMED CT codes to resolve to the default text to use for
+   *        each code if it is not found
+   * @return future completed when all the codes have been resolved
+   */
+  CompletableFuture<Void> lookupSnomedAsync(Map<String, String> displaysIfNotFound);
+
+  /**
+   * Gets the preferred display term for a SNOMED CT code from the Netherlands edition
+   *
+   * @param code SNOMED CT code to look up
+   * @param defaultIfNotFound default text to return if the code is not found
+   * @return the display term for the SNOMED CT code specified in the Netherlands edition of SNOMED
+   *         CT, or the value passed as defaultIfNotFound if no SNOMED CT concept can be found for
+   *         that code
+   */
+  String getSnomedDisplay(String code, String defaultIfNotFound);
+}
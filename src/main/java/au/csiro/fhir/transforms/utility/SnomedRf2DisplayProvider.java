@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import au.csiro.fhir.transforms.utility.LookupMetrics.Terminology;
+
+/**
+ * {@link SnomedDisplayProvider} which reads the preferred Dutch terms from the RF2 files of an
+ * unpacked SNOMED CT Netherlands edition release rather than a FHIR terminology server, allowing
+ * transformation without network access.
+ * <p>
+ * The Description and Language refset snapshot files are streamed, keeping only the descriptions of
+ * the concepts requested, so the memory used depends on the number of concepts in the Publication
+ * rather than the size of the release.
+ */
+public class SnomedRf2DisplayProvider implements SnomedDisplayProvider {
+
+  private static final String DESCRIPTION_FILE_PREFIX = "sct2_Description_Snapshot";
+  private static final String LANGUAGE_REFSET_FILE_PREFIX = "der2_cRefset_LanguageSnapshot";
+  private static final String DUTCH_LANGUAGE_CODE = "nl";
+  private static final long SYNONYM_TYPE_ID = 900000000000013009L;
+  private static final long PREFERRED_ACCEPTABILITY_ID = 900000000000548007L;
+  private static final long DUTCH_LANGUAGE_REFSET_ID = 31000146106L;
+
+  // columns of the Description file
+  private static final int DESCRIPTION_ID = 0;
+  private static final int DESCRIPTION_ACTIVE = 2;
+  private static final int DESCRIPTION_CONCEPT_ID = 4;
+  private static final int DESCRIPTION_LANGUAGE_CODE = 5;
+  private static final int DESCRIPTION_TYPE_ID = 6;
+  private static final int DESCRIPTION_TERM = 7;
+
+  // columns of the Language refset file
+  private static final int REFSET_ACTIVE = 2;
+  private static final int REFSET_ID = 4;
+  private static final int REFSET_REFERENCED_COMPONENT_ID = 5;
+  private static final int REFSET_ACCEPTABILITY_ID = 6;
+
+  private final File rf2Dir;
+  private final LookupMetrics metrics;
+
+  /**
+   * Display terms indexed so far by concept id, holding the default text for concepts without a
+   * preferred Dutch term
+   */
+  private final LongObjectMap<String> displays = new LongObjectMap<>(1024);
+
+  /**
+   * @param rf2Dir directory containing an unpacked SNOMED CT Netherlands edition RF2 release
+   */
+  public SnomedRf2DisplayProvider(File rf2Dir) {
+    this(rf2Dir, new LookupMetrics());
+  }
+
+  /**
+   * @param rf2Dir directory containing an unpacked SNOMED CT Netherlands edition RF2 release
+   * @param metrics {@link LookupMetrics} to record concepts served from the index as hits, and
+   *        concepts read from the release as misses, in
+   */
+  public SnomedRf2DisplayProvider(File rf2Dir, LookupMetrics metrics) {
+    this.rf2Dir = rf2Dir;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public CompletableFuture<Void> lookupSnomedAsync(Map<String, String> displaysIfNotFound) {
+    return CompletableFuture.runAsync(() -> index(displaysIfNotFound));
+  }
+
+  @Override
+  public synchronized String getSnomedDisplay(String code, String defaultIfNotFound) {
+    long conceptId = parseConceptId(code);
+    if (conceptId < 0) {
+      return defaultIfNotFound;
+    }
+    if (displays.containsKey(conceptId)) {
+      metrics.recordHit(Terminology.SNOMED);
+    } else {
+      index(Collections.singletonMap(code, defaultIfNotFound));
+    }
+    return displays.get(conceptId);
+  }
+
+  /**
+   * Reads the preferred Dutch terms of the concepts not already indexed
+   */
+  private synchronized void index(Map<String, String> displaysIfNotFound) {
+    LongObjectMap<String> wanted = new LongObjectMap<>(displaysIfNotFound.size());
+    for (String code : displaysIfNotFound.keySet()) {
+      long conceptId = parseConceptId(code);
+      if (conceptId < 0) {
+        metrics.recordNotFound(Terminology.SNOMED);
+        System.err.println("WARNING: SNOMED CT concept " + code + " not found, using the display term from the XML file '"
+            + displaysIfNotFound.get(code) + "'");
+      } else if (!displays.containsKey(conceptId)) {
+        wanted.put(conceptId, displaysIfNotFound.get(code));
+      } else {
+        metrics.recordHit(Terminology.SNOMED);
+      }
+    }
+    if (wanted.size() == 0) {
+      return;
+    }
+
+    metrics.recordMisses(Terminology.SNOMED, wanted.size());
+    long start = System.currentTimeMillis();
+    LongObjectMap<Description> preferred;
+    try {
+      preferred = metrics.time(Terminology.SNOMED, "read release", () -> readPreferredDescriptions(wanted));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed reading SNOMED CT release in " + rf2Dir, e);
+    }
+
+    for (String code : displaysIfNotFound.keySet()) {
+      long conceptId = parseConceptId(code);
+      if (conceptId < 0 || !wanted.containsKey(conceptId) || displays.containsKey(conceptId)) {
+        continue;
+      }
+      Description description = preferred.get(conceptId);
+      if (description == null) {
+        metrics.recordNotFound(Terminology.SNOMED);
+        System.err.println("WARNING: SNOMED CT concept " + code + " not found, using the display term from the XML file '"
+            + wanted.get(conceptId) + "'");
+        displays.put(conceptId, wanted.get(conceptId));
+      } else {
+        displays.put(conceptId, description.term);
+      }
+    }
+    System.out.println("Indexed " + wanted.size() + " SNOMED CT display terms from " + rf2Dir + " in "
+        + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * @param wanted map with the ids of the concepts to read the preferred terms of as its keys
+   * @return map of concept id to its preferred Dutch synonym
+   */
+  private LongObjectMap<Description> readPreferredDescriptions(LongObjectMap<String> wanted) throws IOException {
+    int[] starts = new int[10];
+
+    // Dutch synonyms of the wanted concepts by description id
+    LongObjectMap<Description> synonyms = new LongObjectMap<>(wanted.size() * 4);
+    for (Path file : findFiles(DESCRIPTION_FILE_PREFIX)) {
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        String line = reader.readLine(); // header
+        while ((line = reader.readLine()) != null) {
+          if (split(line, starts) <= DESCRIPTION_TERM || !isActive(line, starts, DESCRIPTION_ACTIVE)
+              || !wanted.containsKey(parseLong(line, starts, DESCRIPTION_CONCEPT_ID))
+              || parseLong(line, starts, DESCRIPTION_TYPE_ID) != SYNONYM_TYPE_ID
+              || !DUTCH_LANGUAGE_CODE.equals(field(line, starts, DESCRIPTION_LANGUAGE_CODE))) {
+            continue;
+          }
+          synonyms.put(parseLong(line, starts, DESCRIPTION_ID),
+              new Description(parseLong(line, starts, DESCRIPTION_CONCEPT_ID), field(line, starts, DESCRIPTION_TERM)));
+        }
+      }
+    }
+
+    LongObjectMap<Description> preferred = new LongObjectMap<>(wanted.size());
+    for (Path file : findFiles(LANGUAGE_REFSET_FILE_PREFIX)) {
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        String line = reader.readLine(); // header
+        while ((line = reader.readLine()) != null) {
+          if (split(line, starts) <= REFSET_ACCEPTABILITY_ID || !isActive(line, starts, REFSET_ACTIVE)
+              || parseLong(line, starts, REFSET_ID) != DUTCH_LANGUAGE_REFSET_ID
+              || parseLong(line, starts, REFSET_ACCEPTABILITY_ID) != PREFERRED_ACCEPTABILITY_ID) {
+            continue;
+          }
+          Description description = synonyms.get(parseLong(line, starts, REFSET_REFERENCED_COMPONENT_ID));
+          if (description != null) {
+            preferred.put(description.conceptId, description);
+          }
+        }
+      }
+    }
+    return preferred;
+  }
+
+  private List<Path> findFiles(String prefix) throws IOException {
+    try (Stream<Path> files = Files.walk(rf2Dir.toPath(), 6)) {
+      List<Path> found = files.filter(path -> path.getFileName().toString().startsWith(prefix) && path.toString().endsWith(".txt"))
+          .sorted().collect(Collectors.toList());
+      if (found.isEmpty()) {
+        throw new IOException("No " + prefix + " file found in " + rf2Dir);
+      }
+      return found;
+    }
+  }
+
+  /**
+   * Finds the start of each tab separated field in a line without creating substrings
+   *
+   * @return the number of fields found, up to the length of starts
+   */
+  private static int split(String line, int[] starts) {
+    int count = 0;
+    int start = 0;
+    while (count < starts.length) {
+      starts[count++] = start;
+      int tab = line.indexOf('\t', start);
+      if (tab < 0) {
+        break;
+      }
+      start = tab + 1;
+    }
+    return count;
+  }
+
+  private static int end(String line, int[] starts, int column) {
+    int tab = line.indexOf('\t', starts[column]);
+    return tab < 0 ? line.length() : tab;
+  }
+
+  private static String field(String line, int[] starts, int column) {
+    return line.substring(starts[column], end(line, starts, column));
+  }
+
+  private static boolean isActive(String line, int[] starts, int column) {
+    return end(line, starts, column) - starts[column] == 1 && line.charAt(starts[column]) == '1';
+  }
+
+  /**
+   * @return the numeric value of a field, or -1 if it is not a number
+   */
+  private static long parseLong(String line, int[] starts, int column) {
+    int end = end(line, starts, column);
+    if (end == starts[column] || end - starts[column] > 18) {
+      return -1;
+    }
+    long value = 0;
+    for (int i = starts[column]; i < end; i++) {
+      char c = line.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * @return the SNOMED CT identifier, or -1 if the code is not a valid identifier
+   */
+  private static long parseConceptId(String code) {
+    int[] starts = {0};
+    long conceptId = code.indexOf('\t') < 0 ? parseLong(code, starts, 0) : -1;
+    return conceptId > 0 ? conceptId : -1;
+  }
+
+  private static class Description {
+    private final long conceptId;
+    private final String term;
+
+    private Description(long conceptId, String term) {
+      this.conceptId = conceptId;
+      this.term = term;
+    }
+  }
+}
@@ -5,76 +5,381 @@
  ******************************************************************************/
 package au.csiro.fhir.transforms.utility;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import org.apache.http.HttpEntity;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
 import org.hl7.fhir.r4.model.UriType;
 import org.hl7.fhir.r4.model.ValueSet;
-import com.google.gson.JsonParser;
+import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+import au.csiro.fhir.transforms.utility.LookupMetrics.Terminology;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.UrlUtil;
 
 /**
  * Utility class to get information about code systems for the transformation
  */
-public class TerminologyClient {
+public class TerminologyClient implements LoincConceptProvider, SnomedDisplayProvider, Closeable {
 
   /**
    * FHIR specification "common" UCUM codes ValueSet URL
    */
-  private static final String UCUM_COMMON_CODES_VALUESET_URL = "https://www.hl7.org/fhir/valueset-ucum-common.json";
+  public static final String DEFAULT_UCUM_VALUESET_URL = "https://www.hl7.org/fhir/valueset-ucum-common.json";
 
-  private Map<String, String> snomedCache = new HashMap<>();
-  private Map<String, Parameters> loincCache = new HashMap<>();
+  /**
+   * Default number of $lookup operations packed into a single batch {@link Bundle}
+   */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  /**
+   * Default number of concurrent requests made to the FHIR server for lookups
+   */
+  public static final int DEFAULT_CONCURRENCY = 8;
+
+  /**
+   * Value persisted for SNOMED CT codes the FHIR server could not find
+   */
+  private static final String NOT_FOUND = "";
+
+  /**
+   * SNOMED CT root concept, looked up to find the version of the Netherlands edition the FHIR server
+   * resolves
+   */
+  private static final String SNOMED_ROOT_CONCEPT = "138875005";
+
+  /**
+   * Key the resolved version of the Netherlands edition is persisted under, with the results for the
+   * undated edition, which cannot clash with a SNOMED CT code
+   */
+  private static final String SNOMED_EDITION_VERSION_KEY = "edition-version";
+
+  /**
+   * Number of times a request that failed with a connection error or a status the server may
+   * recover from is retried
+   */
+  private static final int RETRIES = 3;
+  private static final long INITIAL_BACKOFF_MILLIS = 250;
+  private static final long MAX_BACKOFF_MILLIS = 5000;
+
+  private ConcurrentLookupCache<String> snomedCache;
+  private ConcurrentMap<String, ConcurrentLookupCache<LoincConceptParts>> loincCaches = new ConcurrentHashMap<>();
   private IGenericClient fhirClient;
+  private int batchSize;
+  private ExecutorService lookupExecutor;
+  private PersistentTerminologyCache persistentCache;
+  private LookupMetrics metrics;
+  private String snomedCacheVersion;
 
   /**
    * @param fhirClient connection to a FHIR server to refer to
    */
   public TerminologyClient(IGenericClient fhirClient) {
+    this(fhirClient, DEFAULT_BATCH_SIZE, DEFAULT_CONCURRENCY, null, new LookupMetrics());
+  }
+
+  /**
+   * @param fhirClient connection to a FHIR server to refer to
+   * @param batchSize maximum number of $lookup operations to send to the FHIR server in one batch
+   *        {@link Bundle}
+   * @param concurrency maximum number of requests to have in flight to the FHIR server at once
+   * @param persistentCache {@link PersistentTerminologyCache} to reuse lookup results from previous
+   *        runs from and save new results to, or null to only cache results for this client
+   * @param metrics {@link LookupMetrics} to record the lookups made in
+   */
+  public TerminologyClient(IGenericClient fhirClient, int batchSize, int concurrency, PersistentTerminologyCache persistentCache,
+      LookupMetrics metrics) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be at least 1, was " + batchSize);
+    }
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("Concurrency must be at least 1, was " + concurrency);
+    }
     this.fhirClient = fhirClient;
+    this.batchSize = batchSize;
+    this.persistentCache = persistentCache;
+    this.metrics = metrics;
+    this.snomedCache = new ConcurrentLookupCache<>(metrics, Terminology.SNOMED);
+    AtomicInteger threadCount = new AtomicInteger();
+    this.lookupExecutor = Executors.newFixedThreadPool(concurrency, runnable -> {
+      Thread thread = new Thread(runnable, "terminology-lookup-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Looks up a set of LOINC codes using batch {@link Bundle}s of $lookup operations, populating the
+   * cache used by {@link #getLoincConcept(String, String)}. Codes already cached or being looked up
+   * are not looked up again, and codes the FHIR server cannot find are left uncached.
+   * 
+   * @param codes LOINC codes to look up
+   * @param loincVersion LOINC version to use
+   */
+  public void lookupLoinc(Collection<String> codes, String loincVersion) {
+    join(lookupLoincAsync(codes, loincVersion));
+  }
+
+  /**
+   * Asynchronous version of {@link #lookupLoinc(Collection, String)}, sending the batches to the
+   * FHIR server concurrently
+   * 
+   * @param codes LOINC codes to look up
+   * @param loincVersion LOINC version to use
+   * @return future completed when all the codes have been looked up
+   */
+  @Override
+  public CompletableFuture<Void> lookupLoincAsync(Collection<String> codes, String loincVersion) {
+    return getLoincCache(loincVersion).getAll(codes, batch -> {
+      Map<String, LoincConceptParts> result = new HashMap<>();
+      List<String> unpersisted = new ArrayList<>();
+      for (String code : batch) {
+        LoincConceptParts persisted = readPersistedLoinc(code, loincVersion);
+        if (persisted != null) {
+          metrics.recordHit(Terminology.LOINC);
+          result.put(code, persisted);
+        } else {
+          unpersisted.add(code);
+        }
+      }
+      if (unpersisted.isEmpty()) {
+        return result;
+      }
+
+      metrics.recordMisses(Terminology.LOINC, unpersisted.size());
+      List<BundleEntryComponent> responses = execute(Terminology.LOINC, "batch $lookup",
+          () -> executeLookupBatch(unpersisted, Constants.LOINC_CS_URI, loincVersion, LoincConceptParts.AXES));
+      for (int i = 0; i < unpersisted.size(); i++) {
+        BundleEntryComponent response = responses.get(i);
+        if (response.getResource() instanceof Parameters) {
+          LoincConceptParts parts = LoincConceptParts.fromParameters((Parameters) response.getResource());
+          result.put(unpersisted.get(i), parts);
+          persistLoinc(unpersisted.get(i), loincVersion, parts);
+        } else {
+          if (response.getResponse().getStatus() != null && response.getResponse().getStatus().startsWith("404")) {
+            metrics.recordNotFound(Terminology.LOINC);
+          } else {
+            metrics.recordError(Terminology.LOINC);
+          }
+          System.err.println("WARNING: LOINC code " + unpersisted.get(i) + " could not be looked up in batch, response status was "
+              + response.getResponse().getStatus());
+        }
+      }
+      return result;
+    }, batchSize, lookupExecutor);
+  }
+
+  /**
+   * Looks up the Netherlands edition display terms for a set of SNOMED CT codes with a single
+   * $expand of a ValueSet enumerating the codes, populating the cache used by
+   * {@link #getSnomedDisplay(String, String)}. Codes already cached or being looked up are not looked
+   * up again. Codes missing from a paged or truncated expansion are left uncached, to be looked up
+   * individually, rather than treated as not found.
+   * 
+   * @param displaysIfNotFound map of the SNOMED CT codes to look up to the default text to cache for
+   *        each code if it is not found
+   */
+  public void lookupSnomed(Map<String, String> displaysIfNotFound) {
+    join(lookupSnomedAsync(displaysIfNotFound));
+  }
+
+  /**
+   * Asynchronous version of {@link #lookupSnomed(Map)}
+   * 
+   * @param displaysIfNotFound map of the SNOMED CT codes to look up to the default text to cache for
+   *        each code if it is not found
+   * @return future completed when all the codes have been looked up
+   */
+  @Override
+  public CompletableFuture<Void> lookupSnomedAsync(Map<String, String> displaysIfNotFound) {
+    return snomedCache.getAll(displaysIfNotFound.keySet(), batch -> {
+      Map<String, String> result = new HashMap<>();
+      List<String> unpersisted = new ArrayList<>();
+      for (String code : batch) {
+        String persisted = readPersistedSnomed(code, displaysIfNotFound.get(code));
+        if (persisted != null) {
+          metrics.recordHit(Terminology.SNOMED);
+          result.put(code, persisted);
+        } else {
+          unpersisted.add(code);
+        }
+      }
+      if (unpersisted.isEmpty()) {
+        return result;
+      }
+
+      metrics.recordMisses(Terminology.SNOMED, unpersisted.size());
+      ValueSet expansion = execute(Terminology.SNOMED, "$expand", () -> expandSnomed(unpersisted));
+      Map<String, String> expanded = getDisplays(expansion);
+      boolean complete = isComplete(expansion);
+      if (!complete) {
+        System.err.println("WARNING: SNOMED CT $expand returned a partial expansion, " + (unpersisted.size() - expanded.size())
+            + " codes not in it will be looked up individually");
+      }
+      for (String code : unpersisted) {
+        String display = expanded.get(code);
+        if (display != null) {
+          result.put(code, display);
+          persistSnomed(code, display);
+        } else if (complete) {
+          metrics.recordNotFound(Terminology.SNOMED);
+          System.err.println("WARNING: SNOMED CT concept " + code + " not found, using the display term from the XML file '"
+              + displaysIfNotFound.get(code) + "'");
+          result.put(code, displaysIfNotFound.get(code));
+          persistSnomed(code, NOT_FOUND);
+        }
+      }
+      return result;
+    }, Math.max(1, displaysIfNotFound.size()), lookupExecutor);
+  }
+
+  /**
+   * Expands a ValueSet enumerating the codes against the Netherlands edition of SNOMED CT in Dutch
+   * 
+   * @return the expanded ValueSet
+   */
+  private ValueSet expandSnomed(List<String> codes) {
+    ValueSet valueSet = new ValueSet();
+    valueSet.setStatus(PublicationStatus.ACTIVE);
+    ConceptSetComponent include = valueSet.getCompose().addInclude().setSystem(Constants.SCT_CS_URI).setVersion(Constants.NL_SCT_EDITION);
+    for (String code : codes) {
+      include.addConcept().setCode(code);
+    }
+
+    ValueSet expansion = fhirClient.operation().onType(ValueSet.class).named("$expand").withParameter(Parameters.class, "valueSet", valueSet)
+        .andParameter("displayLanguage", new CodeType(Constants.DUTCH_LANGUAGE_CODE)).andParameter("activeOnly", new BooleanType(false))
+        .andParameter("count", new IntegerType(codes.size())).returnResourceType(ValueSet.class).execute();
+    return expansion;
+  }
+
+  /**
+   * @return map of the codes in the expansion to their display terms
+   */
+  private static Map<String, String> getDisplays(ValueSet expansion) {
+    Map<String, String> displays = new HashMap<>();
+    for (ValueSetExpansionContainsComponent contains : expansion.getExpansion().getContains()) {
+      if (Constants.SCT_CS_URI.equals(contains.getSystem()) && contains.hasDisplay()) {
+        displays.put(contains.getCode(), contains.getDisplay());
+      }
+    }
+    return displays;
+  }
+
+  /**
+   * @return true if the expansion holds every concept the server matched, so that codes absent from
+   *         it were not found, rather than being a page or truncated
+   */
+  private static boolean isComplete(ValueSet expansion) {
+    ValueSetExpansionComponent expanded = expansion.getExpansion();
+    return expanded.hasTotal() && expanded.getTotal() == expanded.getContains().size() && expanded.getOffset() == 0;
+  }
+
+  private List<BundleEntryComponent> executeLookupBatch(List<String> codes, String system, String version, List<String> properties) {
+    StringBuilder propertyParams = new StringBuilder();
+    for (String property : properties) {
+      propertyParams.append("&property=").append(UrlUtil.escapeUrlParam(property));
+    }
+
+    Bundle request = new Bundle();
+    request.setType(BundleType.BATCH);
+    for (String code : codes) {
+      request.addEntry().getRequest().setMethod(HTTPVerb.GET).setUrl("CodeSystem/$lookup?system=" + UrlUtil.escapeUrlParam(system) + "&code="
+          + UrlUtil.escapeUrlParam(code) + "&version=" + UrlUtil.escapeUrlParam(version) + propertyParams);
+    }
+
+    Bundle response = fhirClient.transaction().withBundle(request).execute();
+    if (response.getEntry().size() != codes.size()) {
+      throw new RuntimeException(
+          "Batch $lookup of " + codes.size() + " " + system + " codes returned " + response.getEntry().size() + " entries");
+    }
+    return response.getEntry();
   }
 
   /**
-   * Looks up a LOINC code and returns a {@link Parameters} object from the FHIR server in response to
-   * a $lookup for all properties of the code
+   * Looks up the part codes of the main axes of a LOINC code with a $lookup requesting only those
+   * properties
    * 
    * @param code LOINC code to look up
    * @param loincVersion LOINC version to use
-   * @return {@link Parameters} object returned by the FHIR server requesting all properties be
-   *         returned
+   * @return the part codes of the main axes of the LOINC code
    */
-  public Parameters getLoincConcept(String code, String loincVersion) {
-    if (!loincCache.containsKey(code)) {
+  @Override
+  public LoincConceptParts getLoincConcept(String code, String loincVersion) {
+    return join(getLoincConceptAsync(code, loincVersion));
+  }
+
+  /**
+   * Asynchronous version of {@link #getLoincConcept(String, String)}, concurrent requests for the
+   * same code share a single lookup
+   * 
+   * @param code LOINC code to look up
+   * @param loincVersion LOINC version to use
+   * @return future completed with the part codes of the main axes of the LOINC code
+   */
+  public CompletableFuture<LoincConceptParts> getLoincConceptAsync(String code, String loincVersion) {
+    return getLoincCache(loincVersion).get(code, c -> {
+      LoincConceptParts persisted = readPersistedLoinc(c, loincVersion);
+      if (persisted != null) {
+        metrics.recordHit(Terminology.LOINC);
+        return persisted;
+      }
+
+      metrics.recordMisses(Terminology.LOINC, 1);
+
       Parameters inParams = new Parameters();
-      inParams.addParameter().setName("code").setValue(new StringType(code));
+      inParams.addParameter().setName("code").setValue(new StringType(c));
       inParams.addParameter().setName("system").setValue(new UriType(Constants.LOINC_CS_URI));
       inParams.addParameter().setName("version").setValue(new StringType(loincVersion));
-      inParams.addParameter().setName("property").setValue(new StringType("*"));
-      loincCache.put(code,
-          fhirClient.operation().onType(CodeSystem.class).named("$lookup").withParameters(inParams).useHttpGet().execute());
-    } else {
-      System.out.println("loinc cache hit");
-    }
+      for (String axis : LoincConceptParts.AXES) {
+        inParams.addParameter().setName("property").setValue(new CodeType(axis));
+      }
+      LoincConceptParts result = LoincConceptParts.fromParameters(execute(Terminology.LOINC, "$lookup",
+          () -> fhirClient.operation().onType(CodeSystem.class).named("$lookup").withParameters(inParams).useHttpGet().execute()));
+      persistLoinc(c, loincVersion, result);
+      return result;
+    }, lookupExecutor);
+  }
 
-    return loincCache.get(code);
+  @Override
+  public String getSource() {
+    return fhirClient.getServerBase();
   }
 
   /**
@@ -86,70 +391,244 @@ public class TerminologyClient {
    *         CT, or the value passed as defaultIfNotFound if no SNOMED CT concept can be found for
    *         that code
    */
+  @Override
   public String getSnomedDisplay(String code, String defaultIfNotFound) {
-    if (!snomedCache.containsKey(code)) {
+    return join(getSnomedDisplayAsync(code, defaultIfNotFound));
+  }
+
+  /**
+   * Asynchronous version of {@link #getSnomedDisplay(String, String)}, concurrent requests for the
+   * same code share a single lookup
+   * 
+   * @param code SNOMED CT code to look up
+   * @param defaultIfNotFound default text to return if the code is not found
+   * @return future completed with the display term for the SNOMED CT code
+   */
+  public CompletableFuture<String> getSnomedDisplayAsync(String code, String defaultIfNotFound) {
+    return snomedCache.get(code, c -> {
+      String persisted = readPersistedSnomed(c, defaultIfNotFound);
+      if (persisted != null) {
+        metrics.recordHit(Terminology.SNOMED);
+        return persisted;
+      }
+
+      metrics.recordMisses(Terminology.SNOMED, 1);
+
       Parameters inParams = new Parameters();
-      inParams.addParameter().setName("code").setValue(new StringType(code));
+      inParams.addParameter().setName("code").setValue(new StringType(c));
       inParams.addParameter().setName("system").setValue(new UriType(Constants.SCT_CS_URI));
       inParams.addParameter().setName("version").setValue(new StringType(Constants.NL_SCT_EDITION));
       inParams.addParameter().setName("property").setValue(new StringType("display"));
-      String display;
       try {
-        display = fhirClient.operation().onType(CodeSystem.class).named("$lookup").withParameters(inParams).useHttpGet().execute()
+        String display = execute(Terminology.SNOMED, "$lookup",
+            () -> fhirClient.operation().onType(CodeSystem.class).named("$lookup").withParameters(inParams).useHttpGet().execute())
             .getParameters("display").get(0).primitiveValue();
+        persistSnomed(c, display);
+        return display;
       } catch (ResourceNotFoundException e) {
         System.err.println(
-            "WARNING: SNOMED CT concept " + code + " not found, using the display term from the XML file '" + defaultIfNotFound + "'");
-        display = defaultIfNotFound;
+            "WARNING: SNOMED CT concept " + c + " not found, using the display term from the XML file '" + defaultIfNotFound + "'");
+        persistSnomed(c, NOT_FOUND);
+        return defaultIfNotFound;
       }
-      snomedCache.put(code, display);
-    }
+    }, lookupExecutor);
+  }
 
-    return snomedCache.get(code);
+  /**
+   * Stops the threads used for lookups and saves any new lookup results to the
+   * {@link PersistentTerminologyCache}, lookups can no longer be made once closed
+   * 
+   * @throws IOException if the {@link PersistentTerminologyCache} cannot be saved
+   */
+  @Override
+  public void close() throws IOException {
+    lookupExecutor.shutdown();
+    if (persistentCache != null) {
+      persistentCache.save();
+    }
+  }
 
+  /**
+   * @return the {@link LookupMetrics} lookups are recorded in
+   */
+  public LookupMetrics getMetrics() {
+    return metrics;
   }
 
   /**
-   * @return the FHIR specification common UCUM codes ValueSet
-   * @throws IOException
-   * @throws ClientProtocolException
+   * Executes a request to the FHIR server recording its latency, retrying it with backoff if it fails
+   * with a connection error or a status the server may recover from
+   *
+   * @param terminology terminology the request is for
+   * @param operation name of the operation requested
+   * @param request request to execute
+   * @return the result of the request
    */
-  public static ValueSet getCommonUcumCodes() throws ClientProtocolException, IOException {
+  private <T> T execute(Terminology terminology, String operation, Supplier<T> request) {
+    return metrics.time(terminology, operation, () -> {
+      boolean reauthorised = false;
+      for (int attempt = 1;; attempt++) {
+        try {
+          return request.get();
+        } catch (AuthenticationException e) {
+          // retried once, as the bearer token interceptor discards a token the server rejected
+          if (reauthorised) {
+            throw e;
+          }
+          reauthorised = true;
+          metrics.recordRetry(terminology);
+        } catch (BaseServerResponseException e) {
+          if (attempt > RETRIES || !isTransient(e)) {
+            throw e;
+          }
+          metrics.recordRetry(terminology);
+          backoff(attempt, e);
+        }
+      }
+    });
+  }
 
-    HttpGet request = new HttpGet(UCUM_COMMON_CODES_VALUESET_URL);
-    try (CloseableHttpClient httpClient = HttpClients.createDefault(); CloseableHttpResponse response = httpClient.execute(request)) {
+  /**
+   * @return true for a connection failure, or the statuses of a request timing out, being rate
+   *         limited or a gateway or server being temporarily unavailable
+   */
+  private static boolean isTransient(BaseServerResponseException e) {
+    int status = e.getStatusCode();
+    return e instanceof FhirClientConnectionException || status == 408 || status == 429 || status == 502 || status == 503
+        || status == 504;
+  }
 
-      // Get HttpResponse Status
-      System.out.println(response.getProtocolVersion()); // HTTP/1.1
+  /**
+   * Waits for a random time between half and all of a delay doubling with each attempt, so that
+   * concurrent requests failing together do not retry together
+   */
+  private static void backoff(int attempt, BaseServerResponseException failure) {
+    long delay = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+    try {
+      TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(delay / 2, delay + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw failure;
+    }
+  }
 
-      if (response.getStatusLine().getStatusCode() != 200) {
-        throw new RuntimeException("Unable to get common UCUM codes from the FHIR specification, response code was "
-            + response.getStatusLine().getStatusCode() + " response was " + EntityUtils.toString(response.getEntity()));
-      }
+  private ConcurrentLookupCache<LoincConceptParts> getLoincCache(String loincVersion) {
+    return loincCaches.computeIfAbsent(loincVersion, version -> new ConcurrentLookupCache<>(metrics, Terminology.LOINC));
+  }
 
-      HttpEntity entity = response.getEntity();
-      if (entity != null) {
-        return FhirContext.forR4().newJsonParser().parseResource(ValueSet.class, EntityUtils.toString(entity));
-      } else {
-        throw new RuntimeException("Unexpected emtpy response for " + UCUM_COMMON_CODES_VALUESET_URL);
-      }
+  private LoincConceptParts readPersistedLoinc(String code, String loincVersion) {
+    if (persistentCache == null) {
+      return null;
     }
+    String persisted = persistentCache.get(Constants.LOINC_CS_URI, loincVersion, code);
+    return persisted == null ? null : LoincConceptParts.decode(persisted);
   }
 
-  public static String getToken(String tokenEndpoint, String clientId, String clientSecret) throws IOException {
+  private void persistLoinc(String code, String loincVersion, LoincConceptParts parts) {
+    if (persistentCache != null) {
+      persistentCache.put(Constants.LOINC_CS_URI, loincVersion, code, parts.encode());
+    }
+  }
 
-    HttpPost post = new HttpPost(tokenEndpoint);
+  private String readPersistedSnomed(String code, String defaultIfNotFound) {
+    if (persistentCache == null) {
+      return null;
+    }
+    String persisted = persistentCache.get(Constants.SCT_CS_URI, getSnomedCacheVersion(), code);
+    if (NOT_FOUND.equals(persisted)) {
+      System.err.println(
+          "WARNING: SNOMED CT concept " + code + " not found, using the display term from the XML file '" + defaultIfNotFound + "'");
+      return defaultIfNotFound;
+    }
+    return persisted;
+  }
 
-    List<NameValuePair> urlParameters = new ArrayList<>();
-    urlParameters.add(new BasicNameValuePair("grant_type", "client_credentials"));
-    urlParameters.add(new BasicNameValuePair("client_id", clientId));
-    urlParameters.add(new BasicNameValuePair("client_secret", clientSecret));
+  private void persistSnomed(String code, String display) {
+    if (persistentCache != null) {
+      persistentCache.put(Constants.SCT_CS_URI, getSnomedCacheVersion(), code, display);
+    }
+  }
 
-    post.setEntity(new UrlEncodedFormEntity(urlParameters));
+  /**
+   * Gets the version SNOMED CT results are persisted under, the dated version of the Netherlands
+   * edition the FHIR server resolves, so that results for one release of the edition are not reused
+   * once the server has a later release. The resolved version is itself persisted, with the results
+   * for the undated edition, so it is only resolved again once the {@link PersistentTerminologyCache}
+   * expires it and runs without the FHIR server still find the results. The undated edition is used
+   * if the server does not report the version, relying on the cache expiring the results.
+   *
+   * @return the version to persist SNOMED CT results under
+   */
+  private synchronized String getSnomedCacheVersion() {
+    if (snomedCacheVersion == null) {
+      snomedCacheVersion = persistentCache.get(Constants.SCT_CS_URI, Constants.NL_SCT_EDITION, SNOMED_EDITION_VERSION_KEY);
+    }
+    if (snomedCacheVersion == null) {
+      snomedCacheVersion = Constants.NL_SCT_EDITION;
+      Parameters inParams = new Parameters();
+      inParams.addParameter().setName("code").setValue(new StringType(SNOMED_ROOT_CONCEPT));
+      inParams.addParameter().setName("system").setValue(new UriType(Constants.SCT_CS_URI));
+      inParams.addParameter().setName("version").setValue(new StringType(Constants.NL_SCT_EDITION));
+      try {
+        List<Type> versions = execute(Terminology.SNOMED, "$lookup",
+            () -> fhirClient.operation().onType(CodeSystem.class).named("$lookup").withParameters(inParams).useHttpGet().execute())
+            .getParameters("version");
+        if (!versions.isEmpty() && versions.get(0).primitiveValue() != null) {
+          snomedCacheVersion = versions.get(0).primitiveValue();
+          persistentCache.put(Constants.SCT_CS_URI, Constants.NL_SCT_EDITION, SNOMED_EDITION_VERSION_KEY, snomedCacheVersion);
+        }
+      } catch (RuntimeException e) {
+        System.err.println("WARNING: Unable to resolve the SNOMED CT version from the FHIR server, caching SNOMED CT results for "
+            + Constants.NL_SCT_EDITION + " - " + e.getLocalizedMessage());
+      }
+    }
+    return snomedCacheVersion;
+  }
 
-    try (CloseableHttpClient httpClient = HttpClients.createDefault(); CloseableHttpResponse response = httpClient.execute(post)) {
-      return JsonParser.parseString(EntityUtils.toString(response.getEntity())).getAsJsonObject().get("access_token").getAsString();
+  /**
+   * Waits for a lookup to complete, rethrowing the cause of any failure
+   */
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
     }
   }
 
+  /**
+   * @param httpClient HTTP client to fetch the ValueSet with
+   * @param ctx {@link FhirContext} to parse the ValueSet with
+   * @param metrics {@link LookupMetrics} to record the request in
+   * @param ucumValueSetUrl URL of the common UCUM codes ValueSet, normally
+   *        {@link #DEFAULT_UCUM_VALUESET_URL}
+   * @return the FHIR specification common UCUM codes ValueSet
+   * @throws IOException if the ValueSet cannot be fetched, or the response is not a ValueSet
+   */
+  public static ValueSet getCommonUcumCodes(CloseableHttpClient httpClient, FhirContext ctx, LookupMetrics metrics,
+      String ucumValueSetUrl) throws IOException {
+    return metrics.time(Terminology.UCUM, "common codes", () -> {
+      HttpGet request = new HttpGet(ucumValueSetUrl);
+      try (CloseableHttpResponse response = httpClient.execute(request)) {
+        if (response.getStatusLine().getStatusCode() != 200) {
+          throw new IOException("Unable to get common UCUM codes from the FHIR specification, response code was "
+              + response.getStatusLine().getStatusCode() + " response was " + EntityUtils.toString(response.getEntity()));
+        }
+
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+          throw new IOException("Unexpected empty response for " + ucumValueSetUrl);
+        }
+        try {
+          return ctx.newJsonParser().parseResource(ValueSet.class, EntityUtils.toString(entity));
+        } catch (DataFormatException e) {
+          throw new IOException("Response for " + ucumValueSetUrl + " is not a ValueSet - " + e.getLocalizedMessage(), e);
+        }
+      }
+    });
+  }
+
 }
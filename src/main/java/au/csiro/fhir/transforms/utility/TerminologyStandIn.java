@@ -0,0 +1,442 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for a FHIR terminology server and the FHIR specification common UCUM codes
+ * ValueSet, serving responses from a directory of recorded fixtures so the transformation can be
+ * run and benchmarked reproducibly without network access.
+ * <p>
+ * In replay mode each request is answered from the fixture recorded for it, with requests that have
+ * no fixture answered 404. In record mode requests are forwarded to a real FHIR server and UCUM
+ * ValueSet URL and the responses recorded as fixtures as they pass through, so running the
+ * transformation against the stand-in in record mode captures everything a later replay needs.
+ * <p>
+ * Fixtures are keyed by a hash of the request, the method and path with the query parameters sorted
+ * for GET requests and the JSON body for POST requests. The entries of batch Bundles are recorded
+ * and replayed individually, so batches of any size can be replayed from the same fixtures,
+ * including those recorded from single $lookup requests. A fixed latency and random jitter can be
+ * added to every response to simulate a remote server.
+ * <p>
+ * Resources uploaded with a PUT are accepted without being stored, recorded or forwarded, answered
+ * 201 the first time a URL is uploaded to and 200 after, so uploads can be tested against the
+ * stand-in as well. A fraction of uploads can be answered 503 to exercise the retrying of uploads.
+ */
+public class TerminologyStandIn implements Closeable {
+
+  private static final String FHIR_PATH = "/fhir";
+  private static final String UCUM_PATH = "/ucum-common.json";
+  private static final String FIXTURE_EXTENSION = ".json";
+  private static final String FHIR_JSON = "application/fhir+json;charset=UTF-8";
+  private static final String AUTHORIZATION_HEADER = "Authorization";
+
+  private final File fixtureDir;
+  private final int latency;
+  private final int jitter;
+  private final String upstreamFhirEndpoint;
+  private final String upstreamUcumUrl;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final CloseableHttpClient upstreamClient;
+  private final Set<String> uploaded = ConcurrentHashMap.newKeySet();
+  private volatile double uploadFailureRate;
+
+  /**
+   * Creates a stand-in replaying previously recorded fixtures
+   *
+   * @param fixtureDir directory to read the fixtures from
+   * @param port port to listen on, or 0 to use any free port
+   * @param latency time in milliseconds to delay each response by
+   * @param jitter maximum time in milliseconds to randomly add to or subtract from the latency
+   * @throws IOException if the server cannot be created
+   */
+  public TerminologyStandIn(File fixtureDir, int port, int latency, int jitter) throws IOException {
+    this(fixtureDir, port, latency, jitter, null, null);
+  }
+
+  /**
+   * Creates a stand-in recording the responses of a real FHIR server and UCUM ValueSet URL
+   *
+   * @param fixtureDir directory to write the fixtures to, created if it does not exist
+   * @param port port to listen on, or 0 to use any free port
+   * @param latency time in milliseconds to delay each response by
+   * @param jitter maximum time in milliseconds to randomly add to or subtract from the latency
+   * @param upstreamFhirEndpoint FHIR server to forward requests to and record, or null to replay
+   * @param upstreamUcumUrl URL of the common UCUM codes ValueSet to forward requests for it to
+   * @throws IOException if the server cannot be created
+   */
+  public TerminologyStandIn(File fixtureDir, int port, int latency, int jitter, String upstreamFhirEndpoint, String upstreamUcumUrl)
+      throws IOException {
+    if (upstreamFhirEndpoint != null) {
+      Files.createDirectories(fixtureDir.toPath());
+    } else if (!fixtureDir.isDirectory()) {
+      throw new IOException("Fixture directory " + fixtureDir + " does not exist");
+    }
+    this.fixtureDir = fixtureDir;
+    this.latency = latency;
+    this.jitter = jitter;
+    this.upstreamFhirEndpoint = upstreamFhirEndpoint == null ? null : upstreamFhirEndpoint.replaceAll("/+$", "");
+    this.upstreamUcumUrl = upstreamUcumUrl;
+    this.upstreamClient = upstreamFhirEndpoint == null ? null : HttpClients.createDefault();
+
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "terminology-stand-in-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    server.setExecutor(executor);
+    server.createContext(FHIR_PATH, this::handleFhir);
+    server.createContext(UCUM_PATH, this::handleUcum);
+  }
+
+  /**
+   * @param uploadFailureRate fraction of uploads between 0 and 1 to answer 503 Service Unavailable
+   */
+  public void setUploadFailureRate(double uploadFailureRate) {
+    this.uploadFailureRate = uploadFailureRate;
+  }
+
+  /**
+   * Starts answering requests
+   */
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * @return the FHIR endpoint URL of the stand-in
+   */
+  public String getFhirEndpoint() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + FHIR_PATH;
+  }
+
+  /**
+   * @return the URL of the common UCUM codes ValueSet served by the stand-in
+   */
+  public String getUcumValueSetUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + UCUM_PATH;
+  }
+
+  /**
+   * Stops the server and any upstream connections
+   */
+  @Override
+  public void close() throws IOException {
+    server.stop(0);
+    executor.shutdownNow();
+    if (upstreamClient != null) {
+      upstreamClient.close();
+    }
+  }
+
+  private void handleFhir(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getRawPath().substring(FHIR_PATH.length()).replaceAll("^/+", "");
+      String query = exchange.getRequestURI().getRawQuery();
+      Response response;
+      if ("GET".equals(exchange.getRequestMethod())) {
+        response = get(exchange, path, query);
+      } else if ("POST".equals(exchange.getRequestMethod())) {
+        byte[] body = readAll(exchange.getRequestBody());
+        JsonObject resource = JsonParser.parseString(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+        if (path.isEmpty() && "Bundle".equals(resource.get("resourceType").getAsString())) {
+          response = batch(exchange, resource, body);
+        } else {
+          response = post(exchange, path, resource, body);
+        }
+      } else if ("PUT".equals(exchange.getRequestMethod())) {
+        response = put(path, query, readAll(exchange.getRequestBody()));
+      } else {
+        response = new Response(405, operationOutcome("Method " + exchange.getRequestMethod() + " not supported"));
+      }
+      send(exchange, response);
+    } catch (RuntimeException e) {
+      send(exchange, new Response(500, operationOutcome(e.toString())));
+    }
+  }
+
+  private void handleUcum(HttpExchange exchange) throws IOException {
+    String key = "GET " + UCUM_PATH;
+    Response response = readFixture(key);
+    if (response == null && upstreamUcumUrl != null) {
+      response = forward(new HttpGet(upstreamUcumUrl), exchange);
+      writeFixture(key, response);
+    }
+    send(exchange, response == null ? notRecorded(key) : response);
+  }
+
+  private Response get(HttpExchange exchange, String path, String query) throws IOException {
+    String key = "GET " + canonicalUrl(path, query);
+    Response response = readFixture(key);
+    if (response == null && upstreamFhirEndpoint != null) {
+      response = forward(new HttpGet(upstreamFhirEndpoint + "/" + path + (query == null ? "" : "?" + query)), exchange);
+      writeFixture(key, response);
+    }
+    return response == null ? notRecorded(key) : response;
+  }
+
+  private Response post(HttpExchange exchange, String path, JsonObject resource, byte[] body) throws IOException {
+    String key = "POST " + path + "\n" + resource;
+    Response response = readFixture(key);
+    if (response == null && upstreamFhirEndpoint != null) {
+      HttpPost post = new HttpPost(upstreamFhirEndpoint + "/" + path);
+      post.setEntity(new ByteArrayEntity(body, ContentType.parse(FHIR_JSON)));
+      response = forward(post, exchange);
+      writeFixture(key, response);
+    }
+    return response == null ? notRecorded(key) : response;
+  }
+
+  /**
+   * Accepts an uploaded resource of the type of the path, answering with the resource
+   */
+  private Response put(String path, String query, byte[] body) {
+    if (ThreadLocalRandom.current().nextDouble() < uploadFailureRate) {
+      return new Response(503, operationOutcome("Simulated upload failure"));
+    }
+    JsonObject resource = JsonParser.parseString(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+    if (!path.equals(resource.get("resourceType").getAsString())) {
+      return new Response(400, operationOutcome("Resource type " + resource.get("resourceType") + " does not match " + path));
+    }
+    return new Response(uploaded.add(canonicalUrl(path, query)) ? 201 : 200, resource.toString());
+  }
+
+  /**
+   * Answers a batch Bundle of GET requests entry by entry, forwarding the whole batch upstream in
+   * record mode if any entry has not been recorded
+   */
+  private Response batch(HttpExchange exchange, JsonObject bundle, byte[] body) throws IOException {
+    JsonArray entries = bundle.has("entry") ? bundle.getAsJsonArray("entry") : new JsonArray();
+    List<String> keys = new ArrayList<>();
+    List<Response> responses = new ArrayList<>();
+    boolean complete = true;
+    for (JsonElement entry : entries) {
+      JsonObject request = entry.getAsJsonObject().getAsJsonObject("request");
+      if (!"GET".equals(request.get("method").getAsString())) {
+        return new Response(400, operationOutcome("Only GET entries are supported in batch Bundles"));
+      }
+      String[] url = request.get("url").getAsString().split("\\?", 2);
+      String key = "GET " + canonicalUrl(url[0], url.length > 1 ? url[1] : null);
+      Response response = readFixture(key);
+      complete &= response != null;
+      keys.add(key);
+      responses.add(response);
+    }
+
+    if (!complete && upstreamFhirEndpoint != null) {
+      HttpPost post = new HttpPost(upstreamFhirEndpoint);
+      post.setEntity(new ByteArrayEntity(body, ContentType.parse(FHIR_JSON)));
+      Response upstream = forward(post, exchange);
+      if (upstream.status != 200) {
+        return upstream;
+      }
+      JsonArray upstreamEntries = JsonParser.parseString(upstream.body).getAsJsonObject().getAsJsonArray("entry");
+      for (int i = 0; i < keys.size(); i++) {
+        JsonObject entry = upstreamEntries.get(i).getAsJsonObject();
+        JsonObject entryResponse = entry.getAsJsonObject("response");
+        int status = Integer.parseInt(entryResponse.get("status").getAsString().split(" ")[0]);
+        JsonElement resource = entry.has("resource") ? entry.get("resource") : entryResponse.get("outcome");
+        Response response = new Response(status, resource == null ? operationOutcome("No resource") : resource.toString());
+        writeFixture(keys.get(i), response);
+        responses.set(i, response);
+      }
+    }
+
+    JsonArray responseEntries = new JsonArray();
+    for (int i = 0; i < keys.size(); i++) {
+      Response response = responses.get(i) == null ? notRecorded(keys.get(i)) : responses.get(i);
+      JsonObject entryResponse = new JsonObject();
+      entryResponse.addProperty("status", response.status + (response.status == 200 ? " OK" : ""));
+      JsonObject entry = new JsonObject();
+      if (response.status == 200) {
+        entry.add("resource", JsonParser.parseString(response.body));
+      } else {
+        entryResponse.add("outcome", JsonParser.parseString(response.body));
+      }
+      entry.add("response", entryResponse);
+      responseEntries.add(entry);
+    }
+    JsonObject responseBundle = new JsonObject();
+    responseBundle.addProperty("resourceType", "Bundle");
+    responseBundle.addProperty("type", "batch-response");
+    responseBundle.add("entry", responseEntries);
+    return new Response(200, responseBundle.toString());
+  }
+
+  private Response forward(HttpRequestBase request, HttpExchange exchange) throws IOException {
+    String authorization = exchange.getRequestHeaders().getFirst(AUTHORIZATION_HEADER);
+    if (authorization != null) {
+      request.setHeader(AUTHORIZATION_HEADER, authorization);
+    }
+    request.setHeader("Accept", FHIR_JSON);
+    try (CloseableHttpResponse response = upstreamClient.execute(request)) {
+      return new Response(response.getStatusLine().getStatusCode(), EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+    }
+  }
+
+  private void send(HttpExchange exchange, Response response) throws IOException {
+    long delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0);
+    if (delay > 0) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", FHIR_JSON);
+    exchange.sendResponseHeaders(response.status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private Response readFixture(String key) throws IOException {
+    Path file = fixtureFile(key);
+    if (!Files.exists(file)) {
+      return null;
+    }
+    JsonObject fixture = JsonParser.parseString(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)).getAsJsonObject();
+    return new Response(fixture.get("status").getAsInt(), fixture.get("body").getAsString());
+  }
+
+  private void writeFixture(String key, Response response) throws IOException {
+    if (response.status >= 500) {
+      return;
+    }
+    JsonObject fixture = new JsonObject();
+    fixture.addProperty("request", key);
+    fixture.addProperty("status", response.status);
+    fixture.addProperty("body", response.body);
+    Path file = fixtureFile(key);
+    Path temp = Files.createTempFile(fixtureDir.toPath(), file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temp, fixture.toString().getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private Path fixtureFile(String key) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder();
+      for (byte b : hash) {
+        name.append(String.format("%02x", b));
+      }
+      return new File(fixtureDir, name + FIXTURE_EXTENSION).toPath();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Response notRecorded(String key) {
+    System.err.println("WARNING: No recorded response for " + key.replace('\n', ' '));
+    return new Response(404, operationOutcome("No recorded response for this request"));
+  }
+
+  /**
+   * @return the path followed by the query parameters decoded and sorted by name, keeping the order
+   *         of repeated parameters
+   */
+  private static String canonicalUrl(String path, String query) {
+    List<String[]> params = new ArrayList<>();
+    if (query != null && !query.isEmpty()) {
+      for (String param : query.split("&")) {
+        String[] nameValue = param.split("=", 2);
+        params.add(new String[] {decode(nameValue[0]), nameValue.length > 1 ? decode(nameValue[1]) : ""});
+      }
+    }
+    params.sort(Comparator.comparing(param -> param[0]));
+
+    StringBuilder url = new StringBuilder(decode(path.replaceAll("^/+", "")));
+    for (int i = 0; i < params.size(); i++) {
+      url.append(i == 0 ? '?' : '&').append(params.get(i)[0]).append('=').append(params.get(i)[1]);
+    }
+    return url.toString();
+  }
+
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String operationOutcome(String diagnostics) {
+    JsonObject issue = new JsonObject();
+    issue.addProperty("severity", "error");
+    issue.addProperty("code", "not-found");
+    issue.addProperty("diagnostics", diagnostics);
+    JsonArray issues = new JsonArray();
+    issues.add(issue);
+    JsonObject outcome = new JsonObject();
+    outcome.addProperty("resourceType", "OperationOutcome");
+    outcome.add("issue", issues);
+    return outcome.toString();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    try (InputStream input = in) {
+      return input.readAllBytes();
+    }
+  }
+
+  private static class Response {
+    private final int status;
+    private final String body;
+
+    private Response(int status, String body) {
+      this.status = status;
+      this.body = body;
+    }
+  }
+}
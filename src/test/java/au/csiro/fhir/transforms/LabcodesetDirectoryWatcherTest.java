@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import au.csiro.fhir.transforms.generators.OutputFormat;
+import au.csiro.fhir.transforms.generators.TransformEnvironment;
+import au.csiro.fhir.transforms.utility.HttpTransport;
+import au.csiro.fhir.transforms.utility.StubHttpServer;
+import au.csiro.fhir.transforms.utility.StubHttpServer.Response;
+
+/**
+ * The files watched are not Labcodeset files, so their transforms fail at once without any
+ * terminology being looked up, and starting a transform is seen by the marker of a completed one
+ * being removed or the output directory being created.
+ */
+class LabcodesetDirectoryWatcherTest {
+
+  private static final long DEBOUNCE_MILLIS = 500;
+  private static final byte[] CONTENT = "not a labcodeset".getBytes(StandardCharsets.UTF_8);
+
+  @TempDir
+  Path dir;
+
+  private Path watchDir;
+  private File outputRoot;
+  private StubHttpServer terminologyServer;
+  private HttpTransport httpTransport;
+  private LabcodesetDirectoryWatcher watcher;
+
+  @BeforeEach
+  void createDirectories() throws IOException {
+    watchDir = Files.createDirectory(dir.resolve("drops"));
+    outputRoot = Files.createDirectory(dir.resolve("releases")).toFile();
+    terminologyServer = new StubHttpServer(request -> new Response(404, ""));
+    httpTransport = new HttpTransport(2, HttpTransport.DEFAULT_CONNECT_TIMEOUT, HttpTransport.DEFAULT_SOCKET_TIMEOUT,
+        HttpTransport.DEFAULT_KEEP_ALIVE, false);
+  }
+
+  @AfterEach
+  void close() throws IOException {
+    if (watcher != null) {
+      watcher.close();
+    }
+    httpTransport.close();
+    terminologyServer.close();
+  }
+
+  @Test
+  void fileIsOnlyTransformedOnceUnchangedForTheDebounceTime() throws Exception {
+    start();
+    Path file = watchDir.resolve("labcodeset-1.xml");
+    File outputDir = new File(outputRoot, "labcodeset-1");
+    try (OutputStream out = Files.newOutputStream(file)) {
+      for (int i = 0; i < 8; i++) {
+        out.write(CONTENT);
+        out.flush();
+        Thread.sleep(DEBOUNCE_MILLIS / 4);
+        assertFalse(outputDir.exists(), "transformed while still being written");
+      }
+    }
+    long written = System.currentTimeMillis();
+
+    assertTrue(waitFor(outputDir::exists));
+    assertTrue(System.currentTimeMillis() - written >= DEBOUNCE_MILLIS - 100);
+  }
+
+  @Test
+  void onlyFilesNotTransformedAsTheyAreNowAreTransformedOnStart() throws Exception {
+    Path unchanged = Files.write(watchDir.resolve("unchanged.xml"), CONTENT);
+    Path replaced = Files.write(watchDir.resolve("replaced.xml"), CONTENT);
+    Path partial = Files.write(watchDir.resolve("partial.xml"), CONTENT);
+    File unchangedOutput = markTransformed(unchanged, unchanged.toFile().lastModified());
+    File replacedOutput = markTransformed(replaced, replaced.toFile().lastModified() - 60000);
+    File partialOutput = Files.createDirectory(outputRoot.toPath().resolve("partial")).toFile();
+    Files.write(partialOutput.toPath().resolve("Labcodeset-bundle-1.json"), CONTENT);
+
+    assertTrue(LabcodesetDirectoryWatcher.isTransformed(unchanged, unchangedOutput));
+    assertFalse(LabcodesetDirectoryWatcher.isTransformed(replaced, replacedOutput));
+    assertFalse(LabcodesetDirectoryWatcher.isTransformed(partial, partialOutput));
+    start();
+
+    // the failed transform removes the marker of the replaced file
+    assertTrue(waitFor(() -> !new File(replacedOutput, ".labcodeset-transformed").exists()));
+    Thread.sleep(DEBOUNCE_MILLIS * 2);
+    assertTrue(LabcodesetDirectoryWatcher.isTransformed(unchanged, unchangedOutput));
+    assertFalse(LabcodesetDirectoryWatcher.isTransformed(partial, partialOutput));
+  }
+
+  @Test
+  void replacingATransformedFileInvalidatesItsMarker() throws Exception {
+    Path file = Files.write(watchDir.resolve("labcodeset-1.xml"), CONTENT);
+    File outputDir = markTransformed(file, file.toFile().lastModified());
+
+    Files.write(file, CONTENT, StandardOpenOption.APPEND);
+    assertFalse(LabcodesetDirectoryWatcher.isTransformed(file, outputDir));
+  }
+
+  private void start() throws IOException {
+    TransformEnvironment environment = new TransformEnvironment(terminologyServer.getUrl() + "/fhir", null, null, null, false, 100, 2,
+        null, null, null, null, httpTransport, terminologyServer.getUrl() + "/ucum");
+    watcher = new LabcodesetDirectoryWatcher(environment, watchDir.toFile(), outputRoot, "2.69", OutputFormat.PRETTY, null, 1, 1, false,
+        1, DEBOUNCE_MILLIS);
+    watcher.start();
+  }
+
+  private File markTransformed(Path file, long modified) throws IOException {
+    String name = file.getFileName().toString();
+    File outputDir = Files.createDirectory(outputRoot.toPath().resolve(name.substring(0, name.length() - 4))).toFile();
+    LabcodesetDirectoryWatcher.markTransformed(outputDir, file.toFile().length(), modified);
+    return outputDir;
+  }
+
+  private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+    for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+      Thread.sleep(50);
+    }
+    return condition.getAsBoolean();
+  }
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import au.csiro.fhir.transforms.generators.OutputFormat;
+import au.csiro.fhir.transforms.generators.TransformEnvironment;
+import au.csiro.fhir.transforms.utility.HttpTransport;
+import au.csiro.fhir.transforms.utility.StubHttpServer;
+import au.csiro.fhir.transforms.utility.StubHttpServer.Response;
+
+class LabcodesetTransformServiceTest {
+
+  private static final int MAX_REQUEST_BYTES = 100;
+
+  private StubHttpServer terminologyServer;
+  private HttpTransport httpTransport;
+  private LabcodesetTransformService service;
+
+  @BeforeEach
+  void start() throws IOException {
+    terminologyServer = new StubHttpServer(request -> new Response(404, ""));
+    httpTransport = new HttpTransport(2, HttpTransport.DEFAULT_CONNECT_TIMEOUT, HttpTransport.DEFAULT_SOCKET_TIMEOUT,
+        HttpTransport.DEFAULT_KEEP_ALIVE, false);
+    TransformEnvironment environment = new TransformEnvironment(terminologyServer.getUrl() + "/fhir", null, null, null, false, 100, 2,
+        null, null, null, null, httpTransport, terminologyServer.getUrl() + "/ucum");
+    service = new LabcodesetTransformService(environment, 0, 1, MAX_REQUEST_BYTES, "2.69", OutputFormat.PRETTY, false, 1);
+    service.start();
+  }
+
+  @AfterEach
+  void close() throws IOException {
+    service.close();
+    httpTransport.close();
+    terminologyServer.close();
+  }
+
+  @Test
+  void requestDeclaringMoreThanTheMaximumSizeIsRejected() throws Exception {
+    assertEquals(413, post(new byte[MAX_REQUEST_BYTES + 1], false));
+    assertStatus("Transforms: 0 running, 0 waiting, 0 completed, 0 failed");
+  }
+
+  @Test
+  void chunkedRequestLargerThanTheMaximumSizeIsRejected() throws Exception {
+    assertEquals(413, post(new byte[MAX_REQUEST_BYTES + 1], true));
+    assertStatus("Transforms: 0 running, 0 waiting, 0 completed, 0 failed");
+  }
+
+  @Test
+  void labcodesetThatCannotBeParsedIsCountedAsFailed() throws Exception {
+    assertEquals(400, post("not a labcodeset".getBytes(StandardCharsets.UTF_8), true));
+    assertStatus("Transforms: 0 running, 0 waiting, 0 completed, 1 failed");
+  }
+
+  @Test
+  void failureToFetchTheCommonUcumCodesIsAnUpstreamFailure() throws Exception {
+    String labcodeset = "<publication effectiveDate=\"20210301-1200\"><lab_concepts/><units/><ordinals/></publication>";
+    assertEquals(502, post(labcodeset.getBytes(StandardCharsets.UTF_8), false));
+    assertStatus("Transforms: 0 running, 0 waiting, 0 completed, 1 failed");
+  }
+
+  @Test
+  void onlyPostIsSupported() throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(service.getTransformUrl()).openConnection();
+    assertEquals(405, connection.getResponseCode());
+  }
+
+  private int post(byte[] body, boolean chunked) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(service.getTransformUrl()).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    if (chunked) {
+      connection.setChunkedStreamingMode(16);
+    } else {
+      connection.setFixedLengthStreamingMode(body.length);
+    }
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body);
+    }
+    return connection.getResponseCode();
+  }
+
+  /**
+   * Checks the status, waiting for it as a job is only counted as no longer running once its
+   * response has been sent
+   */
+  private void assertStatus(String expected) throws IOException, InterruptedException {
+    String status = getStatus();
+    for (int i = 0; i < 50 && !status.startsWith(expected); i++) {
+      Thread.sleep(20);
+      status = getStatus();
+    }
+    assertTrue(status.startsWith(expected), status);
+  }
+
+  private String getStatus() throws IOException {
+    String statusUrl = service.getTransformUrl().replace("/transform", "/status");
+    try (InputStream in = new URL(statusUrl).openStream()) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Type;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import au.csiro.fhir.transforms.utility.Constants;
+import au.csiro.fhir.transforms.utility.PublicationIndex;
+import au.csiro.fhir.transforms.utility.SnomedDisplayProvider;
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * The property codes, values and Codings of the supplement are shared by its concepts, these tests
+ * pin that each is created once per run and that none is modified once shared.
+ */
+class LoincResourceGeneratorTest {
+
+  private static final FhirContext CTX = FhirContext.forR4();
+  private static final int COUNT = 60;
+
+  @TempDir
+  Path dir;
+
+  private PublicationIndex index;
+
+  @BeforeEach
+  void readLabcodeset() throws IOException {
+    File labcodeset = Files.write(dir.resolve("labcodeset.xml"), TestLabcodesets.labcodeset(COUNT).getBytes(StandardCharsets.UTF_8))
+        .toFile();
+    index = PublicationIndex.read(labcodeset);
+  }
+
+  @Test
+  void repeatedPropertyCodesValuesAndCodingsAreOneInstancePerRun() {
+    CodeSystem supplement = newGenerator(TestLabcodesets.snomedProvider(), null).createLoincCodeSystemSupplement(index);
+
+    Map<String, Base> codes = new HashMap<>();
+    Map<String, Base> values = new HashMap<>();
+    Map<String, Base> synonymUses = new HashMap<>();
+    int shared = 0;
+    for (ConceptDefinitionComponent concept : supplement.getConcept()) {
+      for (ConceptPropertyComponent property : concept.getProperty()) {
+        assertSame(codes.computeIfAbsent(property.getCode(), code -> property.getCodeElement()), property.getCodeElement());
+        String key = property.getCode() + "=" + valueKey(property.getValue());
+        Base value = values.computeIfAbsent(key, k -> property.getValue());
+        assertSame(value, property.getValue(), key);
+        shared += value == property.getValue() ? 1 : 0;
+      }
+      concept.getDesignation().forEach(designation -> assertSame(synonymUses.computeIfAbsent("use", k -> designation.getUse()),
+          designation.getUse()));
+    }
+    assertTrue(shared > values.size(), "no property value is shared");
+    assertEquals(1, synonymUses.size());
+  }
+
+  @Test
+  void eachRunCreatesItsOwnInstances() {
+    SnomedDisplayProvider snomed = TestLabcodesets.snomedProvider();
+    CodeSystem first = newGenerator(snomed, null).createLoincCodeSystemSupplement(index);
+    CodeSystem second = newGenerator(snomed, null).createLoincCodeSystemSupplement(index);
+
+    Map<Base, Boolean> firstValues = new IdentityHashMap<>();
+    first.getConcept().forEach(concept -> concept.getProperty().forEach(property -> firstValues.put(property.getValue(), true)));
+    second.getConcept().forEach(concept -> concept.getProperty().forEach(property -> {
+      assertFalse(firstValues.containsKey(property.getValue()), property.getCode() + " value shared between runs");
+    }));
+    assertTrue(first.equalsDeep(second));
+  }
+
+  @Test
+  void reusedConceptsHaveTheirMaterialsReplacedWithTheCurrentSharedCodings() throws IOException {
+    SnomedDisplayProvider previousSnomed = new SnomedDisplayProvider() {
+      @Override
+      public CompletableFuture<Void> lookupSnomedAsync(Map<String, String> displaysIfNotFound) {
+        return CompletableFuture.completedFuture(null);
+      }
+
+      @Override
+      public String getSnomedDisplay(String code, String defaultIfNotFound) {
+        return "Oud materiaal " + code;
+      }
+    };
+    PreviousRelease previous = writeRelease(previousSnomed);
+
+    SnomedDisplayProvider snomed = TestLabcodesets.snomedProvider();
+    LoincResourceGenerator generator = newGenerator(snomed, previous);
+    CodeSystem supplement = generator.createLoincCodeSystemSupplement(index);
+
+    Map<String, Coding> materials = new HashMap<>();
+    int materialCount = 0;
+    for (ConceptDefinitionComponent concept : supplement.getConcept()) {
+      for (ConceptPropertyComponent property : concept.getProperty()) {
+        if (property.getCode().equals("MATERIAL")) {
+          Coding material = property.getValueCoding();
+          assertEquals(Constants.SCT_CS_URI, material.getSystem());
+          assertEquals(snomed.getSnomedDisplay(material.getCode(), null), material.getDisplay());
+          assertSame(materials.computeIfAbsent(material.getCode(), code -> material), material);
+          materialCount++;
+        }
+      }
+    }
+    assertTrue(materialCount > 0);
+    // nothing shared was modified while replacing, a second run over the same release is the same
+    assertTrue(supplement.equalsDeep(newGenerator(snomed, writeRelease(previousSnomed)).createLoincCodeSystemSupplement(index)));
+  }
+
+  private PreviousRelease writeRelease(SnomedDisplayProvider snomed) throws IOException {
+    LoincResourceGenerator generator = newGenerator(snomed, null);
+    Bundle bundle = new Bundle();
+    bundle.addEntry().setResource(generator.createLoincCodeSystemSupplement(index));
+
+    File bundleFile = dir.resolve("Labcodeset-1.json").toFile();
+    Files.write(bundleFile.toPath(), CTX.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8));
+    try (OutputStream out = new FileOutputStream(new File(bundleFile + ".fingerprints"))) {
+      PreviousRelease.writeFingerprints(out, index, "2.69", TestLabcodesets.SOURCE, generator.getIncompleteConcepts());
+    }
+    return PreviousRelease.read(CTX, bundleFile, "2.69", TestLabcodesets.SOURCE);
+  }
+
+  private static String valueKey(Type value) {
+    if (value instanceof Coding) {
+      Coding coding = (Coding) value;
+      return coding.getSystem() + "|" + coding.getCode() + "|" + coding.getDisplay();
+    }
+    return ((PrimitiveType<?>) value).getValueAsString();
+  }
+
+  private static LoincResourceGenerator newGenerator(SnomedDisplayProvider snomed, PreviousRelease previous) {
+    return new LoincResourceGenerator("1", "2.69", TestLabcodesets.loincProvider(COUNT), snomed, false, previous);
+  }
+}
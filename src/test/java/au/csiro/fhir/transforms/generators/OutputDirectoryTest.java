@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import au.csiro.fhir.transforms.generators.OutputDirectory.OutputFile;
+
+class OutputDirectoryTest {
+
+  private static final byte[] CONTENT = "content".getBytes(StandardCharsets.UTF_8);
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void unchangedFilesAreNotReplaced() throws IOException {
+    OutputDirectory output = new OutputDirectory(dir.toFile(), Runnable::run);
+    assertTrue(output.write("a.json", out -> out.write(CONTENT)));
+    FileTime written = FileTime.fromMillis(1000000);
+    Files.setLastModifiedTime(dir.resolve("a.json"), written);
+
+    assertFalse(output.write("a.json", out -> out.write(CONTENT)));
+    assertEquals(written, Files.getLastModifiedTime(dir.resolve("a.json")));
+    assertTrue(output.write("a.json", out -> out.write("changed".getBytes(StandardCharsets.UTF_8))));
+    assertArrayEquals("changed".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(dir.resolve("a.json")));
+    assertEquals(1, countFiles());
+  }
+
+  @Test
+  void failedWritesLeaveTheExistingFile() throws IOException {
+    OutputDirectory output = new OutputDirectory(dir.toFile(), Runnable::run);
+    output.write("a.json", out -> out.write(CONTENT));
+
+    assertThrows(IOException.class, () -> output.write("a.json", out -> {
+      out.write("partial".getBytes(StandardCharsets.UTF_8));
+      throw new IOException("failed");
+    }));
+    assertArrayEquals(CONTENT, Files.readAllBytes(dir.resolve("a.json")));
+    assertEquals(1, countFiles());
+  }
+
+  @Test
+  void filesOnlyAppearOnceCommitted() throws IOException {
+    OutputDirectory output = new OutputDirectory(dir.toFile(), Runnable::run);
+    try (OutputFile file = output.create("b.json")) {
+      file.getOutputStream().write(CONTENT);
+      assertFalse(Files.exists(dir.resolve("b.json")));
+      assertTrue(file.commit());
+    }
+    assertArrayEquals(CONTENT, Files.readAllBytes(dir.resolve("b.json")));
+
+    try (OutputFile file = output.create("c.json")) {
+      file.getOutputStream().write(CONTENT);
+    }
+    assertFalse(Files.exists(dir.resolve("c.json")));
+    assertEquals(1, countFiles());
+  }
+
+  private long countFiles() throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.count();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptPropertyComponent;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import au.csiro.fhir.transforms.utility.Constants;
+import au.csiro.fhir.transforms.utility.LoincConceptParts;
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Generating the resources concurrently with -parallel must write exactly the bytes a sequential
+ * run writes. Both runs are offline, resolving the terminology of a synthetic Labcodeset from
+ * memory.
+ */
+class ParallelGenerationTest {
+
+  private static final FhirContext CTX = FhirContext.forR4();
+  private static final int COUNT = 500;
+
+  @TempDir
+  Path dir;
+
+  private File labcodeset;
+
+  @BeforeEach
+  void writeLabcodeset() throws IOException {
+    labcodeset = Files.write(dir.resolve("labcodeset.xml"), TestLabcodesets.labcodeset(COUNT).getBytes(StandardCharsets.UTF_8)).toFile();
+  }
+
+  @ParameterizedTest
+  @EnumSource(OutputFormat.class)
+  void parallelRunWritesTheSameBytesAsASequentialRun(OutputFormat format) throws IOException {
+    Map<String, byte[]> sequential = generate(format, false);
+    Map<String, byte[]> parallel = generate(format, true);
+
+    assertEquals(sequential.keySet(), parallel.keySet());
+    assertTrue(sequential.keySet().stream().anyMatch(name -> name.startsWith("Labcodeset-bundle")));
+    assertTrue(sequential.keySet().stream().anyMatch(name -> name.startsWith("LOINCCodeSystemSupplement")));
+    for (String name : sequential.keySet()) {
+      assertArrayEquals(sequential.get(name), parallel.get(name), name);
+    }
+  }
+
+  @Test
+  void partTranslationsAreAddedOnceAheadOfTheFirstLabConceptUsingThem() throws IOException {
+    Map<String, byte[]> parallel = generate(OutputFormat.PRETTY, true);
+    String supplementFile = parallel.keySet().stream().filter(name -> name.startsWith("LOINCCodeSystemSupplement")).findFirst().get();
+    CodeSystem supplement = CTX.newJsonParser().parseResource(CodeSystem.class, new String(parallel.get(supplementFile),
+        StandardCharsets.UTF_8));
+
+    Map<String, Integer> partPositions = new HashMap<>();
+    List<ConceptDefinitionComponent> concepts = supplement.getConcept();
+    for (int i = 0; i < concepts.size(); i++) {
+      ConceptDefinitionComponent concept = concepts.get(i);
+      if (concept.getCode().startsWith("LP")) {
+        assertNull(partPositions.put(concept.getCode(), i), concept.getCode() + " added more than once");
+        continue;
+      }
+      for (ConceptPropertyComponent property : concept.getProperty()) {
+        if (LoincConceptParts.AXES.contains(property.getCode())) {
+          String partCode = property.getValueCoding().getCode();
+          assertTrue(partPositions.containsKey(partCode), partCode + " is not ahead of " + concept.getCode());
+        }
+      }
+    }
+    // every part translation is used by the lab concept it is added ahead of
+    for (Map.Entry<String, Integer> part : partPositions.entrySet()) {
+      int next = part.getValue() + 1;
+      while (concepts.get(next).getCode().startsWith("LP")) {
+        next++;
+      }
+      assertTrue(concepts.get(next).getProperty().stream()
+          .anyMatch(property -> !property.getValue().isPrimitive() && part.getKey().equals(property.getValueCoding().getCode())),
+          part.getKey());
+    }
+  }
+
+  /**
+   * @return the content of each file written by a run, by file name
+   */
+  private Map<String, byte[]> generate(OutputFormat format, boolean parallel) throws IOException {
+    File outputDir = Files.createDirectory(dir.resolve(format.getName() + (parallel ? "-parallel" : "-sequential"))).toFile();
+    TransformEnvironment environment =
+        new TransformEnvironment(TestLabcodesets.loincProvider(COUNT), TestLabcodesets.snomedProvider(), commonUcumCodes());
+    LabcodesetResourceGenerator generator =
+        new LabcodesetResourceGenerator(environment, labcodeset, outputDir, "2.69", null, null, format, null, 0);
+    if (parallel) {
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+        generator.generateFhirResources(executor);
+      } finally {
+        executor.shutdown();
+      }
+    } else {
+      generator.generateFhirResources();
+    }
+
+    Map<String, byte[]> files = new HashMap<>();
+    try (Stream<Path> paths = Files.list(outputDir.toPath())) {
+      for (Path path : paths.collect(Collectors.toList())) {
+        files.put(path.getFileName().toString(), Files.readAllBytes(path));
+      }
+    }
+    return files;
+  }
+
+  private static ValueSet commonUcumCodes() {
+    ValueSet valueSet = new ValueSet();
+    valueSet.setUrl("http://hl7.org/fhir/ValueSet/ucum-common");
+    Arrays.asList("mg/L1", "mg/L2", "%").forEach(code -> valueSet.getCompose().addInclude().setSystem(Constants.UCUM_CS_URI)
+        .addConcept().setCode(code).setDisplay("common " + code));
+    return valueSet;
+  }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import au.csiro.fhir.transforms.utility.LoincConceptParts;
+import au.csiro.fhir.transforms.utility.LoincConceptProvider;
+import au.csiro.fhir.transforms.utility.PublicationIndex;
+import au.csiro.fhir.transforms.utility.PublicationIndex.IndexedLabConcept;
+import au.csiro.fhir.transforms.utility.SnomedDisplayProvider;
+import ca.uhn.fhir.context.FhirContext;
+
+class PreviousReleaseTest {
+
+  private static final FhirContext CTX = FhirContext.forR4();
+  private static final String SOURCE = "http://terminology.example/fhir";
+
+  // 1000-1 has all its parts, 2000-2 is missing the part of its PROPERTY translation
+  private static final LoincConceptProvider LOINC = new LoincConceptProvider() {
+    @Override
+    public CompletableFuture<Void> lookupLoincAsync(Collection<String> codes, String loincVersion) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public LoincConceptParts getLoincConcept(String code, String loincVersion) {
+      return code.equals("1000-1") ? new LoincConceptParts("LP1", "LP2", null, null, null, null)
+          : new LoincConceptParts("LP3", null, null, null, null, null);
+    }
+
+    @Override
+    public String getSource() {
+      return SOURCE;
+    }
+  };
+
+  private static final SnomedDisplayProvider SNOMED = new SnomedDisplayProvider() {
+    @Override
+    public CompletableFuture<Void> lookupSnomedAsync(Map<String, String> displaysIfNotFound) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public String getSnomedDisplay(String code, String defaultIfNotFound) {
+      return "NL " + code;
+    }
+  };
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void unchangedCompleteConceptsAreReused() throws IOException {
+    File bundleFile = writeRelease(labcodeset("Lange naam 1"));
+    PreviousRelease previous = PreviousRelease.read(CTX, bundleFile, "2.69", SOURCE);
+    PublicationIndex index = PublicationIndex.read(writeLabcodeset("current.xml", labcodeset("Lange naam 1")));
+
+    IndexedLabConcept complete = labConcept(index, "1000-1");
+    assertTrue(previous.isSupplementConceptReusable(complete));
+    assertEquals("Lange naam 1", previous.getSupplementConcept(complete).getDisplay());
+  }
+
+  @Test
+  void conceptsWithPartsNotFoundAreNotReused() throws IOException {
+    File bundleFile = writeRelease(labcodeset("Lange naam 1"));
+    String fingerprints = new String(Files.readAllBytes(new File(bundleFile + ".fingerprints").toPath()), StandardCharsets.UTF_8);
+    assertTrue(fingerprints.contains("2000-2\t"));
+    assertTrue(fingerprints.contains("\tincomplete"));
+
+    PreviousRelease previous = PreviousRelease.read(CTX, bundleFile, "2.69", SOURCE);
+    IndexedLabConcept incomplete = labConcept(PublicationIndex.read(writeLabcodeset("current.xml", labcodeset("Lange naam 1"))), "2000-2");
+    assertFalse(previous.isSupplementConceptReusable(incomplete));
+    assertNull(previous.getSupplementConcept(incomplete));
+  }
+
+  @Test
+  void changedConceptsAreNotReused() throws IOException {
+    File bundleFile = writeRelease(labcodeset("Lange naam 1"));
+    PreviousRelease previous = PreviousRelease.read(CTX, bundleFile, "2.69", SOURCE);
+    PublicationIndex index = PublicationIndex.read(writeLabcodeset("current.xml", labcodeset("Nieuwe naam 1")));
+
+    assertFalse(previous.isSupplementConceptReusable(labConcept(index, "1000-1")));
+  }
+
+  @Test
+  void releasesOfAnotherLoincVersionOrSourceAreRejected() throws IOException {
+    File bundleFile = writeRelease(labcodeset("Lange naam 1"));
+    assertThrows(IOException.class, () -> PreviousRelease.read(CTX, bundleFile, "2.70", SOURCE));
+    assertThrows(IOException.class, () -> PreviousRelease.read(CTX, bundleFile, "2.69", "file:/loinc/"));
+  }
+
+  /**
+   * Writes a bundle containing the LOINC supplement generated from a Labcodeset, with its
+   * fingerprints alongside
+   */
+  private File writeRelease(String labcodeset) throws IOException {
+    PublicationIndex index = PublicationIndex.read(writeLabcodeset("previous.xml", labcodeset));
+    LoincResourceGenerator generator = new LoincResourceGenerator("1", "2.69", LOINC, SNOMED, false, null);
+    CodeSystem supplement = generator.createLoincCodeSystemSupplement(index);
+    Bundle bundle = new Bundle();
+    bundle.addEntry().setResource(supplement);
+
+    File bundleFile = dir.resolve("Labcodeset-1.json").toFile();
+    Files.write(bundleFile.toPath(), CTX.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8));
+    try (OutputStream out = new FileOutputStream(new File(bundleFile + ".fingerprints"))) {
+      PreviousRelease.writeFingerprints(out, index, "2.69", SOURCE, generator.getIncompleteConcepts());
+    }
+    return bundleFile;
+  }
+
+  private File writeLabcodeset(String filename, String labcodeset) throws IOException {
+    return Files.write(dir.resolve(filename), labcodeset.getBytes(StandardCharsets.UTF_8)).toFile();
+  }
+
+  private static IndexedLabConcept labConcept(PublicationIndex index, String loincNum) {
+    return index.getLabConcepts().stream().filter(labConcept -> labConcept.getLoincNum().equals(loincNum)).findFirst().get();
+  }
+
+  private static String labcodeset(String longName) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><publication effectiveDate=\"20210301-1200\"><lab_concepts>"
+        + labConcept("1000-1", longName) + labConcept("2000-2", "Lange naam 2") + "</lab_concepts><units/><ordinals/></publication>";
+  }
+
+  private static String labConcept(String loincNum, String translatedLongName) {
+    return "<lab_concept status=\"active\"><loincConcept loinc_num=\"" + loincNum + "\" status=\"ACTIVE\"><longName>Long name</longName>"
+        + "<translation language=\"nl-NL\"><component>Comp NL</component><property>Prop NL</property><longName>" + translatedLongName
+        + "</longName></translation></loincConcept><materials><material code=\"1000\" displayName=\"Mat\"/></materials></lab_concept>";
+  }
+}
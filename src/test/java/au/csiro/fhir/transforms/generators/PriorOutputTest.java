@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import au.csiro.fhir.transforms.utility.JsonBundleWriter;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+class PriorOutputTest {
+
+  private static final FhirContext CTX = FhirContext.forR4();
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void onlyResourceFilesOfTheCurrentFormatAreCompared() throws IOException {
+    Files.write(dir.resolve("ValueSet-1.json"), encode(OutputFormat.PRETTY, valueSet("Title")));
+    try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(dir.resolve("ValueSet-1.json.gz")))) {
+      out.write(encode(OutputFormat.GZIP, valueSet("Other title")));
+    }
+
+    assertFalse(isNewOrChanged(OutputFormat.PRETTY, valueSet("Title")));
+    assertTrue(isNewOrChanged(OutputFormat.GZIP, valueSet("Title")));
+    assertFalse(isNewOrChanged(OutputFormat.GZIP, valueSet("Other title")));
+  }
+
+  @Test
+  void bundlesAreNotRead() throws IOException {
+    // named as a Bundle but holding the resource, which would be found unchanged if it was read
+    Files.write(dir.resolve("Labcodeset-bundle-1.json"), encode(OutputFormat.PRETTY, valueSet("Title")));
+
+    assertTrue(LabcodesetResourceGenerator.isBundleFile("Labcodeset-bundle-1.json"));
+    assertTrue(LabcodesetResourceGenerator.isBundleFile("Labcodeset-changes-1.json.gz"));
+    assertFalse(LabcodesetResourceGenerator.isBundleFile("LOINCValueset-1.json"));
+    assertTrue(isNewOrChanged(OutputFormat.PRETTY, valueSet("Title")));
+  }
+
+  private boolean isNewOrChanged(OutputFormat format, ValueSet valueSet) throws IOException {
+    IParser parser = format.newParser(CTX);
+    PriorOutput prior = PriorOutput.read(parser, dir.toFile(), format);
+    GeneratedResource generated = new GeneratedResource(valueSet, "ValueSet-%s.json");
+    generated.encode(parser);
+    try (JsonBundleWriter transaction = new JsonBundleWriter(new ByteArrayOutputStream(), BundleType.TRANSACTION)) {
+      return prior.compareTo(transaction).add(generated);
+    }
+  }
+
+  private static byte[] encode(OutputFormat format, ValueSet valueSet) {
+    return format.newParser(CTX).encodeResourceToString(valueSet).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static ValueSet valueSet(String title) {
+    ValueSet valueSet = new ValueSet();
+    valueSet.setUrl("http://example.org/ValueSet/1").setVersion("1").setTitle(title).setStatus(PublicationStatus.ACTIVE);
+    return valueSet;
+  }
+}
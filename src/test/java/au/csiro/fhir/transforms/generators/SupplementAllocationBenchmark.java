@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.hl7.fhir.r4.model.CodeSystem;
+import au.csiro.fhir.transforms.utility.LoincConceptProvider;
+import au.csiro.fhir.transforms.utility.PublicationIndex;
+import au.csiro.fhir.transforms.utility.SnomedDisplayProvider;
+
+/**
+ * Measures the memory the LOINC supplement of a synthetic Labcodeset takes to build, offline and
+ * on one thread, so that only the supplement construction is measured. Reports the bytes allocated
+ * per build, from the thread allocation counter, and the heap retained by a finished supplement.
+ * Not run by the build, run it with
+ *
+ * <pre>
+ * mvn -B -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     au.csiro.fhir.transforms.generators.SupplementAllocationBenchmark [concepts] [iterations]
+ * </pre>
+ */
+public class SupplementAllocationBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 10;
+
+  public static void main(String[] args) throws IOException {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    Path labcodeset = Files.createTempFile("labcodeset-benchmark-", ".xml");
+    PublicationIndex index;
+    try {
+      Files.write(labcodeset, TestLabcodesets.labcodeset(count).getBytes(StandardCharsets.UTF_8));
+      index = PublicationIndex.read(labcodeset.toFile());
+    } finally {
+      Files.delete(labcodeset);
+    }
+    LoincConceptProvider loinc = TestLabcodesets.loincProvider(count);
+    SnomedDisplayProvider snomed = TestLabcodesets.snomedProvider();
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      build(index, loinc, snomed);
+    }
+    long allocated = 0;
+    for (int i = 0; i < iterations; i++) {
+      long before = threads.getThreadAllocatedBytes(thread);
+      build(index, loinc, snomed);
+      allocated += threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    long before = usedHeap();
+    CodeSystem supplement = build(index, loinc, snomed);
+    long retained = usedHeap() - before;
+
+    System.out.println(String.format("%d lab concepts, %d supplement concepts", count, supplement.getConcept().size()));
+    System.out.println(String.format("Allocated per build: %.1f MB (mean of %d builds)", allocated / (double) iterations / 1e6, iterations));
+    System.out.println(String.format("Retained by the supplement: %.1f MB", retained / 1e6));
+  }
+
+  private static CodeSystem build(PublicationIndex index, LoincConceptProvider loinc, SnomedDisplayProvider snomed) {
+    return new LoincResourceGenerator("1", "2.69", loinc, snomed, false, null).createLoincCodeSystemSupplement(index);
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
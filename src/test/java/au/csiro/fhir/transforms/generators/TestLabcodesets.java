@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import au.csiro.fhir.transforms.utility.LoincConceptParts;
+import au.csiro.fhir.transforms.utility.LoincConceptProvider;
+import au.csiro.fhir.transforms.utility.SnomedDisplayProvider;
+
+/**
+ * Synthetic Labcodeset files for tests and benchmarks, with terminology providers answering from
+ * memory like the warm lookup caches do, so that transformations run offline. Lab concepts share
+ * axis translations, LOINC parts, materials and units the way a real Labcodeset does.
+ */
+final class TestLabcodesets {
+
+  static final String SOURCE = "http://terminology.example/fhir";
+
+  private static final int MATERIALS = 40;
+  private static final int UNITS = 20;
+
+  private TestLabcodesets() {
+  }
+
+  /**
+   * @param count number of lab concepts
+   * @return Labcodeset XML with the lab concepts
+   */
+  static String labcodeset(int count) {
+    StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<publication effectiveDate=\"20210301-1200\">\n"
+        + "<desc language=\"nl\">Test</desc>\n<lab_concepts>\n");
+    for (int i = 0; i < count; i++) {
+      xml.append("<lab_concept status=\"active\"><loincConcept loinc_num=\"").append(loincNum(i)).append("\" status=\"ACTIVE\">")
+          .append("<component>Comp ").append(i).append("</component><longName>Long name ").append(i).append("</longName>");
+      if (i % 11 != 0) {
+        xml.append("<translation language=\"nl-NL\"><component>Comp NL ").append(i % 13).append("</component><property>Prop NL ")
+            .append(i % 4).append("</property><timing>Pt</timing><system>Sys NL ").append(i % 6).append("</system><scale>Qn</scale>")
+            .append(i % 2 == 1 ? "<method>Meth NL</method>" : "").append("<class>CHEM</class><orderObs>Both</orderObs><longName>Lange naam ")
+            .append(i).append("</longName></translation>");
+      }
+      xml.append("</loincConcept><materials>");
+      for (int k = 0; k <= i % 3; k++) {
+        int material = materialCode(i * 7 + k);
+        xml.append("<material code=\"").append(material).append("\" displayName=\"Mat ").append(material).append("\"/>");
+      }
+      xml.append("</materials>");
+      if (i % 4 != 0) {
+        xml.append("<units><unit ref=\"u").append(i % UNITS).append("\"/></units>");
+      }
+      xml.append("</lab_concept>\n");
+    }
+    xml.append("</lab_concepts>\n<units>\n");
+    for (int u = 0; u < UNITS; u++) {
+      xml.append("<unit id=\"u").append(u).append("\" status=\"active\"><rm>mg/L").append(u).append("</rm><name>milligram per liter ")
+          .append(u).append("</name><nlname>milligram per liter NL ").append(u).append("</nlname></unit>\n");
+    }
+    return xml.append("</units>\n<ordinals/>\n</publication>\n").toString();
+  }
+
+  /**
+   * @param count number of lab concepts of the Labcodeset
+   * @return provider answering the LOINC parts of the lab concepts from memory
+   */
+  static LoincConceptProvider loincProvider(int count) {
+    Map<String, LoincConceptParts> parts = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      parts.put(loincNum(i), new LoincConceptParts("LP" + (100 + i % 13), "LP" + (200 + i % 4), "LP300", "LP" + (400 + i % 6), "LP500",
+          i % 2 == 1 ? "LP600" : null));
+    }
+    return new LoincConceptProvider() {
+      @Override
+      public CompletableFuture<Void> lookupLoincAsync(Collection<String> codes, String loincVersion) {
+        return CompletableFuture.completedFuture(null);
+      }
+
+      @Override
+      public LoincConceptParts getLoincConcept(String code, String loincVersion) {
+        return parts.get(code);
+      }
+
+      @Override
+      public String getSource() {
+        return SOURCE;
+      }
+    };
+  }
+
+  /**
+   * @return provider answering the Dutch display terms of the materials from memory
+   */
+  static SnomedDisplayProvider snomedProvider() {
+    Map<String, String> displays = new HashMap<>();
+    for (int m = 0; m < MATERIALS; m++) {
+      displays.put(Integer.toString(materialCode(m)), "NL materiaal " + materialCode(m));
+    }
+    return new SnomedDisplayProvider() {
+      @Override
+      public CompletableFuture<Void> lookupSnomedAsync(Map<String, String> displaysIfNotFound) {
+        return CompletableFuture.completedFuture(null);
+      }
+
+      @Override
+      public String getSnomedDisplay(String code, String defaultIfNotFound) {
+        return displays.getOrDefault(code, defaultIfNotFound);
+      }
+    };
+  }
+
+  private static String loincNum(int i) {
+    return (10000 + i) + "-" + (i % 10);
+  }
+
+  private static int materialCode(int i) {
+    return 1000 + i % MATERIALS;
+  }
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.generators;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import au.csiro.fhir.transforms.utility.HttpTransport;
+import au.csiro.fhir.transforms.utility.StubHttpServer;
+import au.csiro.fhir.transforms.utility.StubHttpServer.Response;
+
+class TransformEnvironmentTest {
+
+  private static final String UCUM_CODES = "{\"resourceType\":\"ValueSet\",\"url\":\"http://hl7.org/fhir/ValueSet/ucum-common\","
+      + "\"status\":\"active\",\"compose\":{\"include\":[{\"system\":\"http://unitsofmeasure.org\",\"concept\":["
+      + "{\"code\":\"mg/L\",\"display\":\"milligram per liter\"},{\"code\":\"%\",\"display\":\"percent\"}]}]}}";
+
+  @TempDir
+  Path cacheDir;
+
+  private final AtomicBoolean available = new AtomicBoolean(true);
+  private StubHttpServer server;
+  private HttpTransport httpTransport;
+
+  @BeforeEach
+  void start() throws IOException {
+    server = new StubHttpServer(request -> available.get() && request.uri.equals("/ucum") ? new Response(200, UCUM_CODES)
+        : new Response(503, ""));
+    httpTransport = new HttpTransport(2, HttpTransport.DEFAULT_CONNECT_TIMEOUT, HttpTransport.DEFAULT_SOCKET_TIMEOUT,
+        HttpTransport.DEFAULT_KEEP_ALIVE, false);
+  }
+
+  @AfterEach
+  void close() throws IOException {
+    httpTransport.close();
+    server.close();
+  }
+
+  @Test
+  void commonUcumCodesArePersistedInTheCacheDirectory() throws IOException {
+    ValueSet fetched;
+    try (TransformEnvironment environment = newEnvironment(true)) {
+      fetched = environment.getCommonUcumCodes();
+    }
+    assertEquals(1, server.getRequests().size());
+
+    available.set(false);
+    try (TransformEnvironment environment = newEnvironment(true)) {
+      assertTrue(fetched.equalsDeep(environment.getCommonUcumCodes()));
+    }
+    assertEquals(1, server.getRequests().size());
+  }
+
+  @Test
+  void commonUcumCodesAreFetchedEachRunWithoutACacheDirectory() throws IOException {
+    try (TransformEnvironment environment = newEnvironment(false)) {
+      environment.getCommonUcumCodes();
+    }
+    available.set(false);
+    try (TransformEnvironment environment = newEnvironment(false)) {
+      assertThrows(IOException.class, environment::getCommonUcumCodes);
+    }
+  }
+
+  private TransformEnvironment newEnvironment(boolean persistent) throws IOException {
+    return new TransformEnvironment(server.getUrl() + "/fhir", null, null, null, false, 100, 2, persistent ? cacheDir.toFile() : null,
+        null, null, null, httpTransport, server.getUrl() + "/ucum");
+  }
+}
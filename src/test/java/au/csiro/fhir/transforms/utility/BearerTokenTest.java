@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import au.csiro.fhir.transforms.utility.StubHttpServer.Response;
+
+class BearerTokenTest {
+
+  private final CloseableHttpClient httpClient = HttpClients.createDefault();
+  private StubHttpServer server;
+
+  @AfterEach
+  void close() throws IOException {
+    httpClient.close();
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  void tokenIsFetchedWhenFirstNeededAndReused() throws IOException {
+    BearerToken token = start(3600);
+    assertEquals(0, server.getRequests().size());
+
+    assertEquals("token1", token.get());
+    assertEquals("token1", token.get());
+    assertEquals(1, server.getRequests().size());
+    assertTrue(server.getRequests().get(0).body.contains("grant_type=client_credentials"));
+    assertTrue(server.getRequests().get(0).body.contains("client_id=id"));
+  }
+
+  @Test
+  void tokenIsFetchedAgainAsItExpires() throws IOException {
+    BearerToken token = start(0);
+
+    assertEquals("token1", token.get());
+    assertEquals("token2", token.get());
+    assertEquals(2, server.getRequests().size());
+  }
+
+  @Test
+  void rejectedTokenIsReplacedOnce() throws IOException {
+    BearerToken token = start(-1);
+    assertEquals("token1", token.get());
+
+    token.reject("token1");
+    assertEquals("token2", token.get());
+    // a request that was sent with the old token being rejected later keeps the new one
+    token.reject("token1");
+    assertEquals("token2", token.get());
+    assertEquals(2, server.getRequests().size());
+  }
+
+  @Test
+  void failureToFetchIsReported() throws IOException {
+    server = new StubHttpServer(request -> new Response(400, "{\"error\":\"invalid_client\"}"));
+    BearerToken token = new BearerToken(httpClient, new LookupMetrics(), server.getUrl() + "/token", "id", "secret");
+
+    assertThrows(IOException.class, token::get);
+  }
+
+  /**
+   * Starts a token endpoint numbering the tokens it issues
+   *
+   * @param expiresIn expires_in of the tokens in seconds, or -1 for none
+   */
+  private BearerToken start(int expiresIn) throws IOException {
+    AtomicInteger issued = new AtomicInteger();
+    server = new StubHttpServer(request -> new Response(200, "{\"access_token\":\"token" + issued.incrementAndGet() + "\""
+        + (expiresIn >= 0 ? ",\"expires_in\":" + expiresIn : "") + "}", Collections.singletonMap("Content-Type", "application/json")));
+    return new BearerToken(httpClient, new LookupMetrics(), server.getUrl() + "/token", "id", "secret");
+  }
+}
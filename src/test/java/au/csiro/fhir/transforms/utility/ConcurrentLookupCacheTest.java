@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import au.csiro.fhir.transforms.utility.LookupMetrics.Terminology;
+
+class ConcurrentLookupCacheTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private final LookupMetrics metrics = new LookupMetrics();
+  private final ConcurrentLookupCache<String> cache = new ConcurrentLookupCache<>(metrics, Terminology.LOINC);
+
+  @AfterEach
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void concurrentRequestsForTheSameKeyShareOneFetch() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger loads = new AtomicInteger();
+    CompletableFuture<String> first = cache.get("1234-5", key -> {
+      loads.incrementAndGet();
+      await(release);
+      return "value of " + key;
+    }, executor);
+    CompletableFuture<String> second = cache.get("1234-5", key -> {
+      loads.incrementAndGet();
+      return "second fetch";
+    }, executor);
+
+    assertSame(first, second);
+    release.countDown();
+    assertEquals("value of 1234-5", first.get(5, TimeUnit.SECONDS));
+    assertEquals(1, loads.get());
+    assertEquals(1, metrics.getHits(Terminology.LOINC));
+
+    assertEquals("value of 1234-5", cache.get("1234-5", key -> "not fetched", executor).get(5, TimeUnit.SECONDS));
+    assertEquals(2, metrics.getHits(Terminology.LOINC));
+  }
+
+  @Test
+  void valuesNotFoundAreNotCached() throws Exception {
+    assertNull(cache.get("missing", key -> null, executor).get(5, TimeUnit.SECONDS));
+    assertNull(cache.getIfPresent("missing"));
+    assertEquals("found later", cache.get("missing", key -> "found later", executor).get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void failedFetchIsRetriedOnTheNextRequest() throws Exception {
+    CompletableFuture<String> failed = cache.get("1234-5", key -> {
+      throw new IllegalStateException("server down");
+    }, executor);
+    CompletionException e = assertThrows(CompletionException.class, failed::join);
+    assertTrue(e.getCause() instanceof IllegalStateException);
+
+    assertEquals("recovered", cache.get("1234-5", key -> "recovered", executor).get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void getAllFetchesOnlyUncachedKeysInBatches() throws Exception {
+    cache.get("a", key -> "A", executor).get(5, TimeUnit.SECONDS);
+    List<List<String>> batches = new ArrayList<>();
+    cache.getAll(Arrays.asList("a", "b", "c", "d", "b"), batch -> {
+      synchronized (batches) {
+        batches.add(new ArrayList<>(batch));
+      }
+      Map<String, String> result = new HashMap<>();
+      batch.stream().filter(key -> !"d".equals(key)).forEach(key -> result.put(key, key.toUpperCase()));
+      return result;
+    }, 2, executor).get(5, TimeUnit.SECONDS);
+
+    assertEquals(2, batches.size());
+    assertEquals(3, batches.stream().mapToInt(List::size).sum());
+    assertEquals("B", cache.getIfPresent("b"));
+    assertEquals("C", cache.getIfPresent("c"));
+    assertNull(cache.getIfPresent("d"));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.jupiter.api.Test;
+
+class HttpTransportTest {
+
+  @Test
+  void keepsIdleConnectionsForTheServerTimeout() {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.addHeader("Keep-Alive", "timeout=5, max=100");
+    assertEquals(5000, HttpTransport.getKeepAliveStrategy(30).getKeepAliveDuration(response, new BasicHttpContext()));
+  }
+
+  @Test
+  void keepsIdleConnectionsForTheDefaultWhenTheServerDoesNotSay() {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    assertEquals(30000, HttpTransport.getKeepAliveStrategy(30).getKeepAliveDuration(response, new BasicHttpContext()));
+  }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import au.csiro.fhir.transforms.utility.JsonBundleWriter.Layout;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+class JsonBundleWriterTest {
+
+  private static final FhirContext CTX = FhirContext.forR4();
+
+  @Test
+  void prettyBundleIsIdenticalToHapi() throws IOException {
+    assertIdenticalToHapi(Layout.PRETTY, true, BundleType.COLLECTION, resources());
+  }
+
+  @Test
+  void compactBundleIsIdenticalToHapi() throws IOException {
+    assertIdenticalToHapi(Layout.COMPACT, false, BundleType.COLLECTION, resources());
+  }
+
+  @Test
+  void transactionEntriesAreIdenticalToHapi() throws IOException {
+    assertIdenticalToHapi(Layout.PRETTY, true, BundleType.TRANSACTION, resources());
+    assertIdenticalToHapi(Layout.COMPACT, false, BundleType.TRANSACTION, resources());
+  }
+
+  @Test
+  void emptyBundleIsIdenticalToHapi() throws IOException {
+    assertIdenticalToHapi(Layout.PRETTY, true, BundleType.COLLECTION, Arrays.asList());
+    assertIdenticalToHapi(Layout.COMPACT, false, BundleType.TRANSACTION, Arrays.asList());
+  }
+
+  @Test
+  void ndjsonHasOneResourcePerLine() throws IOException {
+    IParser parser = CTX.newJsonParser();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonBundleWriter writer = new JsonBundleWriter(out, BundleType.COLLECTION, Layout.NDJSON);
+    for (MetadataResource resource : resources()) {
+      writer.addEntry(encode(parser, resource));
+    }
+    writer.finish();
+
+    assertEquals(parser.encodeResourceToString(resources().get(0)) + "\n" + parser.encodeResourceToString(resources().get(1)) + "\n",
+        out.toString(StandardCharsets.UTF_8));
+    JsonBundleWriter transaction = new JsonBundleWriter(new ByteArrayOutputStream(), BundleType.TRANSACTION, Layout.NDJSON);
+    assertThrows(IllegalArgumentException.class, () -> transaction.addEntry(new byte[0], HTTPVerb.PUT, "x"));
+  }
+
+  @Test
+  void finishingClosesTheStreamOnce() throws IOException {
+    AtomicInteger closed = new AtomicInteger();
+    ByteArrayOutputStream out = new ByteArrayOutputStream() {
+      @Override
+      public void close() {
+        closed.incrementAndGet();
+      }
+    };
+    try (JsonBundleWriter writer = new JsonBundleWriter(out, BundleType.COLLECTION)) {
+      writer.finish();
+      assertEquals(1, closed.get());
+      assertThrows(IllegalStateException.class, () -> writer.addEntry(new byte[0]));
+    }
+    assertEquals(1, closed.get());
+  }
+
+  @Test
+  void closingAnUnfinishedBundleLeavesItIncomplete() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonBundleWriter writer = new JsonBundleWriter(out, BundleType.COLLECTION, Layout.COMPACT)) {
+      writer.addEntry(encode(CTX.newJsonParser(), resources().get(0)));
+    }
+    assertEquals("{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[{\"resource\":"
+        + CTX.newJsonParser().encodeResourceToString(resources().get(0)), out.toString(StandardCharsets.UTF_8));
+  }
+
+  private static void assertIdenticalToHapi(Layout layout, boolean prettyPrint, BundleType type, List<MetadataResource> resources)
+      throws IOException {
+    IParser parser = CTX.newJsonParser().setPrettyPrint(prettyPrint);
+    Bundle bundle = new Bundle().setType(type);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonBundleWriter writer = new JsonBundleWriter(out, type, layout)) {
+      for (MetadataResource resource : resources) {
+        if (type == BundleType.TRANSACTION) {
+          String url = resource.fhirType() + "?url=" + resource.getUrl() + "&version=" + resource.getVersion();
+          writer.addEntry(encode(parser, resource), HTTPVerb.PUT, url);
+          bundle.addEntry().setResource(resource).getRequest().setMethod(HTTPVerb.PUT).setUrl(url);
+        } else {
+          writer.addEntry(encode(parser, resource));
+          bundle.addEntry().setResource(resource);
+        }
+      }
+      writer.finish();
+    }
+    assertEquals(parser.encodeResourceToString(bundle), out.toString(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] encode(IParser parser, MetadataResource resource) {
+    return parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static List<MetadataResource> resources() {
+    ValueSet valueSet = new ValueSet();
+    valueSet.setId("vs");
+    valueSet.setUrl("http://example.org/ValueSet/vs").setVersion("1").setTitle("Line\nbreak \"quoted\" é")
+        .setStatus(PublicationStatus.ACTIVE);
+    valueSet.getCompose().addInclude().setSystem("http://loinc.org").addConcept().setCode("1000-1");
+    CodeSystem codeSystem = new CodeSystem();
+    codeSystem.setUrl("http://example.org/CodeSystem/cs").setVersion("2").setStatus(PublicationStatus.DRAFT);
+    codeSystem.addConcept().setCode("a").setDisplay("<b> & </b>");
+    return Arrays.asList(valueSet, codeSystem);
+  }
+}
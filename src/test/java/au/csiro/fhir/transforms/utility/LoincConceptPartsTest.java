@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+import org.junit.jupiter.api.Test;
+
+class LoincConceptPartsTest {
+
+  @Test
+  void readsCodeStringAndCodingPropertyValues() {
+    Parameters parameters = new Parameters();
+    parameters.addParameter().setName("display").setValue(new StringType("Glucose"));
+    addProperty(parameters, "COMPONENT", new CodeType("LP14635-4"));
+    addProperty(parameters, "PROPERTY", new StringType("LP6827-2"));
+    addProperty(parameters, "SYSTEM", new Coding(Constants.LOINC_CS_URI, "LP7576-4", "Ser/Plas"));
+    addProperty(parameters, "CLASS", new StringType("CHEM"));
+    // description part as well as code and value
+    addProperty(parameters, "SCALE_TYP", new CodeType("LP7753-9")).addPart().setName("description").setValue(new StringType("Qn"));
+
+    LoincConceptParts parts = LoincConceptParts.fromParameters(parameters);
+    assertEquals("LP14635-4", parts.getComponent());
+    assertEquals("LP6827-2", parts.getProperty());
+    assertEquals("LP7576-4", parts.getSystem());
+    assertEquals("LP7753-9", parts.getScaleType());
+    assertNull(parts.getTimeAspect());
+    assertNull(parts.getMethodType());
+  }
+
+  @Test
+  void encodedPartsDecodeToTheSameParts() {
+    LoincConceptParts parts = new LoincConceptParts("LP1", null, "LP3", "LP4", "LP5", null);
+    LoincConceptParts decoded = LoincConceptParts.decode(parts.encode());
+    for (int axis = 0; axis < LoincConceptParts.AXES.size(); axis++) {
+      assertEquals(parts.get(axis), decoded.get(axis));
+    }
+  }
+
+  private static ParametersParameterComponent addProperty(Parameters parameters, String code, Type value) {
+    ParametersParameterComponent property = parameters.addParameter().setName("property");
+    property.addPart().setName("code").setValue(new CodeType(code));
+    property.addPart().setName("value").setValue(value);
+    return property;
+  }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+class LoincDistributionProviderTest {
+
+  @TempDir
+  Path loincDir;
+
+  @BeforeEach
+  void writeDistribution() throws IOException {
+    Path table = Files.createDirectories(loincDir.resolve("LoincTable")).resolve("Loinc.csv");
+    Files.write(table, Arrays.asList("\uFEFF\"LOINC_NUM\",\"COMPONENT\",\"VersionLastChanged\"", "\"1000-1\",\"A, b\",\"2.60\"",
+        "\"2000-2\",\"B\",\"2.69\"", "\"3000-3\",\"C\",\"2.65\""), StandardCharsets.UTF_8);
+    Path partLink = Files.createDirectories(loincDir.resolve("AccessoryFiles/PartFile")).resolve("LoincPartLink_Primary.csv");
+    Files.write(partLink,
+        Arrays.asList("\"LoincNumber\",\"PartNumber\",\"LinkTypeName\",\"Property\"",
+            "\"1000-1\",\"LP1\",\"Primary\",\"http://loinc.org/property/COMPONENT\"",
+            "\"1000-1\",\"LP2\",\"Primary\",\"http://loinc.org/property/SCALE_TYP\"",
+            "\"1000-1\",\"LP3\",\"DetailedModel\",\"http://loinc.org/property/METHOD_TYP\"",
+            "\"2000-2\",\"LP4\",\"Primary\",\"http://loinc.org/property/COMPONENT\"",
+            "\"3000-3\",\"LP5\",\"Primary\",\"http://loinc.org/property/COMPONENT\""),
+        StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void indexesPrimaryPartsOfTheRequestedCodes() throws Exception {
+    LoincDistributionProvider provider = new LoincDistributionProvider(loincDir.toFile(), "2.69");
+    provider.lookupLoincAsync(Arrays.asList("1000-1", "2000-2"), "2.69").get(5, TimeUnit.SECONDS);
+
+    LoincConceptParts parts = provider.getLoincConcept("1000-1", "2.69");
+    assertEquals("LP1", parts.getComponent());
+    assertEquals("LP2", parts.getScaleType());
+    assertNull(parts.getMethodType());
+    assertEquals("LP4", provider.getLoincConcept("2000-2", "2.69").getComponent());
+  }
+
+  @Test
+  void onlyRequestedCodesAreIndexed() throws Exception {
+    LoincDistributionProvider provider = new LoincDistributionProvider(loincDir.toFile(), "2.69");
+    provider.lookupLoincAsync(Arrays.asList("1000-1", "9999-9"), "2.69").get(5, TimeUnit.SECONDS);
+    deleteDistribution();
+
+    // requested codes, found or not, are answered from the index
+    assertEquals("LP1", provider.getLoincConcept("1000-1", "2.69").getComponent());
+    assertThrows(ResourceNotFoundException.class, () -> provider.getLoincConcept("9999-9", "2.69"));
+    // a code that was not requested has to be read from the distribution
+    assertThrows(UncheckedIOException.class, () -> provider.getLoincConcept("3000-3", "2.69"));
+  }
+
+  @Test
+  void codesNotLookedUpAreReadOnDemand() {
+    LoincDistributionProvider provider = new LoincDistributionProvider(loincDir.toFile(), "2.69");
+    assertEquals("LP5", provider.getLoincConcept("3000-3", "2.69").getComponent());
+  }
+
+  @Test
+  void indexedAndReadCodesAreCountedAsHitsAndMisses() throws Exception {
+    LookupMetrics metrics = new LookupMetrics();
+    LoincDistributionProvider provider = new LoincDistributionProvider(loincDir.toFile(), "2.69", metrics);
+    provider.lookupLoincAsync(Arrays.asList("1000-1", "9999-9"), "2.69").get(5, TimeUnit.SECONDS);
+    provider.lookupLoincAsync(Arrays.asList("1000-1", "2000-2"), "2.69").get(5, TimeUnit.SECONDS);
+    provider.getLoincConcept("1000-1", "2.69");
+
+    assertEquals(2, metrics.getHits(LookupMetrics.Terminology.LOINC));
+    assertEquals(3, metrics.getMisses(LookupMetrics.Terminology.LOINC));
+    assertEquals(1, metrics.getNotFound(LookupMetrics.Terminology.LOINC));
+    assertEquals(2, metrics.getLatency(LookupMetrics.Terminology.LOINC, "read distribution").getCount());
+  }
+
+  @Test
+  void otherVersionsAreRejected() {
+    LoincDistributionProvider provider = new LoincDistributionProvider(loincDir.toFile(), "2.69");
+    assertThrows(IllegalArgumentException.class, () -> provider.lookupLoincAsync(Arrays.asList("1000-1"), "2.70"));
+    assertThrows(IllegalArgumentException.class, () -> provider.getLoincConcept("1000-1", "2.70"));
+  }
+
+  private void deleteDistribution() throws IOException {
+    Files.delete(loincDir.resolve("LoincTable/Loinc.csv"));
+    Files.delete(loincDir.resolve("AccessoryFiles/PartFile/LoincPartLink_Primary.csv"));
+  }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class LongObjectMapTest {
+
+  // the smallest table, of 16 slots
+  private static final int SLOTS = 16;
+
+  @Test
+  void growsPastTheLoadFactorKeepingEveryEntry() {
+    LongObjectMap<String> map = new LongObjectMap<>(1);
+    for (long id = 1; id <= 10_000; id++) {
+      map.put(id * 1000 + 146104, "term " + id);
+    }
+    assertEquals(10_000, map.size());
+    for (long id = 1; id <= 10_000; id++) {
+      assertEquals("term " + id, map.get(id * 1000 + 146104));
+    }
+    assertNull(map.get(146104));
+    assertFalse(map.containsKey(10_001 * 1000 + 146104));
+  }
+
+  @Test
+  void keysWithTheSameHomeSlotAreAllKept() {
+    long[] colliding = collidingKeys(4);
+    LongObjectMap<String> map = new LongObjectMap<>(1);
+    for (int i = 0; i < 3; i++) {
+      map.put(colliding[i], "value " + i);
+    }
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(map.containsKey(colliding[i]));
+      assertEquals("value " + i, map.get(colliding[i]));
+    }
+    // the end of the probe sequence is reached without finding the key
+    assertFalse(map.containsKey(colliding[3]));
+    assertNull(map.get(colliding[3]));
+
+    map.put(colliding[1], "replaced");
+    assertEquals(3, map.size());
+    assertEquals("replaced", map.get(colliding[1]));
+    assertEquals("value 2", map.get(colliding[2]));
+  }
+
+  @Test
+  void collidingKeysAreKeptWhenTheTableGrows() {
+    long[] colliding = collidingKeys(9);
+    LongObjectMap<Long> map = new LongObjectMap<>(1);
+    for (long key : colliding) {
+      map.put(key, key);
+    }
+    // grows the table, moving the colliding keys apart
+    for (long key = 1; key <= 20; key++) {
+      map.put(key, key);
+    }
+    for (long key : colliding) {
+      assertEquals(key, map.get(key));
+    }
+  }
+
+  @Test
+  void zeroIsNotAKey() {
+    LongObjectMap<String> map = new LongObjectMap<>(1);
+    assertThrows(IllegalArgumentException.class, () -> map.put(0, "zero"));
+    assertNull(map.get(0));
+    assertFalse(map.containsKey(0));
+  }
+
+  /**
+   * @return keys larger than 100 that all have the same home slot in a table of 16 slots
+   */
+  private static long[] collidingKeys(int count) {
+    long[] keys = new long[count];
+    long slot = LongObjectMap.mix(101) & (SLOTS - 1);
+    int found = 0;
+    for (long key = 101; found < count; key++) {
+      if ((LongObjectMap.mix(key) & (SLOTS - 1)) == slot) {
+        keys[found++] = key;
+      }
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PersistentTerminologyCacheTest {
+
+  private static final String SCT = "http://snomed.info/sct";
+
+  @TempDir
+  Path cacheDir;
+
+  @Test
+  void savedEntriesAreReadBackForTheSameVersionOnly() throws Exception {
+    PersistentTerminologyCache cache = new PersistentTerminologyCache(cacheDir.toFile());
+    cache.put(SCT, "http://snomed.info/sct/11000146104/version/20230331", "123", "display");
+    cache.put(SCT, "http://snomed.info/sct/11000146104/version/20230331", "456", "");
+    cache.save();
+
+    PersistentTerminologyCache reloaded = new PersistentTerminologyCache(cacheDir.toFile());
+    assertEquals("display", reloaded.get(SCT, "http://snomed.info/sct/11000146104/version/20230331", "123"));
+    assertEquals("", reloaded.get(SCT, "http://snomed.info/sct/11000146104/version/20230331", "456"));
+    assertNull(reloaded.get(SCT, "http://snomed.info/sct/11000146104/version/20230930", "123"));
+  }
+
+  @Test
+  void nullValuesAreNotCached() throws Exception {
+    PersistentTerminologyCache cache = new PersistentTerminologyCache(cacheDir.toFile());
+    cache.put(SCT, "v1", "123", null);
+    assertNull(cache.get(SCT, "v1", "123"));
+    cache.save();
+    assertEquals(0, cacheDir.toFile().list().length);
+  }
+
+  @Test
+  void expiredEntriesAreDiscarded() throws Exception {
+    PersistentTerminologyCache cache = new PersistentTerminologyCache(cacheDir.toFile(), 50);
+    cache.put(SCT, "v1", "123", "display");
+    cache.save();
+    assertEquals("display", new PersistentTerminologyCache(cacheDir.toFile(), 60_000).get(SCT, "v1", "123"));
+
+    Thread.sleep(100);
+    PersistentTerminologyCache expired = new PersistentTerminologyCache(cacheDir.toFile(), 50);
+    assertNull(expired.get(SCT, "v1", "123"));
+
+    // entries added after expiry start a new file rather than extending the old one
+    expired.put(SCT, "v1", "789", "new");
+    expired.save();
+    PersistentTerminologyCache reloaded = new PersistentTerminologyCache(cacheDir.toFile(), 60_000);
+    assertNull(reloaded.get(SCT, "v1", "123"));
+    assertEquals("new", reloaded.get(SCT, "v1", "789"));
+  }
+
+  @Test
+  void unreadableFilesAreIgnored() throws Exception {
+    PersistentTerminologyCache cache = new PersistentTerminologyCache(cacheDir.toFile());
+    cache.put(SCT, "v1", "123", "display");
+    cache.save();
+    for (File file : cacheDir.toFile().listFiles()) {
+      Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+    }
+    assertNull(new PersistentTerminologyCache(cacheDir.toFile()).get(SCT, "v1", "123"));
+  }
+}
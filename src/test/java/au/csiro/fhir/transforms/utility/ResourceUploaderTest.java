@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import au.csiro.fhir.transforms.utility.LookupMetrics.Terminology;
+import au.csiro.fhir.transforms.utility.ResourceUploader.Upload;
+import au.csiro.fhir.transforms.utility.StubHttpServer.Response;
+
+class ResourceUploaderTest {
+
+  private static final byte[] JSON = "{\"resourceType\":\"ValueSet\"}".getBytes(StandardCharsets.UTF_8);
+
+  private final CloseableHttpClient httpClient = HttpClients.createDefault();
+  private final LookupMetrics metrics = new LookupMetrics();
+  private StubHttpServer server;
+  private ResourceUploader uploader;
+
+  @AfterEach
+  void close() throws IOException {
+    if (uploader != null) {
+      uploader.close();
+    }
+    if (server != null) {
+      server.close();
+    }
+    httpClient.close();
+  }
+
+  @Test
+  void resourceIsPutConditionalOnItsUrlAndVersion() throws IOException {
+    start(request -> new Response(201, ""));
+
+    Upload upload = uploader.uploadAsync("ValueSet", "http://example.org/vs", "1", JSON).join();
+    assertEquals(201, upload.getStatus());
+    assertEquals(1, upload.getAttempts());
+    assertEquals("PUT", server.getRequests().get(0).method);
+    assertEquals("/fhir/ValueSet?url=http%3A%2F%2Fexample.org%2Fvs&version=1", server.getRequests().get(0).uri);
+  }
+
+  @Test
+  void transientFailuresAreRetriedAfterTheTimeAskedFor() throws IOException {
+    AtomicInteger attempts = new AtomicInteger();
+    start(request -> attempts.incrementAndGet() == 1 ? new Response(429, "", Collections.singletonMap("Retry-After", "1"))
+        : attempts.get() == 2 ? new Response(503, "") : new Response(200, ""));
+
+    long start = System.nanoTime();
+    Upload upload = uploader.uploadAsync("ValueSet", "http://example.org/vs", null, JSON).join();
+    assertEquals(3, upload.getAttempts());
+    // the Retry-After of a second, then a backoff of at least half the second attempt's 2s
+    assertTrue(System.nanoTime() - start >= 1_900_000_000L);
+    assertEquals(2, metrics.getRetries(Terminology.UPLOAD));
+    assertEquals(0, metrics.getErrors(Terminology.UPLOAD));
+  }
+
+  @Test
+  void failuresTheServerWillNotRecoverFromAreNotRetried() throws IOException {
+    start(request -> new Response(422, "{\"resourceType\":\"OperationOutcome\"}"));
+
+    CompletionException e = assertThrows(CompletionException.class,
+        () -> uploader.uploadAsync("ValueSet", "http://example.org/vs", "1", JSON).join());
+    assertTrue(e.getCause() instanceof UncheckedIOException);
+    assertEquals(1, server.getRequests().size());
+    assertEquals(0, metrics.getRetries(Terminology.UPLOAD));
+    assertEquals(1, metrics.getErrors(Terminology.UPLOAD));
+  }
+
+  @Test
+  void rejectedTokenIsReplacedAndTheUploadRetriedOnce() throws IOException {
+    AtomicInteger issued = new AtomicInteger();
+    BearerToken token = startWithToken(issued, request -> "Bearer token1".equals(request.headers.getFirst("Authorization"))
+        ? new Response(401, "") : new Response(200, ""));
+
+    Upload upload = uploader.uploadAsync("ValueSet", "http://example.org/vs", "1", JSON).join();
+    assertEquals(2, upload.getAttempts());
+    assertEquals(2, issued.get());
+    assertEquals("token2", token.get());
+  }
+
+  @Test
+  void uploadRejectedWithANewTokenFails() throws IOException {
+    AtomicInteger issued = new AtomicInteger();
+    startWithToken(issued, request -> new Response(401, ""));
+
+    assertThrows(CompletionException.class, () -> uploader.uploadAsync("ValueSet", "http://example.org/vs", "1", JSON).join());
+    assertEquals(2, issued.get());
+    assertEquals(2, server.getRequests().stream().filter(request -> request.uri.startsWith("/fhir")).count());
+  }
+
+  private void start(StubHttpServer.Handler handler) throws IOException {
+    server = new StubHttpServer(handler);
+    uploader = new ResourceUploader(httpClient, server.getUrl() + "/fhir/", null, 2, 2, metrics);
+  }
+
+  /**
+   * Starts a server issuing numbered tokens from /token and answering the uploads with a handler
+   */
+  private BearerToken startWithToken(AtomicInteger issued, StubHttpServer.Handler handler) throws IOException {
+    server = new StubHttpServer(request -> request.uri.equals("/token") ? tokenResponse(issued) : handler.handle(request));
+    BearerToken token = new BearerToken(httpClient, metrics, server.getUrl() + "/token", "id", "secret");
+    uploader = new ResourceUploader(httpClient, server.getUrl() + "/fhir", token, 2, 2, metrics);
+    return token;
+  }
+
+  private static Response tokenResponse(AtomicInteger issued) {
+    return new Response(200, "{\"access_token\":\"token" + issued.incrementAndGet() + "\",\"expires_in\":3600}",
+        Collections.singletonMap("Content-Type", "application/json"));
+  }
+}
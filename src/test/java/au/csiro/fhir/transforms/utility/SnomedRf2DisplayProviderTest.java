@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import au.csiro.fhir.transforms.utility.LookupMetrics.Terminology;
+
+class SnomedRf2DisplayProviderTest {
+
+  private static final String FSN = "900000000000003001";
+  private static final String SYNONYM = "900000000000013009";
+  private static final String PREFERRED = "900000000000548007";
+  private static final String ACCEPTABLE = "900000000000549004";
+  private static final String DUTCH_REFSET = "31000146106";
+  private static final String ENGLISH_REFSET = "900000000000509007";
+
+  @TempDir
+  Path rf2Dir;
+
+  @BeforeEach
+  void writeRelease() throws IOException {
+    Path terminology = Files.createDirectories(rf2Dir.resolve("Snapshot/Terminology"));
+    Files.write(terminology.resolve("sct2_Description_Snapshot-nl_NL1000146_20230331.txt"), Arrays.asList(
+        "id\teffectiveTime\tactive\tmoduleId\tconceptId\tlanguageCode\ttypeId\tterm\tcaseSignificanceId",
+        // 1001 has a preferred FSN, an acceptable synonym and a preferred synonym
+        description("11", "1", "1001", "nl", FSN, "bloed (substantie)"),
+        description("12", "1", "1001", "nl", SYNONYM, "bloedmonster"),
+        description("13", "1", "1001", "nl", SYNONYM, "bloed"),
+        // 1002 has a preferred synonym that is inactive and one whose refset member is inactive
+        description("21", "0", "1002", "nl", SYNONYM, "oude term"),
+        description("22", "1", "1002", "nl", SYNONYM, "vervangen term"),
+        // 1003 only has a preferred FSN and a synonym preferred in English
+        description("31", "1", "1003", "nl", FSN, "urine (substantie)"),
+        description("32", "1", "1003", "en", SYNONYM, "urine")), StandardCharsets.UTF_8);
+    Path language = Files.createDirectories(rf2Dir.resolve("Snapshot/Refset/Language"));
+    Files.write(language.resolve("der2_cRefset_LanguageSnapshot-nl_NL1000146_20230331.txt"), Arrays.asList(
+        "id\teffectiveTime\tactive\tmoduleId\trefsetId\treferencedComponentId\tacceptabilityId",
+        member("1", DUTCH_REFSET, "11", PREFERRED),
+        member("1", DUTCH_REFSET, "12", ACCEPTABLE),
+        member("1", DUTCH_REFSET, "13", PREFERRED),
+        member("1", DUTCH_REFSET, "21", PREFERRED),
+        member("0", DUTCH_REFSET, "22", PREFERRED),
+        member("1", DUTCH_REFSET, "31", PREFERRED),
+        member("1", ENGLISH_REFSET, "32", PREFERRED)), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void preferredDutchSynonymIsTheDisplay() {
+    SnomedRf2DisplayProvider provider = new SnomedRf2DisplayProvider(rf2Dir.toFile());
+    assertEquals("bloed", provider.getSnomedDisplay("1001", "XML 1001"));
+  }
+
+  @Test
+  void inactiveDescriptionsAndRefsetMembersAreIgnored() {
+    SnomedRf2DisplayProvider provider = new SnomedRf2DisplayProvider(rf2Dir.toFile());
+    assertEquals("XML 1002", provider.getSnomedDisplay("1002", "XML 1002"));
+  }
+
+  @Test
+  void fullySpecifiedNamesAndOtherLanguagesAreIgnored() {
+    SnomedRf2DisplayProvider provider = new SnomedRf2DisplayProvider(rf2Dir.toFile());
+    assertEquals("XML 1003", provider.getSnomedDisplay("1003", "XML 1003"));
+  }
+
+  @Test
+  void conceptsWithoutAPreferredTermFallBackToTheXmlDisplayName() throws Exception {
+    LookupMetrics metrics = new LookupMetrics();
+    SnomedRf2DisplayProvider provider = new SnomedRf2DisplayProvider(rf2Dir.toFile(), metrics);
+    Map<String, String> materials = new LinkedHashMap<>();
+    materials.put("1001", "XML 1001");
+    materials.put("9999", "XML 9999");
+    materials.put("not a code", "XML not a code");
+    provider.lookupSnomedAsync(materials).get(5, TimeUnit.SECONDS);
+
+    assertEquals("bloed", provider.getSnomedDisplay("1001", "XML 1001"));
+    assertEquals("XML 9999", provider.getSnomedDisplay("9999", "XML 9999"));
+    assertEquals("XML not a code", provider.getSnomedDisplay("not a code", "XML not a code"));
+    assertEquals(2, metrics.getNotFound(Terminology.SNOMED));
+  }
+
+  @Test
+  void indexedConceptsAreNotReadAgain() throws Exception {
+    SnomedRf2DisplayProvider provider = new SnomedRf2DisplayProvider(rf2Dir.toFile());
+    provider.lookupSnomedAsync(Map.of("1001", "XML 1001")).get(5, TimeUnit.SECONDS);
+    deleteRelease();
+
+    assertEquals("bloed", provider.getSnomedDisplay("1001", "XML 1001"));
+    assertThrows(UncheckedIOException.class, () -> provider.getSnomedDisplay("1003", "XML 1003"));
+  }
+
+  private void deleteRelease() throws IOException {
+    Files.delete(rf2Dir.resolve("Snapshot/Terminology/sct2_Description_Snapshot-nl_NL1000146_20230331.txt"));
+    Files.delete(rf2Dir.resolve("Snapshot/Refset/Language/der2_cRefset_LanguageSnapshot-nl_NL1000146_20230331.txt"));
+  }
+
+  private static String description(String id, String active, String conceptId, String language, String typeId, String term) {
+    return String.join("\t", id, "20230331", active, "11000146104", conceptId, language, typeId, term, "900000000000448009");
+  }
+
+  private static String member(String active, String refsetId, String descriptionId, String acceptabilityId) {
+    return String.join("\t", "uuid-" + descriptionId + "-" + refsetId, "20230331", active, "11000146104", refsetId, descriptionId,
+        acceptabilityId);
+  }
+}
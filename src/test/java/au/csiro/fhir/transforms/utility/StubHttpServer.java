@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server for tests, answering every request with a {@link Handler} and recording the
+ * requests it received
+ */
+public class StubHttpServer implements Closeable {
+
+  /**
+   * Request received by the server
+   */
+  public static class Request {
+    public final String method;
+    public final String uri;
+    public final Headers headers;
+    public final String body;
+
+    Request(String method, String uri, Headers headers, String body) {
+      this.method = method;
+      this.uri = uri;
+      this.headers = headers;
+      this.body = body;
+    }
+  }
+
+  /**
+   * Response for the server to send
+   */
+  public static class Response {
+    public final int status;
+    public final String body;
+    public final Map<String, String> headers;
+
+    public Response(int status, String body) {
+      this(status, body, Collections.emptyMap());
+    }
+
+    public Response(int status, String body, Map<String, String> headers) {
+      this.status = status;
+      this.body = body;
+      this.headers = headers;
+    }
+  }
+
+  /**
+   * Produces the response to a request
+   */
+  public interface Handler {
+    Response handle(Request request) throws IOException;
+  }
+
+  private final HttpServer server;
+  private final List<Request> requests = new CopyOnWriteArrayList<>();
+
+  /**
+   * Starts a server on a free local port
+   *
+   * @param handler {@link Handler} to answer requests with
+   * @throws IOException if the server cannot be started
+   */
+  public StubHttpServer(Handler handler) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", exchange -> respond(exchange, handler));
+    server.start();
+  }
+
+  /**
+   * @return base URL of the server, without a trailing slash
+   */
+  public String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * @return the requests received so far, in the order they were received
+   */
+  public List<Request> getRequests() {
+    return requests;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private void respond(HttpExchange exchange, Handler handler) throws IOException {
+    try {
+      Request request = new Request(exchange.getRequestMethod(), exchange.getRequestURI().toString(), exchange.getRequestHeaders(),
+          new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+      requests.add(request);
+      Response response = handler.handle(request);
+      response.headers.forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+      if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+      }
+      byte[] body = response.body == null ? new byte[0] : response.body.getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(response.status, body.length == 0 ? -1 : body.length);
+      if (body.length > 0) {
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright © 2021, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ ******************************************************************************/
+package au.csiro.fhir.transforms.utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import au.csiro.fhir.transforms.utility.StubHttpServer.Response;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+class TerminologyClientTest {
+
+  private static final FhirContext CTX = FhirContext.forR4();
+  private static final String ROOT_CONCEPT = "138875005";
+
+  static {
+    CTX.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+  }
+
+  private StubHttpServer server;
+  private TerminologyClient client;
+
+  @AfterEach
+  void close() throws Exception {
+    if (client != null) {
+      client.close();
+    }
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  void codesMissingFromACompleteExpansionAreNotFound() throws Exception {
+    start(request -> request.uri.contains("$expand") ? expansion(1, "111") : lookupDisplay("should not be looked up"));
+    client.lookupSnomed(materials("111", "222"));
+
+    assertEquals("NL 111", client.getSnomedDisplay("111", "XML 111"));
+    assertEquals("XML 222", client.getSnomedDisplay("222", "XML 222"));
+    assertEquals(1, server.getRequests().size());
+    assertEquals(1, client.getMetrics().getNotFound(LookupMetrics.Terminology.SNOMED));
+  }
+
+  @Test
+  void codesMissingFromAPartialExpansionAreLookedUp() throws Exception {
+    start(request -> request.uri.contains("$expand") ? expansion(2, "111") : lookupDisplay("NL 222"));
+    client.lookupSnomed(materials("111", "222"));
+
+    assertEquals("NL 111", client.getSnomedDisplay("111", "XML 111"));
+    assertEquals("NL 222", client.getSnomedDisplay("222", "XML 222"));
+    assertEquals(2, server.getRequests().size());
+    assertTrue(server.getRequests().get(1).uri.contains("$lookup") && server.getRequests().get(1).uri.contains("code=222"));
+    assertEquals(0, client.getMetrics().getNotFound(LookupMetrics.Terminology.SNOMED));
+  }
+
+  @Test
+  void expansionWithoutATotalIsNotComplete() throws Exception {
+    start(request -> request.uri.contains("$expand") ? expansion(-1, "111") : lookupDisplay("NL 222"));
+    client.lookupSnomed(materials("111", "222"));
+
+    assertEquals("NL 222", client.getSnomedDisplay("222", "XML 222"));
+  }
+
+  @Test
+  void transientFailuresAreRetried() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    start(request -> attempts.incrementAndGet() < 3 ? new Response(503, "") : lookupDisplay("NL 111"));
+
+    assertEquals("NL 111", client.getSnomedDisplay("111", "XML 111"));
+    assertEquals(3, attempts.get());
+    assertEquals(2, client.getMetrics().getRetries(LookupMetrics.Terminology.SNOMED));
+    assertEquals(0, client.getMetrics().getErrors(LookupMetrics.Terminology.SNOMED));
+  }
+
+  @Test
+  void failuresTheServerWillNotRecoverFromAreNotRetried() throws Exception {
+    start(request -> new Response(400, "{\"resourceType\":\"OperationOutcome\"}"));
+
+    assertThrows(InvalidRequestException.class, () -> client.getSnomedDisplay("111", "XML 111"));
+    assertEquals(1, server.getRequests().size());
+    assertEquals(0, client.getMetrics().getRetries(LookupMetrics.Terminology.SNOMED));
+    assertEquals(1, client.getMetrics().getErrors(LookupMetrics.Terminology.SNOMED));
+  }
+
+  @Test
+  void rejectedTokenIsReplacedAndTheLookupRetriedOnce() throws Exception {
+    AtomicInteger issued = new AtomicInteger();
+    Map<String, String> json = Collections.singletonMap("Content-Type", "application/json");
+    start(request -> request.uri.equals("/token") ? new Response(200, "{\"access_token\":\"token" + issued.incrementAndGet() + "\"}", json)
+        : "Bearer token1".equals(request.headers.getFirst("Authorization")) ? new Response(401, "") : lookupDisplay("NL 111"));
+    try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+      BearerToken token = new BearerToken(httpClient, new LookupMetrics(), server.getUrl() + "/token", "id", "secret");
+      IGenericClient fhirClient = CTX.newRestfulGenericClient(server.getUrl() + "/fhir");
+      fhirClient.registerInterceptor(token.newInterceptor());
+      client.close();
+      client = new TerminologyClient(fhirClient);
+
+      assertEquals("NL 111", client.getSnomedDisplay("111", "XML 111"));
+      assertEquals(2, issued.get());
+      assertEquals(1, client.getMetrics().getRetries(LookupMetrics.Terminology.SNOMED));
+    }
+  }
+
+  @Test
+  void batchEntriesAreCountedAsNotFoundOnlyFor404() throws Exception {
+    start(request -> new Response(200, "{\"resourceType\":\"Bundle\",\"type\":\"batch-response\",\"entry\":["
+        + "{\"resource\":{\"resourceType\":\"Parameters\"},\"response\":{\"status\":\"200 OK\"}},"
+        + "{\"resource\":{\"resourceType\":\"OperationOutcome\"},\"response\":{\"status\":\"404 Not Found\"}},"
+        + "{\"resource\":{\"resourceType\":\"OperationOutcome\"},\"response\":{\"status\":\"500 Internal Server Error\"}}]}"));
+    client.lookupLoinc(Arrays.asList("1-1", "2-2", "3-3"), "2.69");
+
+    assertEquals(3, client.getMetrics().getMisses(LookupMetrics.Terminology.LOINC));
+    assertEquals(1, client.getMetrics().getNotFound(LookupMetrics.Terminology.LOINC));
+    assertEquals(1, client.getMetrics().getErrors(LookupMetrics.Terminology.LOINC));
+  }
+
+  @Test
+  void resolvedSnomedVersionIsPersistedSoLaterRunsNeedNotResolveIt(@TempDir Path cacheDir) throws Exception {
+    String version = "http://snomed.info/sct/11000146104/version/20230331";
+    start(request -> request.uri.contains("code=" + ROOT_CONCEPT) ? lookupVersion(version) : lookupDisplay("NL 111"));
+    client.close();
+    client = new TerminologyClient(CTX.newRestfulGenericClient(server.getUrl() + "/fhir"), 10, 1,
+        new PersistentTerminologyCache(cacheDir.toFile()), new LookupMetrics());
+    assertEquals("NL 111", client.getSnomedDisplay("111", "XML 111"));
+    assertEquals(2, server.getRequests().size());
+    client.close();
+
+    // the FHIR server is now unavailable, the results persisted under the dated version are found
+    server.close();
+    start(request -> new Response(503, ""));
+    client.close();
+    PersistentTerminologyCache cache = new PersistentTerminologyCache(cacheDir.toFile());
+    client = new TerminologyClient(CTX.newRestfulGenericClient(server.getUrl() + "/fhir"), 10, 1, cache, new LookupMetrics());
+    assertEquals("NL 111", client.getSnomedDisplay("111", "XML 111"));
+    assertEquals(0, server.getRequests().size());
+    assertEquals("NL 111", cache.get(Constants.SCT_CS_URI, version, "111"));
+  }
+
+  @Test
+  void snomedVersionIsResolvedAgainOnceItsPersistedEntryExpires(@TempDir Path cacheDir) throws Exception {
+    AtomicInteger resolved = new AtomicInteger();
+    start(request -> request.uri.contains("code=" + ROOT_CONCEPT) ? lookupVersion("v" + resolved.incrementAndGet())
+        : lookupDisplay("NL 111"));
+    for (int run = 1; run <= 2; run++) {
+      client.close();
+      client = new TerminologyClient(CTX.newRestfulGenericClient(server.getUrl() + "/fhir"), 10, 1,
+          new PersistentTerminologyCache(cacheDir.toFile(), 50), new LookupMetrics());
+      client.getSnomedDisplay("111", "XML 111");
+      client.close();
+      Thread.sleep(100);
+    }
+    assertEquals(2, resolved.get());
+    assertEquals("NL 111", new PersistentTerminologyCache(cacheDir.toFile()).get(Constants.SCT_CS_URI, "v2", "111"));
+  }
+
+  @Test
+  void commonUcumCodesThatCannotBeFetchedAreAnIOException() throws Exception {
+    start(request -> request.uri.equals("/down") ? new Response(503, "unavailable") : new Response(200, "<html></html>"));
+    LookupMetrics metrics = new LookupMetrics();
+    try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+      IOException down = assertThrows(IOException.class,
+          () -> TerminologyClient.getCommonUcumCodes(httpClient, CTX, metrics, server.getUrl() + "/down"));
+      assertTrue(down.getMessage().contains("503"));
+      assertThrows(IOException.class, () -> TerminologyClient.getCommonUcumCodes(httpClient, CTX, metrics, server.getUrl() + "/html"));
+    }
+    assertEquals(2, metrics.getErrors(LookupMetrics.Terminology.UCUM));
+  }
+
+  private void start(StubHttpServer.Handler handler) throws Exception {
+    server = new StubHttpServer(handler);
+    client = new TerminologyClient(CTX.newRestfulGenericClient(server.getUrl() + "/fhir"));
+  }
+
+  private static Map<String, String> materials(String... codes) {
+    Map<String, String> materials = new LinkedHashMap<>();
+    for (String code : codes) {
+      materials.put(code, "XML " + code);
+    }
+    return materials;
+  }
+
+  private static Response expansion(int total, String... codes) {
+    StringBuilder contains = new StringBuilder();
+    for (String code : codes) {
+      contains.append(contains.length() == 0 ? "" : ",").append("{\"system\":\"http://snomed.info/sct\",\"code\":\"").append(code)
+          .append("\",\"display\":\"NL ").append(code).append("\"}");
+    }
+    return new Response(200, "{\"resourceType\":\"ValueSet\",\"status\":\"active\",\"expansion\":{\"timestamp\":\"2021-01-01\","
+        + (total >= 0 ? "\"total\":" + total + "," : "") + "\"contains\":[" + contains + "]}}");
+  }
+
+  private static Response lookupVersion(String version) {
+    return new Response(200, "{\"resourceType\":\"Parameters\",\"parameter\":[{\"name\":\"version\",\"valueString\":\"" + version + "\"}]}");
+  }
+
+  private static Response lookupDisplay(String display) {
+    return new Response(200, "{\"resourceType\":\"Parameters\",\"parameter\":[{\"name\":\"display\",\"valueString\":\"" + display + "\"}]}");
+  }
+}